@@ -0,0 +1,84 @@
+import java.io.OutputStream;
+
+/**
+ * Benchmark measures the throughput of an operation. The operation is first
+ * run for a few warm-up iterations, so that the JIT has compiled the scanning
+ * loops, and then measured for a few iterations. The result of every run is
+ * kept, so that the JIT cannot drop the work as dead code.
+ */
+public class Benchmark {
+    /** the results of all runs, never read */
+    private static volatile long blackhole;
+
+    /**
+     * Operation is one run of the benchmarked code.
+     */
+    public interface Operation {
+        /**
+         * @param iteration
+         *            the number of the run, counting warm-up runs
+         * @return any result of the run, e.g. the number of output bytes
+         */
+        long run(int iteration) throws Exception;
+    }
+
+    /**
+     * NullOutputStream counts the bytes written to it, and drops them.
+     */
+    public static class NullOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private final int warmups;
+    private final int iterations;
+
+    public Benchmark(int warmups, int iterations) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Run the operation, which processes the specified number of bytes per
+     * run, and print its throughput to standard output.
+     *
+     * @return the mean throughput in MB/s
+     */
+    public double measure(String name, long bytes, Operation operation) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            blackhole += operation.run(i);
+        }
+        double[] throughputs = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long startTime = System.nanoTime();
+            blackhole += operation.run(warmups + i);
+            long duration = System.nanoTime() - startTime;
+            throughputs[i] = bytes / 1048576. / (duration / 1000000000.);
+        }
+
+        double mean = 0;
+        for (double throughput : throughputs) {
+            mean += throughput / iterations;
+        }
+        double variance = 0;
+        for (double throughput : throughputs) {
+            variance += (throughput - mean) * (throughput - mean) / Math.max(1, iterations - 1);
+        }
+        System.out.println(String.format("%-56s %9.1f MB/s +- %7.1f", name, mean,
+                Math.sqrt(variance)));
+        return mean;
+    }
+}
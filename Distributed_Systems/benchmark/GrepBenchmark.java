@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import logquerier.BlockGzip;
+import logquerier.ColumnarLog;
+import logquerier.Grep;
+
+/**
+ * GrepBenchmark measures the scanning throughput of Grep over synthetic logs
+ * written by LogGenerator, across file sizes, selectivities, pattern types,
+ * numbers of patterns and encodings. Only one dimension varies at a time, the
+ * others stay at a 1% selectivity, ASCII file of the large size.
+ * <p>
+ * Usage: java GrepBenchmark [dir] [large file megabytes]
+ * <p>
+ * The files are generated into dir once, and reused by later runs.
+ */
+public class GrepBenchmark {
+    private static final int WARMUPS = 3;
+    private static final int ITERATIONS = 5;
+
+    private static final Benchmark BENCHMARK = new Benchmark(WARMUPS, ITERATIONS);
+
+    /**
+     * @return the log file of the specified size, selectivity and encoding,
+     *         generated unless it exists already
+     */
+    static Path logFile(Path dir, long megabytes, double selectivity, boolean utf8)
+            throws IOException {
+        Path file = dir.resolve(String.format("bench-%dm-%s-%s.log", megabytes, selectivity,
+                utf8 ? "utf8" : "ascii"));
+        if (!Files.exists(file)) {
+            LogGenerator.generate(file, megabytes << 20, selectivity, utf8, 425);
+        }
+        return file;
+    }
+
+    /**
+     * Grep the file, and print the throughput.
+     *
+     * @param options
+     *            the options and pattern, which the file name is appended to
+     */
+    private static void grep(String name, final Path file, final String... options)
+            throws Exception {
+        grep(name, file, Files.size(file), options);
+    }
+
+    /**
+     * Grep the file, and print the throughput in bytes of lines, which is
+     * not the size of a compressed file.
+     */
+    private static void grep(String name, final Path file, long bytes, final String... options)
+            throws Exception {
+        BENCHMARK.measure(name, bytes, new Benchmark.Operation() {
+            @Override
+            public long run(int iteration) throws Exception {
+                String[] args = new String[options.length + 1];
+                System.arraycopy(options, 0, args, 0, options.length);
+                args[options.length] = file.toString();
+                Benchmark.NullOutputStream os = new Benchmark.NullOutputStream();
+                new Grep(args, os).execute();
+                return os.getCount();
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "benchmark-logs");
+        long large = args.length > 1 ? Long.parseLong(args[1]) : 64;
+        Files.createDirectories(dir);
+        String needle = LogGenerator.NEEDLE;
+
+        System.out.println("# file size, literal pattern, 1% selected");
+        for (long megabytes : new long[] { 1, 16, large }) {
+            grep(String.format("size %dMB", megabytes), logFile(dir, megabytes, 0.01, false),
+                    needle);
+        }
+
+        System.out.println("# selectivity, literal pattern");
+        for (double selectivity : new double[] { 0, 0.0001, 0.01, 0.1, 0.5, 1 }) {
+            grep(String.format("selectivity %s", selectivity),
+                    logFile(dir, large, selectivity, false), needle);
+        }
+
+        System.out.println("# pattern type, 1% selected");
+        Path file = logFile(dir, large, 0.01, false);
+        grep("literal", file, needle);
+        grep("count only (-c)", file, "-c", needle);
+        grep("line numbers (-n)", file, "-n", needle);
+        grep("alternation of literals", file, "-e", needle, "-e", "FATAL", "-e", "panic");
+        grep("ignore case (-i)", file, "-i", needle.toLowerCase());
+        grep("whole word (-w)", file, "-w", needle);
+        grep("whole line (-x)", file, "-x", ".*" + needle + ".*");
+        grep("character classes, no literal", file, "id=[0-9a-f]{3}00[0-9a-f]*$");
+        grep("invert match (-v)", file, "-v", needle);
+        grep("backtracking, nested quantifiers", file, "(\\w+ ?)+ id=");
+        grep("backtracking, repeated .*", file, "(.* ){6}id=[0-9a-f]{16}$");
+
+        System.out.println("# number of -e literals, 1% selected");
+        Random random = new Random(425);
+        for (int count : new int[] { 1, 2, 10, 100, 1000 }) {
+            List<String> options = new ArrayList<>(Arrays.asList("-e", needle));
+            // request ids, which hardly ever occur
+            for (int i = 1; i < count; i++) {
+                options.add("-e");
+                options.add(String.format("id=%08x", random.nextInt()));
+            }
+            grep(String.format("%d literals", count), file, options.toArray(new String[0]));
+        }
+
+        System.out.println("# encoding, literal pattern, 1% selected");
+        grep("ascii", logFile(dir, large, 0.01, false), needle);
+        grep("utf8", logFile(dir, large, 0.01, true), needle);
+        grep("utf8, ignore case (-i)", logFile(dir, large, 0.01, true), "-i", "needle");
+
+        System.out.println("# field predicates (--where), text and columnar, 1% selected");
+        String[][] queries = { { "-c", "--where", "level=ERROR", "" },
+                { "-c", "--where", "level>=WARNING", "--where", "message~timeout", "" },
+                { "--where", "logger=sdfs.*", needle } };
+        String[] names = { "level", "level and message", "logger and pattern" };
+        for (int i = 0; i < queries.length; i++) {
+            grep("text, " + names[i], file, queries[i]);
+        }
+        ColumnarLog.convert(file);
+        for (int i = 0; i < queries.length; i++) {
+            grep("columnar, " + names[i], file, queries[i]);
+        }
+        Files.delete(ColumnarLog.columnFileOf(file));
+
+        System.out.println("# gzip, streamed and block parallel, literal pattern, 1% selected");
+        Path gzip = dir.resolve(file.getFileName() + ".1.gz");
+        try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(gzip))) {
+            Files.copy(file, os);
+        }
+        Path blockGzip = BlockGzip.compress(file);
+        grep("plain", file, needle);
+        grep("gzip", gzip, Files.size(file), needle);
+        grep("block gzip", blockGzip, Files.size(file), needle);
+        Files.delete(gzip);
+        Files.delete(blockGzip);
+        Files.delete(blockGzip.resolveSibling(blockGzip.getFileName() + BlockGzip.INDEX_SUFFIX));
+        System.exit(0);
+    }
+}
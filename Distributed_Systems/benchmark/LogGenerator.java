@@ -0,0 +1,93 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+import system.Catalog;
+
+/**
+ * LogGenerator writes synthetic log files for benchmarks. Every line starts
+ * with a timestamp in Catalog.LOG_TIMESTAMP_FORMAT, followed by a level, a
+ * component, a few words and a request id. A given fraction of the lines
+ * contains the word NEEDLE, so the selectivity of a query for NEEDLE is known.
+ */
+public class LogGenerator {
+    /** the word found in the selected lines */
+    public static final String NEEDLE = "NEEDLE";
+
+    private static final String[] LEVELS = { "INFO", "INFO", "INFO", "INFO", "DEBUG", "DEBUG",
+            "WARN", "ERROR" };
+    private static final String[] COMPONENTS = { "sdfs.Namenode", "sdfs.Datanode",
+            "crane.Nimbus", "crane.Supervisor", "membershipservice.Gossip" };
+    private static final String[] ASCII_WORDS = { "request", "served", "replica", "block",
+            "report", "received", "from", "heartbeat", "timeout", "retry", "member", "joined",
+            "failed", "tuple", "acked", "emitted", "bolt", "spout", "latency", "ms" };
+    /** words of several scripts, so the file is not plain ASCII */
+    private static final String[] UTF8_WORDS = { "request", "served", "r\u00e9plica", "bloc",
+            "Z\u00fcrich", "na\u00efve", "donn\u00e9es", "re\u00e7u", "\u65e5\u5fd7",
+            "\u8282\u70b9", "\u5fc3\u8df3", "\u8d85\u65f6", "\u30ed\u30b0",
+            "\u30ce\u30fc\u30c9", "\u041e\u0448\u0438\u0431\u043a\u0430",
+            "\u0443\u0437\u0435\u043b", "latency", "ms", "fa\u00e7ade",
+            "\u0395\u03bb\u03bb\u03ac\u03b4\u03b1" };
+
+    /**
+     * Write a log file of about the specified size.
+     *
+     * @param selectivity
+     *            the fraction of lines containing NEEDLE
+     * @param utf8
+     *            if <code>true</code>, lines contain non ASCII words
+     */
+    public static void generate(Path file, long bytes, double selectivity, boolean utf8,
+            long seed) throws IOException {
+        Random random = new Random(seed);
+        String[] words = utf8 ? UTF8_WORDS : ASCII_WORDS;
+        SimpleDateFormat format = new SimpleDateFormat(Catalog.LOG_TIMESTAMP_FORMAT);
+        long time = 1441411200000L;
+        long written = 0;
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(file), Catalog.ENCODING),
+                1 << 16)) {
+            StringBuilder sb = new StringBuilder();
+            while (written < bytes) {
+                time += random.nextInt(50);
+                sb.setLength(0);
+                sb.append('[').append(format.format(new Date(time))).append("] ");
+                sb.append(LEVELS[random.nextInt(LEVELS.length)]).append(' ');
+                sb.append(COMPONENTS[random.nextInt(COMPONENTS.length)]).append(':');
+                int count = 4 + random.nextInt(8);
+                int needleAt = random.nextDouble() < selectivity ? random.nextInt(count) : -1;
+                for (int i = 0; i < count; i++) {
+                    sb.append(' ').append(i == needleAt ? NEEDLE
+                            : words[random.nextInt(words.length)]);
+                }
+                sb.append(" id=").append(Long.toHexString(random.nextLong())).append('\n');
+                writer.write(sb.toString());
+                // close enough for multi byte words
+                written += sb.length();
+            }
+        }
+    }
+
+    /**
+     * Usage: java LogGenerator file megabytes [selectivity] [ascii|utf8] [seed]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println(
+                    "usage: java LogGenerator file megabytes [selectivity] [ascii|utf8] [seed]");
+            System.exit(-1);
+        }
+        double selectivity = args.length > 2 ? Double.parseDouble(args[2]) : 0.01;
+        boolean utf8 = args.length > 3 && args[3].equals("utf8");
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 425;
+        LogGenerator.generate(Paths.get(args[0]), Long.parseLong(args[1]) << 20, selectivity,
+                utf8, seed);
+    }
+}
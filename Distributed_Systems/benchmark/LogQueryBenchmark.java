@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONValue;
+
+import logquerier.FrameReader;
+import logquerier.FramedOutputStream;
+import logquerier.LogQueryService;
+import system.Catalog;
+
+/**
+ * LogQueryBenchmark measures queries end to end over loopback: a
+ * LogQueryService runs in this process, and queries are sent to it in the
+ * framed protocol of RemoteGrepClient, whose frames are read and decoded into
+ * lines like RemoteGrepClient does, without printing them.
+ * <p>
+ * Every run uses a different -m, which selects no fewer lines but keeps the
+ * service from answering from its result cache, so every run scans the file.
+ * <p>
+ * Usage: java LogQueryBenchmark [dir] [file megabytes]
+ */
+public class LogQueryBenchmark {
+    private static final int WARMUPS = 3;
+    private static final int ITERATIONS = 5;
+
+    private static final Benchmark BENCHMARK = new Benchmark(WARMUPS, ITERATIONS);
+
+    /**
+     * Send a query to the service on this host, and read its answer.
+     *
+     * @return the number of lines received
+     */
+    private static long query(String command, String... args) throws IOException {
+        try (Socket socket = new Socket("localhost", Catalog.LOG_QUERY_SERVICE_PORT)) {
+            List<String> argList = new ArrayList<>();
+            argList.add(command);
+            argList.addAll(Arrays.asList(args));
+            PrintWriter pw = new PrintWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), Catalog.ENCODING), true);
+            pw.println(JSONValue.toJSONString(argList));
+
+            try (FrameReader reader = new FrameReader(socket.getInputStream())) {
+                long lines = 0;
+                int len;
+                while ((len = reader.next()) >= 0) {
+                    byte[] data = reader.getData();
+                    for (int i = 0; i < len; i++) {
+                        if (data[i] == '\n') {
+                            lines++;
+                        }
+                    }
+                }
+                if (reader.getTrailer() == null || !FramedOutputStream.STATUS_OK
+                        .equals(reader.getTrailer().get("status"))) {
+                    throw new IOException("Query failed: " + reader.getTrailer());
+                }
+                return lines;
+            }
+        }
+    }
+
+    /**
+     * Run the query with the specified number of concurrent clients, and
+     * print the throughput of all of them together.
+     */
+    private static void query(String name, final Path file, final int clients,
+            final String... options) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(clients);
+        BENCHMARK.measure(name, Files.size(file) * clients, new Benchmark.Operation() {
+            @Override
+            public long run(final int iteration) throws Exception {
+                List<Future<Long>> futures = new ArrayList<>();
+                for (int i = 0; i < clients; i++) {
+                    final int client = i;
+                    futures.add(executor.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws IOException {
+                            List<String> args = new ArrayList<>(Arrays.asList(options));
+                            args.add("-m");
+                            args.add(String.valueOf(
+                                    Integer.MAX_VALUE - iteration * clients - client));
+                            args.add(file.toString());
+                            return query("grep-framed", args.toArray(new String[0]));
+                        }
+                    }));
+                }
+                long lines = 0;
+                for (Future<Long> future : futures) {
+                    lines += future.get();
+                }
+                return lines;
+            }
+        });
+        executor.shutdown();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "benchmark-logs");
+        long megabytes = args.length > 1 ? Long.parseLong(args[1]) : 64;
+        Files.createDirectories(dir);
+
+        LogQueryService service = new LogQueryService();
+        service.startServe();
+        try {
+            String needle = LogGenerator.NEEDLE;
+            Path file = GrepBenchmark.logFile(dir, megabytes, 0.01, false).toAbsolutePath();
+
+            System.out.println("# end to end over loopback, literal pattern");
+            for (double selectivity : new double[] { 0.0001, 0.01, 0.5 }) {
+                query(String.format("selectivity %s", selectivity),
+                        GrepBenchmark.logFile(dir, megabytes, selectivity, false)
+                                .toAbsolutePath(),
+                        1, needle);
+            }
+            query("count only (-c)", file, 1, "-c", needle);
+            query("line numbers (-n)", file, 1, "-n", needle);
+            query("utf8", GrepBenchmark.logFile(dir, megabytes, 0.01, true).toAbsolutePath(), 1,
+                    needle);
+            for (int clients : new int[] { 2, 4 }) {
+                query(String.format("%d concurrent clients", clients), file, clients, needle);
+            }
+        } finally {
+            service.stopServe();
+        }
+        System.exit(0);
+    }
+}
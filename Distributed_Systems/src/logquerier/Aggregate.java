@@ -0,0 +1,278 @@
+package logquerier;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import system.Catalog;
+
+/**
+ * Aggregate is a thread safe, mergeable summary of selected lines: the total
+ * number of selected lines, and optionally the number of selected lines for
+ * each value of a capture group. Aggregates are computed by every
+ * LogQueryService next to the data, and merged by RemoteGrepClient, so only
+ * the aggregates cross the network.
+ * <p>
+ * An aggregate of --approx also holds an estimate of the lines selected in
+ * the unsampled part of the files, with its variance. Estimates of distinct
+ * files are independent, so both estimates and variances add up on merge.
+ * <p>
+ * An aggregate of --distinct holds instead a DistinctSketch of the values of
+ * the capture group, which merges into the sketch of all values.
+ */
+public class Aggregate {
+    private long total = 0;
+    private final Map<String, Long> groups = new HashMap<>();
+    /**
+     * <code>true</code> if some groups have been dropped by truncate(), so
+     * group counts may be incomplete
+     */
+    private boolean truncated = false;
+    /** the estimated number of selected lines, in addition to total */
+    private double estimate = 0;
+    /** the variance of estimate */
+    private double variance = 0;
+    /** the number of bytes scanned to compute estimate */
+    private long sampledBytes = 0;
+    /** the number of bytes estimate is about */
+    private long estimatedBytes = 0;
+    /** <code>true</code> if the total is estimated from samples */
+    private boolean approximate = false;
+    /** the distinct values of --distinct, or <code>null</code> */
+    private DistinctSketch distinct;
+
+    /**
+     * Construct an empty aggregate.
+     */
+    public Aggregate() {
+        this(false);
+    }
+
+    /**
+     * Construct an empty aggregate.
+     *
+     * @param distinct
+     *            whether distinct values are counted, for --distinct
+     */
+    public Aggregate(boolean distinct) {
+        this.distinct = distinct ? new DistinctSketch() : null;
+    }
+
+    /**
+     * Count one selected line.
+     *
+     * @param group
+     *            the value of the capture group in the line, or
+     *            <code>null</code> if lines are not grouped
+     */
+    public synchronized void add(String group) {
+        total++;
+        if (group != null) {
+            Long count = groups.get(group);
+            groups.put(group, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Count one selected line and its value, for --distinct.
+     */
+    public synchronized void addDistinct(String value) {
+        total++;
+        distinct.add(value);
+    }
+
+    /**
+     * Add the estimated number of selected lines in part of a file.
+     *
+     * @param estimate
+     *            the estimated number of selected lines
+     * @param variance
+     *            the variance of the estimate
+     * @param sampledBytes
+     *            the number of bytes scanned to estimate
+     * @param bytes
+     *            the number of bytes in the part of the file
+     */
+    public synchronized void addEstimate(double estimate, double variance, long sampledBytes,
+            long bytes) {
+        this.estimate += estimate;
+        this.variance += variance;
+        this.sampledBytes += sampledBytes;
+        this.estimatedBytes += bytes;
+        this.approximate = true;
+    }
+
+    /**
+     * Add the counts of another aggregate to this one.
+     */
+    public synchronized void merge(Aggregate that) {
+        synchronized (that) {
+            total += that.total;
+            estimate += that.estimate;
+            variance += that.variance;
+            sampledBytes += that.sampledBytes;
+            estimatedBytes += that.estimatedBytes;
+            approximate |= that.approximate;
+            if (that.distinct != null) {
+                if (distinct == null) {
+                    distinct = new DistinctSketch();
+                }
+                distinct.merge(that.distinct);
+            }
+            for (Map.Entry<String, Long> e : that.groups.entrySet()) {
+                Long count = groups.get(e.getKey());
+                groups.put(e.getKey(), count == null ? e.getValue() : count + e.getValue());
+            }
+            truncated |= that.truncated;
+        }
+    }
+
+    /**
+     * @return the total number of selected lines, including the estimate
+     */
+    public synchronized long getTotal() {
+        return total + Math.round(estimate);
+    }
+
+    /**
+     * @return the half width of the confidence interval of getTotal(), which
+     *         is 0 unless the total is estimated
+     */
+    public synchronized long getError() {
+        return Math.round(Catalog.GREP_APPROX_Z * Math.sqrt(variance));
+    }
+
+    /**
+     * @return at most k groups with the largest counts, in descending order of
+     *         count. Ties are broken by group value.
+     */
+    public synchronized List<Map.Entry<String, Long>> top(int k) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(groups.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                int c = o2.getValue().compareTo(o1.getValue());
+                return c != 0 ? c : o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        return entries.subList(0, Math.min(k, entries.size()));
+    }
+
+    /**
+     * Keep only the k groups with the largest counts. Used by servers before
+     * sending a top-K aggregate, so the result is exact as long as no server
+     * has more than k groups, and approximate otherwise.
+     */
+    public synchronized void truncate(int k) {
+        if (groups.size() > k) {
+            List<Map.Entry<String, Long>> kept = top(k);
+            Map<String, Long> copy = new HashMap<>();
+            for (Map.Entry<String, Long> e : kept) {
+                copy.put(e.getKey(), e.getValue());
+            }
+            groups.clear();
+            groups.putAll(copy);
+            truncated = true;
+        }
+    }
+
+    /**
+     * Print the aggregate. Without groups, only the total is printed,
+     * otherwise one line per group with its count and value.
+     *
+     * @param grouped
+     *            whether lines were grouped by a capture group
+     * @param k
+     *            the maximum number of groups to print
+     */
+    public synchronized void print(PrintWriter pw, boolean grouped, int k) {
+        if (distinct != null && distinct.isExact()) {
+            pw.println(distinct.count());
+            return;
+        }
+        if (distinct != null) {
+            pw.println(String.format("%d +- %d", distinct.count(),
+                    Math.round(Catalog.GREP_APPROX_Z * distinct.standardError())));
+            System.err.println(String.format("grep: more than %d distinct values, so their "
+                    + "number is estimated, +- %.2f standard deviations",
+                    Catalog.AGGREGATE_DISTINCT_EXACT_VALUES, Catalog.GREP_APPROX_Z));
+            return;
+        }
+        if (!grouped && approximate) {
+            pw.println(String.format("%d +- %d", getTotal(), getError()));
+            System.err.println(String.format("grep: estimated from a sample of %.1f%% of "
+                    + "%d bytes, +- %.2f standard deviations", 100.0 * sampledBytes
+                    / Math.max(1, estimatedBytes), estimatedBytes, Catalog.GREP_APPROX_Z));
+            return;
+        }
+        if (!grouped) {
+            pw.println(total);
+            return;
+        }
+        for (Map.Entry<String, Long> e : top(k)) {
+            pw.println(String.format("%d\t%s", e.getValue(), e.getKey()));
+        }
+        if (truncated) {
+            System.err.println("grep: some hosts have more groups than requested, "
+                    + "so counts may be underestimated");
+        }
+    }
+
+    /**
+     * @return the aggregate in JSON format
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized String toJSONString() {
+        JSONObject json = new JSONObject();
+        json.put("total", total);
+        json.put("groups", new JSONObject(groups));
+        json.put("truncated", truncated);
+        if (approximate) {
+            json.put("estimate", estimate);
+            json.put("variance", variance);
+            json.put("sampledBytes", sampledBytes);
+            json.put("estimatedBytes", estimatedBytes);
+        }
+        if (distinct != null) {
+            json.put("distinct", distinct.toJSON());
+        }
+        return json.toJSONString();
+    }
+
+    /**
+     * @return the aggregate parsed from its JSON format
+     */
+    public static Aggregate fromJSONString(String text) {
+        return fromJSON((JSONObject) JSONValue.parse(text));
+    }
+
+    /**
+     * @return the aggregate parsed from its JSON object
+     */
+    public static Aggregate fromJSON(JSONObject json) {
+        Aggregate aggregate = new Aggregate();
+        aggregate.total = ((Number) json.get("total")).longValue();
+        for (Object e : ((JSONObject) json.get("groups")).entrySet()) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) e;
+            aggregate.groups.put((String) entry.getKey(), ((Number) entry.getValue()).longValue());
+        }
+        aggregate.truncated = (Boolean) json.get("truncated");
+        if (json.containsKey("distinct")) {
+            aggregate.distinct = DistinctSketch.fromJSON((JSONObject) json.get("distinct"));
+        }
+        if (json.containsKey("estimate")) {
+            aggregate.addEstimate(((Number) json.get("estimate")).doubleValue(),
+                    ((Number) json.get("variance")).doubleValue(),
+                    ((Number) json.get("sampledBytes")).longValue(),
+                    ((Number) json.get("estimatedBytes")).longValue());
+        }
+        return aggregate;
+    }
+}
@@ -0,0 +1,142 @@
+package logquerier;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * AhoCorasickSearcher finds any of many literal byte strings in a single pass
+ * over the bytes, with the Aho-Corasick automaton compiled into a DFA. Bytes
+ * which occur in no literal share one column of the transition table, so the
+ * table stays small even for thousands of literals. When ignoring case, only
+ * US-ASCII letters are folded, like HorspoolSearcher.
+ */
+public class AhoCorasickSearcher implements ByteSearcher {
+    /** the column of every byte in the transition table */
+    private final int[] classOf = new int[256];
+    private final int classCount;
+    /**
+     * transitions[state * classCount + class] is the next state, multiplied
+     * by classCount, and complemented if a literal ends at the next state
+     */
+    private final int[] transitions;
+    /**
+     * the length of the longest literal ending at each state, or 0 if no
+     * literal ends there
+     */
+    private final int[] matchLength;
+    private final int maxLength;
+
+    public AhoCorasickSearcher(List<byte[]> literals, boolean ignoreCase) {
+        int classes = 1;
+        int maxLength = 0;
+        int size = 1;
+        for (byte[] literal : literals) {
+            if (literal.length == 0) {
+                throw new IllegalArgumentException("Empty needle");
+            }
+            for (byte b : literal) {
+                int folded = fold(b, ignoreCase) & 0xff;
+                if (classOf[folded] == 0) {
+                    classOf[folded] = classes++;
+                }
+            }
+            maxLength = Math.max(maxLength, literal.length);
+            size += literal.length;
+        }
+        if (ignoreCase) {
+            for (int b = 'A'; b <= 'Z'; b++) {
+                classOf[b] = classOf[b + ('a' - 'A')];
+            }
+        }
+        this.classCount = classes;
+        this.maxLength = maxLength;
+
+        // the trie of all literals, where 0 means no transition
+        int[] trie = new int[size * classes];
+        int[] length = new int[size];
+        int states = 1;
+        for (byte[] literal : literals) {
+            int state = 0;
+            for (byte b : literal) {
+                int index = state * classes + classOf[fold(b, ignoreCase) & 0xff];
+                if (trie[index] == 0) {
+                    trie[index] = states++;
+                }
+                state = trie[index];
+            }
+            length[state] = literal.length;
+        }
+
+        // breadth first, complete the trie into a DFA through failure links
+        this.transitions = Arrays.copyOf(trie, states * classes);
+        this.matchLength = Arrays.copyOf(length, states);
+        int[] failure = new int[states];
+        List<Integer> queue = new ArrayList<>();
+        for (int c = 0; c < classes; c++) {
+            if (trie[c] != 0) {
+                queue.add(trie[c]);
+            }
+        }
+        for (int head = 0; head < queue.size(); head++) {
+            int state = queue.get(head);
+            // a literal ending at the failure state ends here too
+            matchLength[state] = Math.max(matchLength[state], matchLength[failure[state]]);
+            for (int c = 0; c < classes; c++) {
+                int next = trie[state * classes + c];
+                if (next != 0) {
+                    failure[next] = transitions[failure[state] * classes + c];
+                    queue.add(next);
+                } else {
+                    transitions[state * classes + c] = transitions[failure[state] * classes + c];
+                }
+            }
+        }
+        for (int i = 0; i < transitions.length; i++) {
+            int next = transitions[i];
+            transitions[i] = matchLength[next] > 0 ? ~(next * classes) : next * classes;
+        }
+    }
+
+    private static byte fold(byte b, boolean ignoreCase) {
+        if (ignoreCase && b >= 'A' && b <= 'Z') {
+            return (byte) (b + ('a' - 'A'));
+        }
+        return b;
+    }
+
+    @Override
+    public int indexOf(ByteBuffer buf, int from, int to) {
+        int[] transitions = this.transitions;
+        int[] classOf = this.classOf;
+        int state = 0;
+        for (int i = from; i < to; i++) {
+            state = transitions[state + classOf[buf.get(i) & 0xff]];
+            if (state < 0) {
+                return leftmost(buf, i, ~state, to);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A literal which ends later may still start before the first one found,
+     * but only while it is not longer than the longest literal.
+     *
+     * @return the start of the leftmost occurrence, given the one ending first
+     *         at end
+     */
+    private int leftmost(ByteBuffer buf, int end, int state, int to) {
+        int first = end - matchLength[state / classCount] + 1;
+        int stop = Math.min(to, first + maxLength - 1);
+        for (int i = end + 1; i < stop; i++) {
+            state = transitions[state + classOf[buf.get(i) & 0xff]];
+            if (state < 0) {
+                state = ~state;
+                first = Math.min(first, i - matchLength[state / classCount] + 1);
+            }
+        }
+        return first;
+    }
+}
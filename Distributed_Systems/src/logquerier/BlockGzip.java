@@ -0,0 +1,344 @@
+package logquerier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import system.Catalog;
+
+/**
+ * BlockGzip reads gzip compressed logs, and writes them in block gzip
+ * format, whose members are decompressed in parallel.
+ * <p>
+ * A block gzip file is an ordinary gzip file, readable by gzip and zcat, made
+ * of one member for every Catalog.GZIP_BLOCK_BYTES of complete lines. Its
+ * sidecar index, named after the file with INDEX_SUFFIX, is made of:
+ * <ul>
+ * <li>MAGIC, VERSION, the size of the gzip file and the number of members</li>
+ * <li>for every member, its offset in the gzip file and the number of bytes
+ * it decompresses into</li>
+ * </ul>
+ * Since every member holds complete lines, any run of consecutive members
+ * decompresses into complete lines on its own.
+ */
+public class BlockGzip {
+    /** the suffix of the name of the index of a block gzip file */
+    public static final String INDEX_SUFFIX = ".idx";
+    private static final int MAGIC = 0x42475a49;
+    private static final int VERSION = 1;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private BlockGzip() {
+    }
+
+    /**
+     * @return <code>true</code> if the file starts with the magic bytes of
+     *         gzip, or <code>false</code> if it does not or cannot be read
+     */
+    public static boolean isCompressed(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            while (magic.hasRemaining() && channel.read(magic) > 0) {
+            }
+            return magic.position() == 2 && (magic.get(0) & 0xff) == 0x1f
+                    && (magic.get(1) & 0xff) == 0x8b;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the file is the index of a block gzip file
+     */
+    public static boolean isIndex(Path file) {
+        return file.getFileName().toString().endsWith(INDEX_SUFFIX);
+    }
+
+    /**
+     * @return the decompressed stream of a gzip file, whether it has one or
+     *         many members
+     * @throws IOException
+     *             if the file cannot be opened or is not in gzip format
+     */
+    public static InputStream open(Path file) throws IOException {
+        return new GZIPInputStream(Files.newInputStream(file), BUFFER_BYTES);
+    }
+
+    /**
+     * @return the decompressed stream of the members in bytes [start, end) of
+     *         a gzip file
+     * @throws IOException
+     *             if the file cannot be opened or the range does not start
+     *             with a member
+     */
+    public static InputStream open(Path file, long start, long end) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            channel.position(start);
+            InputStream in = new RangeInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), BUFFER_BYTES),
+                    end - start);
+            return new GZIPInputStream(in, BUFFER_BYTES);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * RangeInputStream reads at most a given number of bytes. GZIPInputStream
+     * only reads the next member while available() is positive, so available()
+     * is bounded too.
+     */
+    private static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            remaining -= b < 0 ? 0 : 1;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            remaining -= n < 0 ? 0 : n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    /**
+     * Index is the index of the members of a block gzip file.
+     */
+    public static class Index {
+        /** the offset of every member in the gzip file */
+        private final long[] offsets;
+        /** the number of bytes every member decompresses into */
+        private final long[] lengths;
+        private final long size;
+
+        private Index(long[] offsets, long[] lengths, long size) {
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.size = size;
+        }
+
+        /**
+         * @return the index of a block gzip file, or <code>null</code> if it
+         *         has none, or if it does not describe the file as it is
+         */
+        public static Index open(Path file) {
+            Path indexFile = file.resolveSibling(file.getFileName() + INDEX_SUFFIX);
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(indexFile)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                long size = in.readLong();
+                int members = in.readInt();
+                if (size != Files.size(file) || members < 0) {
+                    return null;
+                }
+                long[] offsets = new long[members];
+                long[] lengths = new long[members];
+                for (int i = 0; i < members; i++) {
+                    offsets[i] = in.readLong();
+                    lengths[i] = in.readLong();
+                    if (offsets[i] < (i == 0 ? 0 : offsets[i - 1] + 1) || offsets[i] >= size) {
+                        return null;
+                    }
+                }
+                return new Index(offsets, lengths, size);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return the number of members
+         */
+        public int members() {
+            return offsets.length;
+        }
+
+        /**
+         * Group consecutive members into chunks which decompress into about
+         * chunkBytes bytes.
+         *
+         * @return the offsets of the chunk boundaries in the gzip file,
+         *         starting with 0 and ending with its size
+         */
+        public List<Long> chunkOffsets(long chunkBytes) {
+            List<Long> chunks = new ArrayList<>();
+            chunks.add(0L);
+            long bytes = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                if (bytes >= chunkBytes) {
+                    chunks.add(offsets[i]);
+                    bytes = 0;
+                }
+                bytes += lengths[i];
+            }
+            chunks.add(size);
+            return chunks;
+        }
+    }
+
+    /**
+     * CountingOutputStream counts the bytes written through it, and leaves
+     * the underlying stream open when closed, so each member can be written
+     * by its own GZIPOutputStream.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Compress a log into a block gzip file named after it with .gz, and write
+     * its index. Both are written to temporary files first, so a reader never
+     * sees a partial file.
+     *
+     * @return the block gzip file
+     * @throws IOException
+     *             if any IO error occurs
+     */
+    public static Path compress(Path log) throws IOException {
+        Path gz = log.resolveSibling(log.getFileName() + ".gz");
+        Path indexFile = gz.resolveSibling(gz.getFileName() + INDEX_SUFFIX);
+        Path tmp = gz.resolveSibling(gz.getFileName() + ".tmp");
+        Path indexTmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        List<Long> bounds = MappedLineReader.splitAtLines(log, Catalog.GZIP_BLOCK_BYTES);
+        try {
+            long size;
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ);
+                    OutputStream file = new BufferedOutputStream(Files.newOutputStream(tmp),
+                            BUFFER_BYTES);
+                    DataOutputStream index = new DataOutputStream(
+                            new BufferedOutputStream(Files.newOutputStream(indexTmp)))) {
+                CountingOutputStream out = new CountingOutputStream(file);
+                ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES);
+                index.writeInt(MAGIC);
+                index.writeInt(VERSION);
+                List<long[]> members = new ArrayList<>();
+                for (int i = 0; i + 1 < bounds.size(); i++) {
+                    members.add(new long[] { out.count, bounds.get(i + 1) - bounds.get(i) });
+                    try (GZIPOutputStream member = new GZIPOutputStream(out, BUFFER_BYTES)) {
+                        for (long position = bounds.get(i); position < bounds.get(i + 1);) {
+                            buf.clear();
+                            buf.limit((int) Math.min(buf.capacity(), bounds.get(i + 1)
+                                    - position));
+                            int n = channel.read(buf, position);
+                            if (n < 0) {
+                                throw new IOException("Truncated while compressed: " + log);
+                            }
+                            member.write(buf.array(), 0, n);
+                            position += n;
+                        }
+                    }
+                }
+                size = out.count;
+                index.writeLong(size);
+                index.writeInt(members.size());
+                for (long[] member : members) {
+                    index.writeLong(member[0]);
+                    index.writeLong(member[1]);
+                }
+            }
+            // the gzip file first, so the index never describes another file
+            Files.move(tmp, gz, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.move(indexTmp, indexFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+            Files.deleteIfExists(indexTmp);
+        }
+        return gz;
+    }
+
+    /**
+     * Compress the logs given as arguments into block gzip files, and remove
+     * the logs, like gzip does, e.g. as the compress command of a log rotator.
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("usage: java BlockGzip file ...");
+            System.exit(-1);
+        }
+        int status = 0;
+        for (String arg : args) {
+            try {
+                Path log = Paths.get(arg);
+                compress(log);
+                Files.delete(log);
+            } catch (IOException e) {
+                System.err.println(String.format("BlockGzip: %s: %s", arg, e.getMessage()));
+                status = 1;
+            }
+        }
+        System.exit(status);
+    }
+}
@@ -0,0 +1,21 @@
+package logquerier;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ByteSearcher finds occurrences of some fixed byte strings in a ByteBuffer.
+ * Implementations must be thread safe.
+ */
+public interface ByteSearcher {
+    /**
+     * @param buf
+     *            the buffer to search in
+     * @param from
+     *            the index to start searching from, inclusive
+     * @param to
+     *            the index to stop searching at, exclusive
+     * @return the index of the first byte of the leftmost occurrence in
+     *         buf[from, to), or -1 if there is no occurrence
+     */
+    int indexOf(ByteBuffer buf, int from, int to);
+}
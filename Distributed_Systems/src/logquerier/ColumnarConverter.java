@@ -0,0 +1,81 @@
+package logquerier;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import system.Catalog;
+import system.CommonUtils;
+import system.DaemonService;
+
+/**
+ * ColumnarConverter is a daemon service which periodically converts the log
+ * files matching Catalog.COLUMNAR_FILES into ColumnarLogs in
+ * Catalog.COLUMNAR_DIR, where Grep finds them. A file is converted once it has
+ * not been modified for Catalog.COLUMNAR_ROTATED_AGE, i.e. once it has been
+ * rotated, and again whenever it changes after all.
+ */
+public class ColumnarConverter implements DaemonService {
+
+    private class Converter implements Runnable {
+        @Override
+        public void run() {
+            for (String pattern : Catalog.COLUMNAR_FILES) {
+                Path glob = Paths.get(pattern);
+                Path dir = glob.getParent() == null ? Paths.get("") : glob.getParent();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                        dir.toAbsolutePath(), glob.getFileName().toString())) {
+                    for (Path file : files) {
+                        if (Files.isRegularFile(file) && !BlockGzip.isIndex(file)
+                                && !BlockGzip.isCompressed(file)) {
+                            convert(file);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
+
+        private void convert(Path file) {
+            try {
+                long age = System.currentTimeMillis()
+                        - Files.getLastModifiedTime(file).toMillis();
+                if (age < Catalog.COLUMNAR_ROTATED_AGE || ColumnarLog.open(file) != null) {
+                    return;
+                }
+                ColumnarLog log = ColumnarLog.convert(file);
+                if (log != null) {
+                    LOGGER.info(String.format("Converted %s: %s lines in %s segments.", file,
+                            log.rows(), log.segmentCount()));
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    private final static Logger LOGGER = CommonUtils.initializeLogger(
+            ColumnarConverter.class.getName(), Catalog.LOG_DIR + Catalog.COLUMNAR_CONVERTER_LOG,
+            false);
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void startServe() throws IOException {
+        scheduler = Executors.newScheduledThreadPool(1);
+        scheduler.scheduleWithFixedDelay(new Converter(), 0, Catalog.COLUMNAR_PERIOD,
+                Catalog.TIME_UNIT);
+    }
+
+    @Override
+    public void stopServe() {
+        scheduler.shutdown();
+    }
+}
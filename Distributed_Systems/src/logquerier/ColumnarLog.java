@@ -0,0 +1,903 @@
+package logquerier;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import system.Catalog;
+
+/**
+ * ColumnarLog is a log file converted into columns of LogFields, which a query
+ * on fields reads instead of the log itself. The lines are stored in segments
+ * of Catalog.COLUMNAR_SEGMENT_ROWS lines, and every segment stores each field
+ * in a separately compressed column:
+ * <ul>
+ * <li>time: the difference to the previous timestamp</li>
+ * <li>level and logger: codes into a dictionary of the segment</li>
+ * <li>message: the message in bytes</li>
+ * </ul>
+ * The footer of the file keeps, for every segment, the range of its
+ * timestamps, its dictionaries, and a bloom filter of the trigrams of its
+ * lines. A query skips the segments which cannot contain a selected line, and
+ * only decompresses the columns it needs of the others.
+ * <p>
+ * Only a whole file which is no longer written is converted, and a ColumnarLog
+ * is only valid while the file has the same identity, size and modification
+ * time, so a query never reads stale columns.
+ */
+public class ColumnarLog {
+    private static final int MAGIC = 0x434f4c53;
+    private static final byte VERSION = 1;
+    private static final int TIME = 0;
+    private static final int LEVEL = 1;
+    private static final int LOGGER = 2;
+    private static final int MESSAGE = 3;
+    private static final int COLUMNS = 4;
+    private static final int BLOOM_HASHES = 3;
+    private static final int BLOOM_BITS_PER_TRIGRAM = 10;
+    /** bounds the bloom filter of a segment to 2MB */
+    private static final int BLOOM_MAX_BITS = 1 << 24;
+    private static final Charset CHARSET = Charset.forName(Catalog.ENCODING);
+    private static final byte NEWLINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    /**
+     * RowSink receives the lines selected from a ColumnarLog.
+     */
+    public interface RowSink {
+        /**
+         * @param lineNumber
+         *            the line number of the selected line in the log file
+         * @param line
+         *            the selected line, or <code>null</code> if lines are not
+         *            needed
+         * @return <code>false</code> to stop selecting
+         */
+        boolean accept(long lineNumber, String line);
+    }
+
+    /**
+     * Segment is the footer entry of one segment.
+     */
+    private static class Segment {
+        long firstRow;
+        int rows;
+        /** the range of the timestamps of the segment, empty if it has none */
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        /** the time of the last timestamp before the segment, or NO_TIME */
+        long carryTime = TimeIndex.NO_TIME;
+        /** dictionaries of levels and loggers; code 0 is an unstructured line */
+        String[] levels;
+        String[] loggers;
+        long[] bloom;
+        final long[] offsets = new long[COLUMNS];
+        final int[] lengths = new int[COLUMNS];
+        final int[] rawLengths = new int[COLUMNS];
+    }
+
+    /**
+     * CacheEntry keeps a loaded ColumnarLog in memory until its file changes.
+     */
+    private static class CacheEntry {
+        final long columnFileModified;
+        final ColumnarLog log;
+
+        CacheEntry(long columnFileModified, ColumnarLog log) {
+            this.columnFileModified = columnFileModified;
+            this.log = log;
+        }
+    }
+
+    private static final Map<Path, CacheEntry> CACHE = new ConcurrentHashMap<>();
+
+    private final Path columnFile;
+    private final String fileKey;
+    private final long size;
+    private final long modified;
+    /** hash of the first min(size, HEAD_BYTES) bytes of the file */
+    private final long headHash;
+    private final List<Segment> segments = new ArrayList<>();
+
+    private ColumnarLog(Path columnFile, String fileKey, long size, long modified,
+            long headHash) {
+        this.columnFile = columnFile;
+        this.fileKey = fileKey;
+        this.size = size;
+        this.modified = modified;
+        this.headHash = headHash;
+    }
+
+    /**
+     * @return the number of lines of the log
+     */
+    public long rows() {
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        Segment last = segments.get(segments.size() - 1);
+        return last.firstRow + last.rows;
+    }
+
+    /**
+     * @return the number of segments
+     */
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the file in which the columns of a log file are stored
+     */
+    public static Path columnFileOf(Path file) {
+        String name = file.toAbsolutePath().normalize().toString();
+        String escaped = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        return Paths.get(Catalog.COLUMNAR_DIR,
+                String.format("%s.%08x.col", escaped, name.hashCode()));
+    }
+
+    /**
+     * @return <code>true</code> if the columns still describe the whole file
+     */
+    private boolean isValidFor(Path file) throws IOException {
+        return Files.size(file) == size
+                && Files.getLastModifiedTime(file).toMillis() == modified
+                && fileKey.equals(TrigramIndex.fileKey(file))
+                && headHash == TrigramIndex.headHash(file, size);
+    }
+
+    /**
+     * Open the columns of a log file.
+     *
+     * @return the columns, or <code>null</code> if the file has not been
+     *         converted or has changed since
+     */
+    public static ColumnarLog open(Path file) {
+        Path columnFile = columnFileOf(file);
+        try {
+            if (!Files.exists(columnFile)) {
+                return null;
+            }
+            long columnFileModified = Files.getLastModifiedTime(columnFile).toMillis();
+            CacheEntry entry = CACHE.get(columnFile);
+            if (entry == null || entry.columnFileModified != columnFileModified) {
+                entry = new CacheEntry(columnFileModified, load(columnFile));
+                CACHE.put(columnFile, entry);
+            }
+            return entry.log.isValidFor(file) ? entry.log : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Convert a log file into columns. The columns are written to a temporary
+     * file first, so readers never see a partially written file.
+     *
+     * @return the columns, or <code>null</code> if the file has changed while
+     *         being converted
+     * @throws IOException
+     *             if any IO error occurs when reading the file or writing the
+     *             columns
+     */
+    public static ColumnarLog convert(Path file) throws IOException {
+        String fileKey = TrigramIndex.fileKey(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        long size = Files.size(file);
+        long headHash = TrigramIndex.headHash(file, size);
+        Path columnFile = columnFileOf(file);
+        ColumnarLog log = new ColumnarLog(columnFile, fileKey, size, modified, headHash);
+
+        Files.createDirectories(columnFile.toAbsolutePath().getParent());
+        Path tmp = columnFile.resolveSibling(columnFile.getFileName() + ".tmp");
+        CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)));
+        try (DataOutputStream out = new DataOutputStream(counter);
+                MappedLineReader reader = new MappedLineReader(file, 0, size,
+                        Catalog.GREP_MAP_WINDOW_BYTES)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            SegmentWriter writer = new SegmentWriter(log, out, counter);
+            Grep.LineDecoder decoder = new Grep.LineDecoder();
+            ByteBuffer window;
+            while ((window = reader.nextWindow()) != null) {
+                int pos = window.position();
+                int limit = window.limit();
+                while (pos < limit) {
+                    // the same lines as Grep: \n or \r\n terminated, and the
+                    // last line may have no terminator
+                    int eol = MappedLineReader.indexOf(window, NEWLINE, pos, limit);
+                    int end;
+                    if (eol < 0) {
+                        eol = limit;
+                        end = limit;
+                    } else {
+                        end = eol > pos && window.get(eol - 1) == CARRIAGE_RETURN ? eol - 1
+                                : eol;
+                    }
+                    writer.add(decoder.decode(window, pos, end));
+                    pos = eol + 1;
+                }
+            }
+            writer.flush();
+            long footer = counter.count;
+            log.writeFooter(out);
+            out.writeLong(footer);
+        }
+
+        if (!log.isValidFor(file)) {
+            Files.delete(tmp);
+            return null;
+        }
+        Files.move(tmp, columnFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return log;
+    }
+
+    /**
+     * CountingOutputStream counts the bytes written through it, so offsets
+     * beyond 2GB can be recorded, unlike with DataOutputStream.size().
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * SegmentWriter splits lines into columns, and writes them as a segment
+     * every Catalog.COLUMNAR_SEGMENT_ROWS lines.
+     */
+    private static class SegmentWriter {
+        private final ColumnarLog log;
+        private final DataOutputStream out;
+        private final CountingOutputStream counter;
+        private final LogFields.Parser parser = new LogFields.Parser();
+        private final ByteArrayOutputStream[] columns = new ByteArrayOutputStream[COLUMNS];
+        private final Map<String, Integer> levels = new LinkedHashMap<>();
+        private final Map<String, Integer> loggers = new LinkedHashMap<>();
+        private final BitSet trigrams = new BitSet(1 << 24);
+        private final Deflater deflater = new Deflater();
+        private Segment segment;
+        /** the last timestamp written */
+        private long lastTime = TimeIndex.NO_TIME;
+        private long nextRow = 0;
+
+        SegmentWriter(ColumnarLog log, DataOutputStream out, CountingOutputStream counter) {
+            this.log = log;
+            this.out = out;
+            this.counter = counter;
+            for (int i = 0; i < COLUMNS; i++) {
+                columns[i] = new ByteArrayOutputStream();
+            }
+        }
+
+        void add(String line) throws IOException {
+            if (segment == null) {
+                segment = new Segment();
+                segment.firstRow = nextRow;
+                segment.carryTime = lastTime;
+            }
+            LogFields fields = parser.parse(line);
+            if (fields.time == TimeIndex.NO_TIME) {
+                TrigramIndex.writeVarint(columns[TIME], 0);
+            } else {
+                // segments are decoded independently, so the first timestamp
+                // of a segment is stored whole
+                long previous = segment.maxTime == Long.MIN_VALUE ? 0 : lastTime;
+                long delta = fields.time - previous;
+                // zigzag, so small negative deltas are short too, and 0 is
+                // left for a line without timestamp
+                TrigramIndex.writeVarint(columns[TIME], ((delta << 1) ^ (delta >> 63)) + 1);
+                segment.minTime = Math.min(segment.minTime, fields.time);
+                segment.maxTime = Math.max(segment.maxTime, fields.time);
+                lastTime = fields.time;
+            }
+            TrigramIndex.writeVarint(columns[LEVEL], code(levels, fields.level));
+            TrigramIndex.writeVarint(columns[LOGGER], code(loggers, fields.logger));
+            byte[] message = fields.message.getBytes(CHARSET);
+            TrigramIndex.writeVarint(columns[MESSAGE], message.length);
+            columns[MESSAGE].write(message);
+
+            byte[] bytes = fields.isStructured() ? line.getBytes(CHARSET) : message;
+            for (int i = 0; i + 2 < bytes.length; i++) {
+                trigrams.set(trigram(bytes[i], bytes[i + 1], bytes[i + 2]));
+            }
+
+            segment.rows++;
+            nextRow++;
+            if (segment.rows == Catalog.COLUMNAR_SEGMENT_ROWS) {
+                flush();
+            }
+        }
+
+        private static int code(Map<String, Integer> dictionary, String value) {
+            if (value == null) {
+                return 0;
+            }
+            Integer code = dictionary.get(value);
+            if (code == null) {
+                code = dictionary.size() + 1;
+                dictionary.put(value, code);
+            }
+            return code;
+        }
+
+        void flush() throws IOException {
+            if (segment == null) {
+                return;
+            }
+            byte[] buf = new byte[64 * 1024];
+            for (int i = 0; i < COLUMNS; i++) {
+                byte[] raw = columns[i].toByteArray();
+                segment.offsets[i] = counter.count;
+                segment.rawLengths[i] = raw.length;
+                deflater.reset();
+                deflater.setInput(raw);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buf);
+                    out.write(buf, 0, n);
+                }
+                segment.lengths[i] = (int) (counter.count - segment.offsets[i]);
+                columns[i].reset();
+            }
+            segment.levels = dictionary(levels);
+            segment.loggers = dictionary(loggers);
+            segment.bloom = bloom(trigrams);
+            levels.clear();
+            loggers.clear();
+            trigrams.clear();
+            log.segments.add(segment);
+            segment = null;
+        }
+
+        private static String[] dictionary(Map<String, Integer> codes) {
+            String[] values = new String[codes.size() + 1];
+            for (Map.Entry<String, Integer> e : codes.entrySet()) {
+                values[e.getValue()] = e.getKey();
+            }
+            return values;
+        }
+
+        private static long[] bloom(BitSet trigrams) {
+            long wanted = (long) trigrams.cardinality() * BLOOM_BITS_PER_TRIGRAM;
+            int bits = 64;
+            while (bits < wanted && bits < BLOOM_MAX_BITS) {
+                bits <<= 1;
+            }
+            long[] bloom = new long[bits / 64];
+            for (int t = trigrams.nextSetBit(0); t >= 0; t = trigrams.nextSetBit(t + 1)) {
+                for (int k = 0; k < BLOOM_HASHES; k++) {
+                    int bit = bloomBit(t, k, bits);
+                    bloom[bit >>> 6] |= 1L << bit;
+                }
+            }
+            return bloom;
+        }
+    }
+
+    private static byte fold(byte b) {
+        if (b >= 'A' && b <= 'Z') {
+            return (byte) (b + ('a' - 'A'));
+        }
+        return b;
+    }
+
+    /**
+     * @return the trigram of 3 bytes, with US-ASCII letters folded to lower
+     *         case like TrigramIndex
+     */
+    private static int trigram(byte a, byte b, byte c) {
+        return (fold(a) & 0xff) << 16 | (fold(b) & 0xff) << 8 | (fold(c) & 0xff);
+    }
+
+    /**
+     * @return bit k of the trigram in a bloom filter of bits bits, by double
+     *         hashing
+     */
+    private static int bloomBit(int trigram, int k, int bits) {
+        long hash = trigram * 0x9E3779B97F4A7C15L;
+        int h1 = (int) (hash >>> 32);
+        int h2 = (int) hash | 1;
+        return (h1 + k * h2) & (bits - 1);
+    }
+
+    /**
+     * @return <code>false</code> if no line of the segment contains the
+     *         literal
+     */
+    private static boolean mayContain(Segment segment, byte[] literal) {
+        int bits = segment.bloom.length * 64;
+        for (int i = 0; i + 2 < literal.length; i++) {
+            int t = trigram(literal[i], literal[i + 1], literal[i + 2]);
+            for (int k = 0; k < BLOOM_HASHES; k++) {
+                int bit = bloomBit(t, k, bits);
+                if ((segment.bloom[bit >>> 6] & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>false</code> if no line of the segment contains any of the
+     *         literals
+     */
+    private static boolean mayContainAny(Segment segment, List<byte[]> literals) {
+        for (byte[] literal : literals) {
+            if (mayContain(segment, literal)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeFooter(DataOutputStream out) throws IOException {
+        out.writeUTF(fileKey);
+        out.writeLong(size);
+        out.writeLong(modified);
+        out.writeLong(headHash);
+        out.writeInt(segments.size());
+        for (Segment segment : segments) {
+            out.writeLong(segment.firstRow);
+            out.writeInt(segment.rows);
+            out.writeLong(segment.minTime);
+            out.writeLong(segment.maxTime);
+            out.writeLong(segment.carryTime);
+            writeDictionary(out, segment.levels);
+            writeDictionary(out, segment.loggers);
+            out.writeInt(segment.bloom.length);
+            for (long word : segment.bloom) {
+                out.writeLong(word);
+            }
+            for (int i = 0; i < COLUMNS; i++) {
+                out.writeLong(segment.offsets[i]);
+                out.writeInt(segment.lengths[i]);
+                out.writeInt(segment.rawLengths[i]);
+            }
+        }
+    }
+
+    private static void writeDictionary(DataOutputStream out, String[] values)
+            throws IOException {
+        out.writeInt(values.length - 1);
+        for (int i = 1; i < values.length; i++) {
+            out.writeUTF(values[i]);
+        }
+    }
+
+    private static String[] readDictionary(DataInputStream in) throws IOException {
+        String[] values = new String[in.readInt() + 1];
+        for (int i = 1; i < values.length; i++) {
+            values[i] = in.readUTF();
+        }
+        return values;
+    }
+
+    private static ColumnarLog load(Path columnFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(columnFile, StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, 5);
+            ByteBuffer trailer = read(channel, channel.size() - 8, 8);
+            if (header.getInt() != MAGIC || header.get() != VERSION) {
+                throw new IOException("Unknown columnar format: " + columnFile);
+            }
+            long footer = trailer.getLong();
+            ByteBuffer buf = read(channel, footer, (int) (channel.size() - 8 - footer));
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(buf.array(), 0, buf.limit()));
+            ColumnarLog log = new ColumnarLog(columnFile, in.readUTF(), in.readLong(),
+                    in.readLong(), in.readLong());
+            int segmentCount = in.readInt();
+            for (int s = 0; s < segmentCount; s++) {
+                Segment segment = new Segment();
+                segment.firstRow = in.readLong();
+                segment.rows = in.readInt();
+                segment.minTime = in.readLong();
+                segment.maxTime = in.readLong();
+                segment.carryTime = in.readLong();
+                segment.levels = readDictionary(in);
+                segment.loggers = readDictionary(in);
+                segment.bloom = new long[in.readInt()];
+                for (int i = 0; i < segment.bloom.length; i++) {
+                    segment.bloom[i] = in.readLong();
+                }
+                for (int i = 0; i < COLUMNS; i++) {
+                    segment.offsets[i] = in.readLong();
+                    segment.lengths[i] = in.readInt();
+                    segment.rawLengths[i] = in.readInt();
+                }
+                log.segments.add(segment);
+            }
+            return log;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length)
+            throws IOException {
+        if (position < 0 || length < 0) {
+            throw new IOException("Truncated columnar file");
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Truncated columnar file");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Column is one decompressed column of a segment.
+     */
+    private static class Column {
+        final byte[] bytes;
+        int pos = 0;
+
+        Column(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = bytes[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * SegmentReader reads the columns of one segment, each at most once.
+     */
+    private class SegmentReader {
+        private final FileChannel channel;
+        private final Inflater inflater;
+        private final Segment segment;
+        long[] times;
+        int[] levels;
+        int[] loggers;
+        private Column messages;
+        private ByteBuffer messageBuffer;
+        private int[] messageStarts;
+        private int[] messageLengths;
+
+        SegmentReader(FileChannel channel, Inflater inflater, Segment segment) {
+            this.channel = channel;
+            this.inflater = inflater;
+            this.segment = segment;
+        }
+
+        void read(int column) throws IOException {
+            if (column == TIME && times == null) {
+                Column c = inflate(TIME);
+                times = new long[segment.rows];
+                long last = 0;
+                for (int i = 0; i < segment.rows; i++) {
+                    long zigzag = c.readVarint();
+                    if (zigzag == 0) {
+                        times[i] = TimeIndex.NO_TIME;
+                    } else {
+                        zigzag--;
+                        last += (zigzag >>> 1) ^ -(zigzag & 1);
+                        times[i] = last;
+                    }
+                }
+            } else if (column == LEVEL && levels == null) {
+                levels = codes(inflate(LEVEL));
+            } else if (column == LOGGER && loggers == null) {
+                loggers = codes(inflate(LOGGER));
+            } else if (column == MESSAGE && messages == null) {
+                messages = inflate(MESSAGE);
+                messageBuffer = ByteBuffer.wrap(messages.bytes).order(ByteOrder.nativeOrder());
+                messageStarts = new int[segment.rows];
+                messageLengths = new int[segment.rows];
+                for (int i = 0; i < segment.rows; i++) {
+                    messageLengths[i] = (int) messages.readVarint();
+                    messageStarts[i] = messages.pos;
+                    messages.pos += messageLengths[i];
+                }
+            }
+        }
+
+        private int[] codes(Column column) {
+            int[] codes = new int[segment.rows];
+            for (int i = 0; i < segment.rows; i++) {
+                codes[i] = (int) column.readVarint();
+            }
+            return codes;
+        }
+
+        String message(int i) {
+            return new String(messages.bytes, messageStarts[i], messageLengths[i], CHARSET);
+        }
+
+        boolean messageContains(ByteSearcher searcher, int i) {
+            return searcher.indexOf(messageBuffer, messageStarts[i],
+                    messageStarts[i] + messageLengths[i]) >= 0;
+        }
+
+        private Column inflate(int column) throws IOException {
+            ByteBuffer compressed = ColumnarLog.read(channel, segment.offsets[column],
+                    segment.lengths[column]);
+            byte[] bytes = new byte[segment.rawLengths[column]];
+            inflater.reset();
+            inflater.setInput(compressed.array(), 0, compressed.limit());
+            try {
+                int n = 0;
+                while (n < bytes.length) {
+                    int inflated = inflater.inflate(bytes, n, bytes.length - n);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput()
+                            || inflater.needsDictionary())) {
+                        throw new IOException("Truncated column in " + columnFile);
+                    }
+                    n += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt column in " + columnFile, e);
+            }
+            return new Column(bytes);
+        }
+    }
+
+    /**
+     * Select the lines satisfying all predicates and logged in [since, until).
+     * Like --since and --until of Grep, a line without timestamp is logged at
+     * the time of the line before it. Segments which cannot contain a selected
+     * line are skipped, only the columns the predicates are on are read, and
+     * the other columns only once a line of the segment is selected.
+     *
+     * @param lineLiterals
+     *            byte strings one of which every selected line contains, or
+     *            <code>null</code>
+     * @param ignoreCase
+     *            if <code>true</code>, US-ASCII letters of lineLiterals match
+     *            either case
+     * @param needsLines
+     *            if <code>true</code>, selected lines are passed to sink,
+     *            otherwise only their line numbers
+     * @return <code>false</code> if sink stopped selecting
+     * @throws IOException
+     *             if the columns cannot be read
+     */
+    public boolean select(List<FieldPredicate> predicates, long since, long until,
+            List<byte[]> lineLiterals, boolean ignoreCase, boolean needsLines, RowSink sink)
+            throws IOException {
+        boolean timeRange = since != TimeIndex.NO_TIME || until != Long.MAX_VALUE;
+        // every list has a literal contained in every selected line
+        List<List<byte[]>> literals = new ArrayList<>();
+        if (lineLiterals != null) {
+            literals.add(lineLiterals);
+        }
+        // a message without any literal required by a predicate on it is
+        // rejected before it is decoded
+        ByteSearcher[] messageSearchers = new ByteSearcher[predicates.size()];
+        for (int p = 0; p < predicates.size(); p++) {
+            List<String> required = predicates.get(p).requiredLiterals();
+            if (required != null) {
+                List<byte[]> bytes = new ArrayList<>();
+                for (String literal : required) {
+                    bytes.add(literal.getBytes(CHARSET));
+                }
+                literals.add(bytes);
+                if (predicates.get(p).getField() == FieldPredicate.Field.MESSAGE) {
+                    messageSearchers[p] = HorspoolSearcher.anyOf(bytes, false);
+                }
+            }
+        }
+        // lines which contain none of lineLiterals are dropped before they
+        // are put together, if the literals are always within one field
+        ByteSearcher searcher = lineLiterals == null || mayCrossFields(lineLiterals) ? null
+                : HorspoolSearcher.anyOf(lineLiterals, ignoreCase);
+
+        LogFields.Parser parser = new LogFields.Parser();
+        Inflater inflater = new Inflater();
+        try (FileChannel channel = FileChannel.open(columnFile, StandardOpenOption.READ)) {
+            for (Segment segment : segments) {
+                boolean[] levelAccepted = accepted(segment.levels, predicates,
+                        FieldPredicate.Field.LEVEL);
+                boolean[] loggerAccepted = accepted(segment.loggers, predicates,
+                        FieldPredicate.Field.LOGGER);
+                if (levelAccepted == null || loggerAccepted == null
+                        || !mayMatch(segment, predicates, since, until, literals)) {
+                    continue;
+                }
+
+                SegmentReader reader = new SegmentReader(channel, inflater, segment);
+                if (timeRange) {
+                    reader.read(TIME);
+                }
+                for (FieldPredicate predicate : predicates) {
+                    reader.read(predicate.getField().ordinal());
+                }
+                boolean[] levelContains = null;
+                boolean[] loggerContains = null;
+                if (searcher != null) {
+                    levelContains = contains(segment.levels, searcher);
+                    loggerContains = contains(segment.loggers, searcher);
+                    reader.read(LEVEL);
+                    reader.read(LOGGER);
+                    reader.read(MESSAGE);
+                }
+                long time = segment.carryTime;
+                for (int i = 0; i < segment.rows; i++) {
+                    if (timeRange) {
+                        time = reader.times[i] == TimeIndex.NO_TIME ? time : reader.times[i];
+                        if (time < since || time >= until) {
+                            continue;
+                        }
+                    }
+                    if ((reader.levels != null && !levelAccepted[reader.levels[i]])
+                            || (reader.loggers != null && !loggerAccepted[reader.loggers[i]])) {
+                        continue;
+                    }
+                    String message = null;
+                    boolean selected = true;
+                    for (int p = 0; p < predicates.size(); p++) {
+                        FieldPredicate predicate = predicates.get(p);
+                        if (predicate.getField() == FieldPredicate.Field.TIME) {
+                            selected = predicate.testTime(reader.times[i]);
+                        } else if (predicate.getField() == FieldPredicate.Field.MESSAGE) {
+                            if (messageSearchers[p] != null
+                                    && !reader.messageContains(messageSearchers[p], i)) {
+                                selected = false;
+                            } else {
+                                message = message == null ? reader.message(i) : message;
+                                selected = predicate.testString(message);
+                            }
+                        }
+                        if (!selected) {
+                            break;
+                        }
+                    }
+                    if (!selected || (searcher != null && !levelContains[reader.levels[i]]
+                            && !loggerContains[reader.loggers[i]]
+                            && !reader.messageContains(searcher, i))) {
+                        continue;
+                    }
+
+                    String line = null;
+                    if (needsLines) {
+                        for (int column = 0; column < COLUMNS; column++) {
+                            reader.read(column);
+                        }
+                        message = message == null ? reader.message(i) : message;
+                        line = parser.toLine(reader.times[i],
+                                segment.levels[reader.levels[i]],
+                                segment.loggers[reader.loggers[i]], message);
+                    }
+                    if (!sink.accept(segment.firstRow + i + 1, line)) {
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>false</code> if the footer entry shows that no line of the
+     *         segment can be selected
+     */
+    private static boolean mayMatch(Segment segment, List<FieldPredicate> predicates,
+            long since, long until, List<List<byte[]>> literals) {
+        // lines without timestamp may inherit carryTime
+        long min = Math.min(segment.minTime, segment.carryTime);
+        long max = Math.max(segment.maxTime, segment.carryTime);
+        if (max < since || min >= until) {
+            return false;
+        }
+        for (FieldPredicate predicate : predicates) {
+            if (predicate.getField() == FieldPredicate.Field.TIME
+                    && !predicate.mayMatchTimes(segment.minTime, segment.maxTime)) {
+                return false;
+            }
+        }
+        for (List<byte[]> anyOf : literals) {
+            if (!mayContainAny(segment, anyOf)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if a literal may occur in a line across two
+     *         fields, i.e. it contains a separator, or in the timestamp, i.e.
+     *         it contains only digits and dashes
+     */
+    private static boolean mayCrossFields(List<byte[]> literals) {
+        for (byte[] literal : literals) {
+            boolean timestamp = true;
+            for (byte b : literal) {
+                if (b == ' ' || b == '[' || b == ']' || b == ':') {
+                    return true;
+                }
+                timestamp &= (b >= '0' && b <= '9') || b == '-';
+            }
+            if (timestamp) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return contains[code] is <code>true</code> if the dictionary entry
+     *         contains a literal found by searcher
+     */
+    private static boolean[] contains(String[] dictionary, ByteSearcher searcher) {
+        boolean[] contains = new boolean[dictionary.length];
+        for (int code = 1; code < dictionary.length; code++) {
+            byte[] bytes = dictionary[code].getBytes(CHARSET);
+            contains[code] = searcher.indexOf(ByteBuffer.wrap(bytes), 0, bytes.length) >= 0;
+        }
+        return contains;
+    }
+
+    /**
+     * @return accepted[code] is <code>true</code> if the dictionary entry
+     *         satisfies all predicates on field, or <code>null</code> if no
+     *         entry does
+     */
+    private static boolean[] accepted(String[] dictionary, List<FieldPredicate> predicates,
+            FieldPredicate.Field field) {
+        boolean[] accepted = new boolean[dictionary.length];
+        boolean any = false;
+        for (int code = 0; code < dictionary.length; code++) {
+            accepted[code] = true;
+            for (FieldPredicate predicate : predicates) {
+                if (predicate.getField() == field && !predicate.testString(dictionary[code])) {
+                    accepted[code] = false;
+                    break;
+                }
+            }
+            any |= accepted[code];
+        }
+        return any ? accepted : null;
+    }
+}
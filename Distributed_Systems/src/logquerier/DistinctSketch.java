@@ -0,0 +1,179 @@
+package logquerier;
+
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import system.Catalog;
+
+/**
+ * DistinctSketch counts the distinct values added to it, in memory bounded
+ * no matter how many values are added. Up to
+ * Catalog.AGGREGATE_DISTINCT_EXACT_VALUES values are kept in a set, so the
+ * count is exact; beyond that, the values are folded into a HyperLogLog
+ * sketch of 2<sup>Catalog.AGGREGATE_DISTINCT_PRECISION</sup> registers, whose
+ * count has a relative standard error of 1.04 / sqrt(registers).
+ * <p>
+ * Sketches of the same precision merge into the sketch of the union of their
+ * values, so LogQueryService only sends sketches, which RemoteGrepClient
+ * merges. A DistinctSketch is not thread safe.
+ */
+public class DistinctSketch {
+    private static final int PRECISION = Catalog.AGGREGATE_DISTINCT_PRECISION;
+    private static final int REGISTERS = 1 << PRECISION;
+
+    /** the values added, or <code>null</code> once they are folded */
+    private Set<String> values = new HashSet<>();
+    /**
+     * the registers of HyperLogLog, or <code>null</code> while values are
+     * kept. Register j holds the largest rank of the hashes of the values
+     * falling into it.
+     */
+    private byte[] registers = null;
+
+    /**
+     * Add a value.
+     */
+    public void add(String value) {
+        if (registers != null) {
+            addHash(hash(value));
+            return;
+        }
+        values.add(value);
+        if (values.size() > Catalog.AGGREGATE_DISTINCT_EXACT_VALUES) {
+            fold();
+        }
+    }
+
+    /**
+     * Switch from the set of values to the registers.
+     */
+    private void fold() {
+        registers = new byte[REGISTERS];
+        for (String value : values) {
+            addHash(hash(value));
+        }
+        values = null;
+    }
+
+    private void addHash(long hash) {
+        // the first bits choose the register, and the rank is the position
+        // of the first 1 bit of the others
+        int j = (int) (hash >>> (64 - PRECISION));
+        int rank = Math.min(Long.numberOfLeadingZeros(hash << PRECISION), 64 - PRECISION) + 1;
+        if (registers[j] < rank) {
+            registers[j] = (byte) rank;
+        }
+    }
+
+    /**
+     * @return a 64 bit hash of the value: FNV-1a over its characters, whose
+     *         bits are then mixed by the finalizer of MurmurHash3
+     */
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9e53ebe8cf9L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Add the values of another sketch to this one.
+     */
+    public void merge(DistinctSketch that) {
+        if (that.registers == null) {
+            for (String value : that.values) {
+                add(value);
+            }
+            return;
+        }
+        if (registers == null) {
+            fold();
+        }
+        for (int j = 0; j < REGISTERS; j++) {
+            if (registers[j] < that.registers[j]) {
+                registers[j] = that.registers[j];
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if count() is exact
+     */
+    public boolean isExact() {
+        return registers == null;
+    }
+
+    /**
+     * @return the number of distinct values added, which is estimated once
+     *         there are more than Catalog.AGGREGATE_DISTINCT_EXACT_VALUES
+     */
+    public long count() {
+        if (registers == null) {
+            return values.size();
+        }
+        double sum = 0;
+        int zeros = 0;
+        for (byte rank : registers) {
+            sum += Math.scalb(1.0, -rank);
+            zeros += rank == 0 ? 1 : 0;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        double estimate = alpha * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // linear counting is more accurate for small counts
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return the standard error of count(), which is 0 if it is exact
+     */
+    public double standardError() {
+        return registers == null ? 0 : count() * 1.04 / Math.sqrt(REGISTERS);
+    }
+
+    /**
+     * @return the sketch as a JSON object, holding either the values or the
+     *         registers in base 64
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        if (registers == null) {
+            JSONArray array = new JSONArray();
+            array.addAll(values);
+            json.put("values", array);
+        } else {
+            json.put("registers", Base64.getEncoder().encodeToString(registers));
+        }
+        return json;
+    }
+
+    /**
+     * @return the sketch parsed from its JSON object
+     */
+    public static DistinctSketch fromJSON(JSONObject json) {
+        DistinctSketch sketch = new DistinctSketch();
+        if (json.containsKey("registers")) {
+            sketch.values = null;
+            sketch.registers = Base64.getDecoder().decode((String) json.get("registers"));
+        } else {
+            for (Object value : (JSONArray) json.get("values")) {
+                sketch.values.add((String) value);
+            }
+        }
+        return sketch;
+    }
+}
@@ -0,0 +1,267 @@
+package logquerier;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.cli.ParseException;
+
+/**
+ * FieldPredicate is a condition on one field of a log line, given to Grep as
+ * <code>--where field op value</code> without spaces, e.g.
+ * <code>level&gt;=WARNING</code> or <code>logger=system.*</code>. The fields
+ * are those of LogFields:
+ * <ul>
+ * <li>time, compared with &lt;, &lt;=, &gt; or &gt;= to a time in the form of
+ * --since</li>
+ * <li>level, compared with &lt;, &lt;=, &gt; or &gt;= by severity, or matched
+ * like logger</li>
+ * <li>logger and message, matched with = or != to a glob, in which * matches
+ * any string and ? any character, or with ~ or !~ to a regular expression
+ * found anywhere in the field</li>
+ * </ul>
+ * An unstructured line has neither level nor logger, which = and ~ never
+ * match and != and !~ always do, and a line without timestamp never satisfies
+ * a condition on time.
+ */
+public class FieldPredicate {
+    private static final Pattern SYNTAX = Pattern.compile(
+            "(time|level|logger|message)(!=|!~|<=|>=|<|>|=|~)(.*)", Pattern.DOTALL);
+    /** severities of common level names which java.util.logging does not know */
+    private static final Map<String, Integer> LEVEL_ALIASES = new HashMap<>();
+    static {
+        LEVEL_ALIASES.put("FATAL", 1100);
+        LEVEL_ALIASES.put("ERROR", Level.SEVERE.intValue());
+        LEVEL_ALIASES.put("WARN", Level.WARNING.intValue());
+        LEVEL_ALIASES.put("DEBUG", Level.FINE.intValue());
+        LEVEL_ALIASES.put("TRACE", Level.FINER.intValue());
+    }
+    private static final int NO_RANK = Integer.MIN_VALUE;
+    private static final Map<String, Integer> RANKS = new ConcurrentHashMap<>();
+
+    public enum Field {
+        TIME, LEVEL, LOGGER, MESSAGE
+    }
+
+    private final String text;
+    private final Field field;
+    private final String op;
+    /** the glob or regular expression of =, !=, ~ and !~ */
+    private final String value;
+    /** the pattern of =, !=, ~ and !~ */
+    private final Pattern pattern;
+    /** the time or level rank compared with by &lt;, &lt;=, &gt; and &gt;= */
+    private final long bound;
+
+    private FieldPredicate(String text, Field field, String op, String value, Pattern pattern,
+            long bound) {
+        this.text = text;
+        this.field = field;
+        this.op = op;
+        this.value = value;
+        this.pattern = pattern;
+        this.bound = bound;
+    }
+
+    /**
+     * Parse the value of --where.
+     *
+     * @throws ParseException
+     *             if the predicate is not valid
+     */
+    public static FieldPredicate parse(String text) throws ParseException {
+        Matcher matcher = SYNTAX.matcher(text);
+        if (!matcher.matches()) {
+            throw new ParseException(String.format("Invalid predicate: %s", text));
+        }
+        Field field = Field.valueOf(matcher.group(1).toUpperCase());
+        String op = matcher.group(2);
+        String value = matcher.group(3);
+        boolean ordered = op.startsWith("<") || op.startsWith(">");
+        if (ordered) {
+            long bound = NO_RANK;
+            if (field == Field.TIME) {
+                bound = Grep.parseTime(value);
+            } else if (field == Field.LEVEL) {
+                bound = rank(value);
+            }
+            if (bound == NO_RANK) {
+                throw new ParseException(String.format("Invalid predicate: %s", text));
+            }
+            return new FieldPredicate(text, field, op, null, null, bound);
+        }
+        if (field == Field.TIME) {
+            throw new ParseException(String.format("Invalid predicate: %s", text));
+        }
+        try {
+            Pattern pattern = op.endsWith("~") ? Pattern.compile(value)
+                    : Pattern.compile(globToRegex(value), Pattern.DOTALL);
+            return new FieldPredicate(text, field, op, value, pattern, 0);
+        } catch (PatternSyntaxException e) {
+            throw new ParseException(String.format("Invalid predicate: %s", text));
+        }
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literal = 0;
+        for (int i = 0; i <= glob.length(); i++) {
+            char c = i < glob.length() ? glob.charAt(i) : '*';
+            if (c == '*' || c == '?') {
+                if (literal < i) {
+                    regex.append(Pattern.quote(glob.substring(literal, i)));
+                }
+                if (i < glob.length()) {
+                    regex.append(c == '*' ? ".*" : ".");
+                }
+                literal = i + 1;
+            }
+        }
+        return regex.toString();
+    }
+
+    /**
+     * @return the severity of a level name, or NO_RANK if it is not a level
+     */
+    static int rank(String level) {
+        Integer rank = RANKS.get(level);
+        if (rank == null) {
+            String name = level.toUpperCase();
+            rank = LEVEL_ALIASES.get(name);
+            if (rank == null) {
+                try {
+                    rank = Level.parse(name).intValue();
+                } catch (IllegalArgumentException e) {
+                    rank = NO_RANK;
+                }
+            }
+            RANKS.put(level, rank);
+        }
+        return rank;
+    }
+
+    /**
+     * @return the field the predicate is on
+     */
+    public Field getField() {
+        return field;
+    }
+
+    /**
+     * @return <code>true</code> if a line logged at time satisfies the
+     *         predicate, which must be on time
+     */
+    public boolean testTime(long time) {
+        return time != TimeIndex.NO_TIME && compare(time);
+    }
+
+    private boolean compare(long value) {
+        switch (op) {
+        case "<":
+            return value < bound;
+        case "<=":
+            return value <= bound;
+        case ">":
+            return value > bound;
+        default:
+            return value >= bound;
+        }
+    }
+
+    /**
+     * @param value
+     *            the field, or <code>null</code> if the line is unstructured
+     * @return <code>true</code> if a line whose field is value satisfies the
+     *         predicate, which must be on level, logger or message
+     */
+    public boolean testString(String value) {
+        if (pattern == null) {
+            int rank = value == null ? NO_RANK : rank(value);
+            return rank != NO_RANK && compare(rank);
+        }
+        boolean negated = op.startsWith("!");
+        if (value == null) {
+            return negated;
+        }
+        Matcher matcher = pattern.matcher(value);
+        return (op.endsWith("~") ? matcher.find() : matcher.matches()) ^ negated;
+    }
+
+    /**
+     * @return <code>true</code> if the line satisfies the predicate
+     */
+    public boolean test(LogFields fields) {
+        switch (field) {
+        case TIME:
+            return testTime(fields.time);
+        case LEVEL:
+            return testString(fields.level);
+        case LOGGER:
+            return testString(fields.logger);
+        default:
+            return testString(fields.message);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the line satisfies all predicates
+     */
+    public static boolean testAll(List<FieldPredicate> predicates, LogFields fields) {
+        for (FieldPredicate predicate : predicates) {
+            if (!predicate.test(fields)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>false</code> if no line logged in [min, max] satisfies the
+     *         predicate, which must be on time
+     */
+    public boolean mayMatchTimes(long min, long max) {
+        if (min > max) {
+            return false;
+        }
+        switch (op) {
+        case "<":
+            return min < bound;
+        case "<=":
+            return min <= bound;
+        case ">":
+            return max > bound;
+        default:
+            return max >= bound;
+        }
+    }
+
+    /**
+     * @return a list of non empty literals such that every field satisfying
+     *         the predicate contains at least one of them, or <code>null</code>
+     *         if no such list is known
+     */
+    public List<String> requiredLiterals() {
+        if (pattern == null || op.startsWith("!")) {
+            return null;
+        }
+        if (op.equals("~")) {
+            return RequiredLiterals.of(value);
+        }
+        String longest = "";
+        for (String fragment : value.split("[*?]")) {
+            longest = fragment.length() > longest.length() ? fragment : longest;
+        }
+        return longest.isEmpty() ? null : Collections.singletonList(longest);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
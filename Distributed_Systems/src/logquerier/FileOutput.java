@@ -0,0 +1,107 @@
+package logquerier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FileOutput is a thread safe buffer for the output lines of grepping one
+ * file. Files are grepped concurrently, but their output has to be printed in
+ * file order, so a worker appends lines to the buffer of its file, while the
+ * printing thread takes them out once all preceding files are printed. A
+ * worker blocks when the buffer is full, until the printing thread catches up
+ * with the file or abandons it.
+ */
+public class FileOutput implements OrderedMerge.Source {
+    /** the count passed to finish when the file could not be grepped */
+    public static final int NO_COUNT = -1;
+
+    private final int capacity;
+    private List<String> lines = new ArrayList<>();
+    private boolean done = false;
+    private boolean abandoned = false;
+    private int countMatches = NO_COUNT;
+
+    /**
+     * @param capacity
+     *            the maximum number of lines buffered before a worker blocks
+     */
+    public FileOutput(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Append a line, waiting while the buffer is full.
+     *
+     * @return <code>false</code> if the output has been abandoned, so the
+     *         worker should stop
+     */
+    public synchronized boolean add(String line) {
+        while (lines.size() >= capacity && !abandoned) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (abandoned) {
+            return false;
+        }
+        lines.add(line);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Called by the worker once the file has been grepped.
+     *
+     * @param countMatches
+     *            the number of selected lines, or NO_COUNT if the file could
+     *            not be grepped
+     */
+    public synchronized void finish(int countMatches) {
+        this.countMatches = countMatches;
+        this.done = true;
+        notifyAll();
+    }
+
+    /**
+     * Called by the printing thread when no more lines are needed. Wakes up a
+     * worker blocked on a full buffer.
+     */
+    public synchronized void abandon() {
+        abandoned = true;
+        lines.clear();
+        notifyAll();
+    }
+
+    /**
+     * Wait until lines are available or the file is done.
+     *
+     * @return the buffered lines, or <code>null</code> if the file is done and
+     *         all lines have been taken
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    @Override
+    public synchronized List<String> take() throws InterruptedException {
+        while (lines.isEmpty() && !done) {
+            wait();
+        }
+        if (lines.isEmpty()) {
+            return null;
+        }
+        List<String> taken = lines;
+        lines = new ArrayList<>();
+        notifyAll();
+        return taken;
+    }
+
+    /**
+     * @return the number of selected lines in the file, or NO_COUNT. Only
+     *         valid after take() returns <code>null</code>.
+     */
+    public synchronized int getCountMatches() {
+        return countMatches;
+    }
+}
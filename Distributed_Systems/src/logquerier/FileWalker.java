@@ -0,0 +1,258 @@
+package logquerier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import system.Catalog;
+
+/**
+ * FileWalker finds the files matching a file name pattern which may span
+ * several directory levels, such as <code>logs/2015-*&#47;*.log</code> or
+ * <code>logs/**&#47;machine.*.log</code>, in which ** matches any number of
+ * directories, including none. Recursively, every directory matched is also
+ * searched for all files below it, like <code>grep -r</code>.
+ * <p>
+ * The pattern is split into its base directory, the leading names without
+ * glob characters, and the glob below it. The tree under the base directory
+ * is traversed in parallel on WALK_POOL, one task per directory, and only as
+ * deep as the glob can match. Symbolic links to directories are not
+ * followed, so a link cycle cannot trap the traversal.
+ */
+public class FileWalker {
+    /** the pool on which directories are listed in parallel */
+    private static final ForkJoinPool WALK_POOL = new ForkJoinPool(Catalog.GREP_WALK_THREADS);
+
+    private FileWalker() {
+    }
+
+    /**
+     * @return <code>true</code> if a directory name of the pattern, rather
+     *         than only its file name, has glob characters, so it is not
+     *         found by listing one directory
+     */
+    public static boolean isMultiLevel(String pattern) {
+        String parent = new File(pattern).getParent();
+        return pattern.contains("**") || (parent != null && hasGlob(parent));
+    }
+
+    private static boolean hasGlob(String name) {
+        // an escaped character has to go through the matcher as well
+        for (char c : new char[] { '*', '?', '[', '{', '\\' }) {
+            if (name.indexOf(c) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a pattern matching only the file name itself, whatever glob
+     *         characters it has
+     */
+    public static String escape(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ("*?[]{}\\".indexOf(c) >= 0) {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find the files matching a pattern.
+     *
+     * @param recursive
+     *            if <code>true</code>, the files below matched directories are
+     *            found too
+     * @return the names of the files found, in the form of the pattern, i.e.
+     *         relative if it is relative, sorted by name
+     */
+    public static List<String> find(String pattern, boolean recursive) {
+        List<String> names = new ArrayList<>();
+        for (String name : pattern.split("/+", -1)) {
+            names.add(name);
+        }
+        int baseNames = 0;
+        while (baseNames < names.size() - 1 && !hasGlob(names.get(baseNames))) {
+            baseNames++;
+        }
+        String base = String.join("/", names.subList(0, baseNames));
+        String glob = String.join("/", names.subList(baseNames, names.size()));
+        if (pattern.startsWith("/") && base.isEmpty()) {
+            // the root directory has an empty name
+            base = "/";
+        }
+        String prefix = base.isEmpty() || base.endsWith("/") ? base : base + "/";
+
+        Queue<String> found = new ConcurrentLinkedQueue<>();
+        if (!hasGlob(glob)) {
+            // a path without glob characters
+            String name = prefix + glob;
+            Path path = Paths.get(name);
+            if (Files.isRegularFile(path)) {
+                found.add(name);
+            } else if (recursive && Files.isDirectory(path)) {
+                String dirPrefix = name.endsWith("/") ? name : name + "/";
+                WALK_POOL.invoke(new WalkTask(null, path, dirPrefix, null, 1, found));
+            }
+        } else {
+            Path dir = Paths.get(base.isEmpty() ? System.getProperty("user.dir") : base);
+            WALK_POOL.invoke(new WalkTask(new Glob(glob, recursive), dir, prefix, "", 1, found));
+        }
+        List<String> files = new ArrayList<>(found);
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Glob is the part of a pattern below its base directory.
+     */
+    private static class Glob {
+        private final List<PathMatcher> matchers = new ArrayList<>();
+        /**
+         * the matcher of the last name of the glob, which is cheaper to try
+         * first, or <code>null</code> if it is **
+         */
+        private final PathMatcher nameMatcher;
+        /**
+         * the matchers of the directory names before the first **, which
+         * prune the directories not leading to matches
+         */
+        private final List<PathMatcher> levels = new ArrayList<>();
+        /** the deepest level a match can be at, 1 being the base directory */
+        private final int maxDepth;
+        private final boolean recursive;
+
+        Glob(String glob, boolean recursive) {
+            FileSystem fs = FileSystems.getDefault();
+            matchers.add(fs.getPathMatcher("glob:" + glob));
+            if (glob.contains("**/")) {
+                // ** of PathMatcher matches at least one directory
+                matchers.add(fs.getPathMatcher("glob:" + glob.replace("**/", "")));
+            }
+            String[] names = glob.split("/");
+            String last = names[names.length - 1];
+            this.nameMatcher = last.contains("**") ? null : fs.getPathMatcher("glob:" + last);
+            for (int i = 0; i < names.length - 1 && !names[i].contains("**"); i++) {
+                levels.add(fs.getPathMatcher("glob:" + names[i]));
+            }
+            this.maxDepth = glob.contains("**") ? Integer.MAX_VALUE : names.length;
+            this.recursive = recursive;
+        }
+
+        /**
+         * @return <code>true</code> if the entry named fileName in the
+         *         directory named relative below the base directory matches
+         */
+        boolean matches(String relative, String fileName) {
+            if (nameMatcher != null && !nameMatcher.matches(Paths.get(fileName))) {
+                return false;
+            }
+            Path path = Paths.get(relative + fileName);
+            for (PathMatcher matcher : matchers) {
+                if (matcher.matches(path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return <code>true</code> if the directory named fileName at level
+         *         depth may hold matches
+         */
+        boolean mayHoldMatches(int depth, String fileName) {
+            return depth < maxDepth && (depth > levels.size()
+                    || levels.get(depth - 1).matches(Paths.get(fileName)));
+        }
+    }
+
+    /**
+     * WalkTask lists one directory, and forks a task for every subdirectory
+     * which may hold matches.
+     */
+    private static class WalkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        /** the glob to match, or <code>null</code> if every file matches */
+        private final Glob glob;
+        private final Path dir;
+        /** the name of dir in the form of the pattern, ending with / */
+        private final String prefix;
+        /** the name of dir below the base directory, ending with / unless empty */
+        private final String relative;
+        /** the level of the entries of dir below the base directory */
+        private final int depth;
+        private final Queue<String> found;
+
+        WalkTask(Glob glob, Path dir, String prefix, String relative, int depth,
+                Queue<String> found) {
+            this.glob = glob;
+            this.dir = dir;
+            this.prefix = prefix;
+            this.relative = relative;
+            this.depth = depth;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            List<WalkTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String fileName = entry.getFileName().toString();
+                    boolean matches = glob == null || glob.matches(relative, fileName);
+                    boolean mayHoldMatches = glob == null
+                            || glob.mayHoldMatches(depth, fileName);
+                    if (!matches && !mayHoldMatches) {
+                        // neither a match nor on the way to one, so its type
+                        // does not matter
+                        continue;
+                    }
+                    BasicFileAttributes attributes = Files.readAttributes(entry,
+                            BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isSymbolicLink()) {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                        if (attributes.isDirectory()) {
+                            continue;
+                        }
+                    }
+                    if (attributes.isRegularFile()) {
+                        if (matches) {
+                            found.add(prefix + fileName);
+                        }
+                    } else if (attributes.isDirectory()) {
+                        if (glob == null || (matches && glob.recursive)) {
+                            subtasks.add(new WalkTask(null, entry, prefix + fileName + "/",
+                                    null, depth + 1, found));
+                        } else if (mayHoldMatches) {
+                            subtasks.add(new WalkTask(glob, entry, prefix + fileName + "/",
+                                    relative + fileName + "/", depth + 1, found));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // an unreadable or vanished directory has no matches
+            }
+            invokeAll(subtasks);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package logquerier;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import system.Catalog;
+
+/**
+ * FrameReader reads the frames written by FramedOutputStream. Frame lengths
+ * come from the network, so frames longer than the writer ever sends are
+ * rejected before anything is allocated for them. A line longer than a frame
+ * is split across consecutive frames.
+ */
+public class FrameReader implements Closeable {
+    private final DataInputStream in;
+    private final int maxFrameBytes;
+    private final Inflater inflater = new Inflater();
+    private byte[] payload = new byte[0];
+    private byte[] inflated = new byte[0];
+    /** either payload or inflated, whichever holds the lines of the frame */
+    private byte[] data = payload;
+    private JSONObject trailer;
+
+    /**
+     * @param is
+     *            the stream from which frames are read
+     */
+    public FrameReader(InputStream is) {
+        this(is, Catalog.GREP_FRAME_BYTES);
+    }
+
+    /**
+     * @param is
+     *            the stream from which frames are read
+     * @param maxFrameBytes
+     *            the frameBytes of the FramedOutputStream writing the frames
+     */
+    public FrameReader(InputStream is, int maxFrameBytes) {
+        this.in = new DataInputStream(new BufferedInputStream(is, 64 * 1024));
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Read the next DATA frame.
+     *
+     * @return the number of bytes of lines in the frame, which are available
+     *         in getData(), or -1 if the trailer has been read instead. A
+     *         heartbeat frame holds no lines.
+     * @throws IOException
+     *             if the stream ends before the trailer, or the frame is
+     *             corrupt
+     */
+    public int next() throws IOException {
+        if (trailer != null) {
+            return -1;
+        }
+        byte type;
+        try {
+            type = in.readByte();
+        } catch (EOFException e) {
+            throw new EOFException("Connection closed before the end of results");
+        }
+        byte flags = in.readByte();
+        int len = in.readInt();
+        int originalLen = in.readInt();
+        int maxLen = type == FramedOutputStream.TRAILER ? FramedOutputStream.MAX_TRAILER_BYTES
+                : maxFrameBytes;
+        if (len < 0 || originalLen < 0 || len > maxLen || originalLen > maxLen) {
+            throw new IOException(String.format("Corrupt frame of %d bytes", len));
+        }
+        if (payload.length < len) {
+            payload = new byte[len];
+        }
+        in.readFully(payload, 0, len);
+
+        if (type == FramedOutputStream.TRAILER) {
+            trailer = (JSONObject) JSONValue.parse(new String(payload, 0, len, Catalog.ENCODING));
+            return -1;
+        }
+        if (type != FramedOutputStream.DATA) {
+            throw new IOException(String.format("Unknown frame type %d", type));
+        }
+        if ((flags & FramedOutputStream.DEFLATED) == 0) {
+            data = payload;
+            return len;
+        }
+        if (inflated.length < originalLen) {
+            inflated = new byte[originalLen];
+        }
+        inflater.reset();
+        inflater.setInput(payload, 0, len);
+        try {
+            int n = 0;
+            while (n < originalLen && !inflater.finished()) {
+                int m = inflater.inflate(inflated, n, originalLen - n);
+                if (m == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += m;
+            }
+            if (n != originalLen) {
+                throw new IOException("Corrupt frame");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        data = inflated;
+        return originalLen;
+    }
+
+    /**
+     * @return the buffer holding the lines of the last DATA frame, which is
+     *         reused by the next call to next()
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the trailer, or <code>null</code> if it has not been read yet
+     */
+    public JSONObject getTrailer() {
+        return trailer;
+    }
+
+    /**
+     * Release the inflater and close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
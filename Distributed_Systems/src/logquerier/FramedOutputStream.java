@@ -0,0 +1,364 @@
+package logquerier;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+
+import org.json.simple.JSONObject;
+
+import system.Catalog;
+
+/**
+ * FramedOutputStream batches the output lines of a query into frames, instead
+ * of sending every line as its own write. A frame is sent once it holds at
+ * least frameBytes bytes, or once its oldest line has waited for maxDelay
+ * milliseconds, and ends at the end of a line, unless a line alone is longer
+ * than frameBytes, in which case the line is split across frames. No payload
+ * is ever longer than frameBytes, so readers can bound the memory of a frame.
+ * The stream ends with a trailer frame carrying the status and statistics of
+ * the query.
+ * <p>
+ * Every frame is a type byte, a flags byte, the length of the payload on the
+ * wire and the length of the original payload, followed by the payload. The
+ * payload of a DATA frame is lines of text ended by '\n', optionally
+ * compressed by Deflate, and the payload of a TRAILER frame is a JSON object.
+ * <p>
+ * flush() does not cut a frame, so writers which flush after every line, such
+ * as an autoflush PrintWriter, still get batched. An empty DATA frame is sent
+ * when no frame has been sent for Catalog.GREP_FRAME_HEARTBEAT, so the client
+ * can tell a long scan without output from a dead host. Stale frames and
+ * heartbeats are sent on a sender thread of the stream, so that a client
+ * which reads slowly only blocks its own query, never the shared timer.
+ */
+public class FramedOutputStream extends OutputStream {
+    /** frame type of a frame holding output lines */
+    public static final byte DATA = 1;
+    /** frame type of the last frame, holding status and statistics */
+    public static final byte TRAILER = 2;
+    /** flag of a frame whose payload is compressed by Deflate */
+    public static final byte DEFLATED = 1;
+
+    /** trailer status of a query which ran to completion */
+    public static final String STATUS_OK = "ok";
+    /** trailer status of a query which failed */
+    public static final String STATUS_ERROR = "error";
+    /** trailer status of a query which the service refused to run */
+    public static final String STATUS_REJECTED = "rejected";
+    /** trailer status of a query which the client cancelled */
+    public static final String STATUS_CANCELLED = "cancelled";
+    /** the maximum number of bytes of the payload of a trailer */
+    public static final int MAX_TRAILER_BYTES = 64 * 1024;
+
+    /**
+     * the maximum number of characters of the message in a trailer, which
+     * keeps the trailer shorter than MAX_TRAILER_BYTES
+     */
+    private static final int MAX_MESSAGE_CHARS = 4096;
+    /**
+     * hands stale frames to SENDERS. It never blocks, as it is shared by all
+     * streams.
+     */
+    private static final ScheduledExecutorService FLUSHER = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "frame-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    /**
+     * sends stale frames and heartbeats, which may block on the socket. A
+     * stream has at most one send waiting or running at a time.
+     */
+    private static final ExecutorService SENDERS = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "frame-sender");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final DataOutputStream out;
+    private final int frameBytes;
+    private final long maxDelay;
+    private final Deflater deflater;
+    private final ScheduledFuture<?> flushTask;
+    /** set while a send of this stream is waiting or running on SENDERS */
+    private final AtomicBoolean sendPending = new AtomicBoolean(false);
+    private final long startTime = System.nanoTime();
+
+    private final byte[] buf;
+    private int count = 0;
+    /** the time at which the oldest byte in the buffer was written */
+    private long oldest;
+    /** the time at which the last frame was sent */
+    private long lastSent = System.nanoTime();
+    private byte[] compressed = new byte[0];
+    private boolean finished = false;
+    private boolean closed = false;
+    /** the error which broke the underlying stream, if any */
+    private IOException broken;
+
+    private long lines = 0;
+    private long bytes = 0;
+    private long wireBytes = 0;
+    private long frames = 0;
+
+    /**
+     * @param os
+     *            the stream to which frames are written
+     * @param frameBytes
+     *            the number of bytes after which a frame is sent, and the
+     *            maximum length of its payload
+     * @param maxDelay
+     *            the maximum number of milliseconds a line waits before being
+     *            sent
+     * @param compress
+     *            if <code>true</code>, frames are compressed when it saves
+     *            bytes
+     */
+    public FramedOutputStream(OutputStream os, int frameBytes, long maxDelay, boolean compress) {
+        this.out = new DataOutputStream(new BufferedOutputStream(os, frameBytes + 64));
+        this.frameBytes = frameBytes;
+        this.maxDelay = maxDelay;
+        this.buf = new byte[frameBytes];
+        this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        this.flushTask = FLUSHER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (sendPending.compareAndSet(false, true)) {
+                    SENDERS.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendPending.set(false);
+                            flushIfStale();
+                        }
+                    });
+                }
+            }
+        }, maxDelay, maxDelay, Catalog.TIME_UNIT);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (broken != null) {
+            throw broken;
+        }
+        if (finished) {
+            throw new IOException("Stream finished");
+        }
+        while (len > 0) {
+            if (count == 0) {
+                oldest = System.nanoTime();
+            }
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == buf.length) {
+                sendLines();
+            }
+        }
+    }
+
+    /**
+     * Does not cut a frame. Frames are only sent when full or stale.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (this) {
+            if (broken != null) {
+                throw broken;
+            }
+        }
+    }
+
+    private synchronized void flushIfStale() {
+        if (finished || closed || broken != null) {
+            return;
+        }
+        long now = System.nanoTime();
+        try {
+            if (count > 0 && now - oldest >= Catalog.TIME_UNIT.toNanos(maxDelay)) {
+                sendLines();
+            }
+            if (now - lastSent >= Catalog.TIME_UNIT.toNanos(Catalog.GREP_FRAME_HEARTBEAT)) {
+                sendFrame(DATA, (byte) 0, buf, 0, 0);
+            }
+        } catch (IOException e) {
+            // reported to the writer on its next write
+        }
+    }
+
+    /**
+     * Send all complete lines in the buffer as one DATA frame, keeping a
+     * trailing partial line for the next frame. A full buffer without a line
+     * end is sent as it is, as part of a line longer than a frame.
+     */
+    private void sendLines() throws IOException {
+        int end = count;
+        while (end > 0 && buf[end - 1] != '\n') {
+            end--;
+        }
+        if (end == 0) {
+            if (count < buf.length) {
+                return;
+            }
+            end = count;
+        }
+        sendData(end);
+        System.arraycopy(buf, end, buf, 0, count - end);
+        count -= end;
+        oldest = System.nanoTime();
+    }
+
+    private void sendData(int len) throws IOException {
+        for (int i = 0; i < len; i++) {
+            if (buf[i] == '\n') {
+                lines++;
+            }
+        }
+        bytes += len;
+        if (deflater != null) {
+            deflater.reset();
+            deflater.setInput(buf, 0, len);
+            deflater.finish();
+            if (compressed.length < len) {
+                compressed = new byte[len];
+            }
+            int n = 0;
+            while (!deflater.finished() && n < len) {
+                n += deflater.deflate(compressed, n, len - n);
+            }
+            // only keep the compressed payload if it is actually smaller
+            if (deflater.finished() && n < len) {
+                sendFrame(DATA, DEFLATED, compressed, n, len);
+                return;
+            }
+        }
+        sendFrame(DATA, (byte) 0, buf, len, len);
+    }
+
+    private void sendFrame(byte type, byte flags, byte[] payload, int len, int originalLen)
+            throws IOException {
+        try {
+            out.writeByte(type);
+            out.writeByte(flags);
+            out.writeInt(len);
+            out.writeInt(originalLen);
+            out.write(payload, 0, len);
+            out.flush();
+            lastSent = System.nanoTime();
+            frames++;
+            wireBytes += len;
+        } catch (IOException e) {
+            broken = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Send the remaining output, followed by the trailer frame. Further
+     * writes fail.
+     *
+     * @param error
+     *            the message of the error which failed the query, or
+     *            <code>null</code> if the query succeeded
+     * @throws IOException
+     *             if any IO error occurs when sending frames
+     */
+    public void finish(String error) throws IOException {
+        finish(error == null ? STATUS_OK : STATUS_ERROR, error);
+    }
+
+    /**
+     * Send the trailer of a query which the service refused to run. Further
+     * writes fail.
+     *
+     * @param reason
+     *            why the query was refused
+     * @throws IOException
+     *             if any IO error occurs when sending the trailer
+     */
+    public void reject(String reason) throws IOException {
+        finish(STATUS_REJECTED, reason);
+    }
+
+    /**
+     * Send the remaining output, followed by the trailer of a query which the
+     * client cancelled. Further writes fail.
+     *
+     * @throws IOException
+     *             if any IO error occurs when sending frames
+     */
+    public void finishCancelled() throws IOException {
+        finish(STATUS_CANCELLED, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void finish(String status, String message) throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        flushTask.cancel(false);
+        if (broken != null) {
+            throw broken;
+        }
+        if (count > 0) {
+            sendData(count);
+            count = 0;
+        }
+        JSONObject trailer = new JSONObject();
+        trailer.put("status", status);
+        if (message != null) {
+            trailer.put("message", message.length() > MAX_MESSAGE_CHARS
+                    ? message.substring(0, MAX_MESSAGE_CHARS) : message);
+        }
+        trailer.put("lines", lines);
+        trailer.put("bytes", bytes);
+        trailer.put("wireBytes", wireBytes);
+        trailer.put("frames", frames);
+        trailer.put("elapsed", (System.nanoTime() - startTime) / 1000000);
+        byte[] payload = trailer.toJSONString().getBytes(Catalog.ENCODING);
+        sendFrame(TRAILER, (byte) 0, payload, payload.length, payload.length);
+    }
+
+    /**
+     * Release the deflater and close the underlying stream. A stream closed
+     * before it is finished ends without a trailer, so the client reports the
+     * query as failed rather than complete.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            finished = true;
+            flushTask.cancel(false);
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        out.close();
+    }
+}
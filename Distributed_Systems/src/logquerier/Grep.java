@@ -2,17 +2,49 @@ package logquerier;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.cli.CommandLine;
@@ -30,9 +62,45 @@ import system.Catalog;
  */
 public class Grep {
     private static final Options OPTIONS = Grep.buildGrepOptions();
+    private static final byte NEWLINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+    /** the pool on which chunks of large files are scanned in parallel */
+    private static final ForkJoinPool CHUNK_POOL = new ForkJoinPool(Catalog.GREP_CHUNK_THREADS);
+    /**
+     * the number of files each query greps concurrently. Every query greps on
+     * threads of its own, so a query blocked on a slow client never holds up
+     * the files of another, and the concurrent IO of all queries served by a
+     * LogQueryService is bounded by its scan admission.
+     */
+    private static final int FILE_THREADS = Catalog.LOG_DISK_IS_SSD
+            ? Catalog.GREP_FILE_THREADS_SSD : Catalog.GREP_FILE_THREADS_HDD;
 
     private final OutputStream os;
     private final Pattern pattern;
+    /**
+     * the DFA matching lines like pattern in linear time, or <code>null</code>
+     * if pattern is not regular, such as with backreferences
+     */
+    private final LazyDfa dfa;
+    /**
+     * every line matching the pattern contains one of these literals encoded
+     * in bytes, or <code>null</code> if no such literal is known.
+     */
+    private final List<byte[]> requiredLiterals;
+    /** the searcher for requiredLiterals */
+    private final ByteSearcher prefilter;
+    /**
+     * <code>true</code> if every pattern is a literal, so a line matches if
+     * and only if prefilter finds one of them in it
+     */
+    private final boolean literalsOnly;
+    /**
+     * <code>true</code> if the pattern matches every line, so only the
+     * predicates select lines
+     */
+    private final boolean matchesEverything;
+    /** the predicates of --where, which every selected line satisfies */
+    private final List<FieldPredicate> predicates;
     private final List<String> fileNamePatterns;
     private final CommandLine cmd;
 
@@ -42,6 +110,35 @@ public class Grep {
     private final int maxCount;
     private int currentCount;
 
+    private final boolean totalToggle;
+    /** the capture group to group selected lines by, or -1 */
+    private final int groupBy;
+    private final int topK;
+    /** the capture group whose distinct values are counted, or -1 */
+    private final int distinctGroup;
+    /**
+     * the pattern without the leading and trailing .*, used to find capture
+     * groups. Leading .* would make the first group match as late as possible.
+     */
+    private final Pattern groupPattern;
+    /** the cache of results of previous queries, or <code>null</code> */
+    private ResultCache resultCache;
+    /** the cache of files found by recent queries, or <code>null</code> */
+    private ListingCache listingCache;
+    private final boolean recursiveToggle;
+    private final boolean followToggle;
+    /** selected lines are logged in [since, until), or TimeIndex.NO_TIME */
+    private final long since;
+    /** selected lines are logged in [since, until), or Long.MAX_VALUE */
+    private final long until;
+    private final boolean orderedToggle;
+    /** the fraction of each file --approx samples, or 0 */
+    private final double approxFraction;
+    /** the time --approx samples files for, in milliseconds, or 0 */
+    private final long approxMillis;
+    /** set when the client cancels the query or goes away */
+    private volatile boolean cancelled = false;
+
     /**
      * Print help message to stderr.
      */
@@ -57,7 +154,9 @@ public class Grep {
      * Print a brief usage message to stderr.
      */
     public static void printUsage() {
-        System.err.println("usage: java Grep [-cinvwx] [-e pattern] [-m num] [pattern] [file ...]");
+        System.err.println("usage: java Grep [-cinrvwx] [-e pattern] [-m num] [--ordered] "
+                + "[--total [--approx budget]] [--group-by num [--top k]] "
+                + "[--distinct num] [--where predicate] [pattern] [file ...]");
     }
 
     private static Options buildGrepOptions() {
@@ -75,6 +174,10 @@ public class Grep {
         options.addOption("n", "line-number", false,
                 "Each output line is preceded by its relative line number in the "
                         + "file, starting at line 1.  The line number counter is reset for each file processed.");
+        options.addOption("r", "recursive", false,
+                "Recursively search the files below the directories given as or "
+                        + "matched by file operands.  File operands may also match "
+                        + "several directory levels with `**', e.g. `logs/**/*.log'.");
         options.addOption("v", "invert-match", false,
                 "Selected lines are those not matching any of the specified patterns.");
         options.addOption("w", "word-regexp", false,
@@ -82,6 +185,20 @@ public class Grep {
         options.addOption("x", "line-regexp", false,
                 "Only input lines selected against an entire fixed string or"
                         + " regular expression are considered to be matching lines.");
+        options.addOption(Option.builder().longOpt("follow")
+                .desc("Keep following the files, and write selected lines as they are "
+                        + "appended, until interrupted.  Files are followed by name, so "
+                        + "rotated files and files created later are picked up.")
+                .build());
+        options.addOption(Option.builder().longOpt("ordered")
+                .desc("Write the selected lines of all files merged in the order of "
+                        + "their timestamps, instead of file by file.  Every file is "
+                        + "assumed to be in time order.")
+                .build());
+        options.addOption(Option.builder().longOpt("total")
+                .desc("Only the total count of selected lines in all files is written "
+                        + "to standard output.")
+                .build());
     }
 
     private static void addArgumentOptions(Options options) {
@@ -94,6 +211,39 @@ public class Grep {
                 .build());
         options.addOption(Option.builder("m").longOpt("max-count").hasArg().argName("num")
                 .desc("Stop reading the file after <num> matches.").build());
+        options.addOption(Option.builder().longOpt("group-by").hasArg().argName("num")
+                .desc("Count selected lines grouped by the value of capture group <num> "
+                        + "of the pattern, and write one count per value to standard "
+                        + "output, most frequent first.")
+                .build());
+        options.addOption(Option.builder().longOpt("distinct").hasArg().argName("num")
+                .desc("Only write the number of distinct values of capture group <num> "
+                        + "of the pattern in selected lines.  Beyond a few thousand values, "
+                        + "the number is estimated, and written with a confidence interval.")
+                .build());
+        options.addOption(Option.builder().longOpt("since").hasArg().argName("time")
+                .desc("Only select lines logged at or after <time>, which is either "
+                        + "a date and time such as `2015-09-05 13:00', or a duration "
+                        + "before now such as `10m', `2h' or `1d'.")
+                .build());
+        options.addOption(Option.builder().longOpt("until").hasArg().argName("time")
+                .desc("Only select lines logged before <time>, in the same form as "
+                        + "--since.")
+                .build());
+        options.addOption(Option.builder().longOpt("top").hasArg().argName("k")
+                .desc("With --group-by, only write the <k> most frequent values.").build());
+        options.addOption(Option.builder().longOpt("where").hasArg().argName("predicate")
+                .desc("Only select lines whose fields satisfy <predicate>, such as "
+                        + "`level>=WARNING', `logger=system.*' or `message~timed? out'.  "
+                        + "The fields are time, level, logger and message.  This option "
+                        + "may be repeated, and a line must satisfy all predicates.")
+                .build());
+        options.addOption(Option.builder().longOpt("approx").hasArg().argName("budget")
+                .desc("With --total, only scan random blocks of each file, and write "
+                        + "an estimate of the total with a confidence interval.  The "
+                        + "<budget> is either the fraction of each file to scan, such as "
+                        + "`1%', or the time to scan for, such as `500ms' or `2s'.")
+                .build());
     }
 
     /**
@@ -121,9 +271,11 @@ public class Grep {
                 regexp = "(" + String.join("|", regexps) + ")";
                 this.fileNamePatterns = argList;
             } else {
+                regexps = new String[] { argList.get(0) };
                 regexp = "(" + argList.get(0) + ")";
                 this.fileNamePatterns = argList.subList(1, argList.size());
             }
+            String userRegexp = regexp;
 
             int flags = 0;
 
@@ -132,7 +284,9 @@ public class Grep {
             }
             if (cmd.hasOption("line-regexp")) {
                 regexp = "^" + regexp + "$";
-            } else {
+            }
+            String groupRegexp = regexp;
+            if (!cmd.hasOption("line-regexp")) {
                 // Very very tricky here!
                 // by default, . does not match newline including \r, \n, etc.
                 regexp = ".*" + regexp + ".*";
@@ -143,10 +297,28 @@ public class Grep {
             }
 
             this.pattern = Pattern.compile(regexp, flags);
+            this.dfa = LazyDfa.of(this.pattern);
+            this.groupPattern = Pattern.compile(groupRegexp, flags);
+            this.requiredLiterals = Grep.findRequiredLiterals(userRegexp);
+            this.prefilter = requiredLiterals == null ? null
+                    : HorspoolSearcher.anyOf(requiredLiterals, cmd.hasOption("ignore-case"));
+            this.predicates = new ArrayList<>();
+            if (cmd.hasOption("where")) {
+                for (String predicate : cmd.getOptionValues("where")) {
+                    this.predicates.add(FieldPredicate.parse(predicate));
+                }
+            }
+            this.literalsOnly = this.prefilter != null && !cmd.hasOption("word-regexp")
+                    && !cmd.hasOption("line-regexp") && Grep.areLiterals(regexps)
+                    && this.predicates.isEmpty();
+            this.matchesEverything = !cmd.hasOption("invert-match")
+                    && !cmd.hasOption("word-regexp") && !cmd.hasOption("line-regexp")
+                    && Grep.areEmpty(regexps);
 
             this.invertMatchToggle = cmd.hasOption("invert-match");
             this.countToggle = cmd.hasOption("count");
             this.lineNumberToggle = cmd.hasOption("line-number");
+            this.recursiveToggle = cmd.hasOption("recursive");
             this.currentCount = 0;
             if (cmd.hasOption("max-count")) {
                 this.maxCount = Integer.parseInt(cmd.getOptionValue("max-count"));
@@ -154,6 +326,64 @@ public class Grep {
                 this.maxCount = Integer.MAX_VALUE;
             }
 
+            this.totalToggle = cmd.hasOption("total");
+            this.groupBy = cmd.hasOption("group-by")
+                    ? parseCaptureGroup(cmd.getOptionValue("group-by")) : -1;
+            this.distinctGroup = cmd.hasOption("distinct")
+                    ? parseCaptureGroup(cmd.getOptionValue("distinct")) : -1;
+            if (isDistinct() && (isGrouped() || cmd.hasOption("approx"))) {
+                throw new ParseException("--distinct cannot be combined with --group-by or "
+                        + "--approx");
+            }
+            if (cmd.hasOption("top")) {
+                this.topK = Integer.parseInt(cmd.getOptionValue("top"));
+            } else {
+                this.topK = Integer.MAX_VALUE;
+            }
+
+            this.since = cmd.hasOption("since") ? Grep.parseTime(cmd.getOptionValue("since"))
+                    : TimeIndex.NO_TIME;
+            this.until = cmd.hasOption("until") ? Grep.parseTime(cmd.getOptionValue("until"))
+                    : Long.MAX_VALUE;
+
+            this.followToggle = cmd.hasOption("follow");
+            if (this.followToggle && (this.countToggle || isAggregateQuery() || isTimeRange())) {
+                throw new ParseException("--follow cannot be combined with -c, --total, "
+                        + "--group-by, --distinct, --since or --until");
+            }
+            this.orderedToggle = cmd.hasOption("ordered");
+            if (this.orderedToggle && (this.countToggle || isAggregateQuery() || followToggle)) {
+                throw new ParseException("--ordered cannot be combined with -c, --total, "
+                        + "--group-by, --distinct or --follow");
+            }
+            if (cmd.hasOption("approx")) {
+                if (!this.totalToggle || isGrouped() || cmd.hasOption("max-count")) {
+                    throw new ParseException("--approx requires --total, and cannot be "
+                            + "combined with --group-by or -m");
+                }
+                String budget = cmd.getOptionValue("approx");
+                Matcher fraction = Pattern.compile("(\\d+(?:\\.\\d+)?)%").matcher(budget);
+                Matcher time = Pattern.compile("(\\d+)(ms|s|m)").matcher(budget);
+                if (fraction.matches()) {
+                    this.approxFraction = Double.parseDouble(fraction.group(1)) / 100;
+                    this.approxMillis = 0;
+                } else if (time.matches()) {
+                    long amount = Long.parseLong(time.group(1));
+                    this.approxFraction = 0;
+                    this.approxMillis = time.group(2).equals("ms") ? amount
+                            : time.group(2).equals("s") ? TimeUnit.SECONDS.toMillis(amount)
+                                    : TimeUnit.MINUTES.toMillis(amount);
+                } else {
+                    throw new ParseException(String.format("Invalid budget: %s", budget));
+                }
+                if (this.approxFraction > 1 || this.approxFraction + this.approxMillis <= 0) {
+                    throw new ParseException(String.format("Invalid budget: %s", budget));
+                }
+            } else {
+                this.approxFraction = 0;
+                this.approxMillis = 0;
+            }
+
         } catch (NumberFormatException e) {
             throw new ParseException("grep: Invalid arguement");
         } catch (IndexOutOfBoundsException e) {
@@ -163,6 +393,229 @@ public class Grep {
         }
     }
 
+    /**
+     * Parse the value of --group-by or --distinct.
+     *
+     * @return the number of the capture group in the user specified pattern
+     * @throws ParseException
+     *             if the pattern has no such capture group
+     */
+    private int parseCaptureGroup(String value) throws ParseException {
+        int group = Integer.parseInt(value);
+        // group 1 is the parentheses around all user patterns, and lines
+        // selected by -v have no capture groups
+        int groupCount = this.groupPattern.matcher("").groupCount() - 1;
+        if (group < 0 || group > groupCount || this.invertMatchToggle) {
+            throw new ParseException("Invalid capture group");
+        }
+        return group;
+    }
+
+    /**
+     * Parse the value of --since or --until.
+     *
+     * @return the time in milliseconds
+     * @throws ParseException
+     *             if the value is neither a date and time nor a duration
+     */
+    static long parseTime(String value) throws ParseException {
+        Matcher matcher = Pattern.compile("(\\d+)([smhd])").matcher(value);
+        if (matcher.matches()) {
+            long amount = Long.parseLong(matcher.group(1));
+            TimeUnit unit = matcher.group(2).equals("s") ? TimeUnit.SECONDS
+                    : matcher.group(2).equals("m") ? TimeUnit.MINUTES
+                            : matcher.group(2).equals("h") ? TimeUnit.HOURS : TimeUnit.DAYS;
+            return System.currentTimeMillis() - unit.toMillis(amount);
+        }
+        for (String format : new String[] { Catalog.LOG_TIMESTAMP_FORMAT, "yyyy-MM-dd HH:mm:ss",
+                "yyyy-MM-dd HH:mm", "yyyy-MM-dd" }) {
+            ParsePosition position = new ParsePosition(0);
+            Date date = new SimpleDateFormat(format).parse(value, position);
+            if (date != null && position.getIndex() == value.length()) {
+                return date.getTime();
+            }
+        }
+        throw new ParseException(String.format("Invalid time: %s", value));
+    }
+
+    /**
+     * Find the literals required by the user specified pattern. Neither -w nor
+     * -x adds any literal to the pattern, so the literals found are still
+     * required after the pattern is wrapped with them.
+     *
+     * @return the required literals encoded in bytes, or <code>null</code> if
+     *         the pattern has no required literal
+     */
+    private static List<byte[]> findRequiredLiterals(String regexp) {
+        List<String> literals = RequiredLiterals.of(regexp);
+        if (literals == null) {
+            return null;
+        }
+        Charset charset = Charset.forName(Catalog.ENCODING);
+        List<byte[]> needles = new ArrayList<>();
+        for (String literal : literals) {
+            // malformed input is decoded into the replacement character, which
+            // can never be found in the raw bytes
+            if (literal.indexOf('\uFFFD') >= 0) {
+                return null;
+            }
+            needles.add(literal.getBytes(charset));
+        }
+        return needles;
+    }
+
+    /**
+     * @return <code>true</code> if every pattern can only match one non empty
+     *         string
+     */
+    private static boolean areLiterals(String[] regexps) {
+        for (String regexp : regexps) {
+            String literal = RequiredLiterals.exact(regexp);
+            if (literal == null || literal.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if every pattern matches the empty string
+     *         only, and so matches every line
+     */
+    private static boolean areEmpty(String[] regexps) {
+        for (String regexp : regexps) {
+            if (!"".equals(RequiredLiterals.exact(regexp))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if only an aggregate of selected lines is
+     *         requested, i.e. --total, --group-by or --distinct is specified
+     */
+    public boolean isAggregateQuery() {
+        return this.totalToggle || this.groupBy >= 0 || this.distinctGroup >= 0;
+    }
+
+    /**
+     * @return <code>true</code> if distinct values of a capture group are
+     *         counted
+     */
+    public boolean isDistinct() {
+        return this.distinctGroup >= 0;
+    }
+
+    /**
+     * @return <code>true</code> if selected lines are grouped by a capture
+     *         group
+     */
+    public boolean isGrouped() {
+        return this.groupBy >= 0;
+    }
+
+    /**
+     * @return <code>true</code> if --approx is specified, so the total is
+     *         estimated from samples
+     */
+    public boolean isApproximate() {
+        return this.approxFraction > 0 || this.approxMillis > 0;
+    }
+
+    /**
+     * @return the maximum number of groups to output
+     */
+    public int getTopK() {
+        return this.topK;
+    }
+
+    /**
+     * @return <code>true</code> if selected lines themselves are needed, rather
+     *         than only their count
+     */
+    private boolean needsLines() {
+        return isAggregateQuery() ? isGrouped() || isDistinct() : !this.countToggle;
+    }
+
+    /**
+     * Let the query reuse and update results of previous queries over files
+     * which have only grown since.
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Let the query share the files found by recent queries.
+     */
+    public void setListingCache(ListingCache listingCache) {
+        this.listingCache = listingCache;
+    }
+
+    /**
+     * @return the key of the query in ResultCache. Queries with the same key
+     *         select the same lines.
+     */
+    private String cacheKey() {
+        return String.format("%s/%d/%s/%s/%s/%d/%s", pattern.pattern(), pattern.flags(),
+                invertMatchToggle, lineNumberToggle, needsLines(), maxCount, predicates);
+    }
+
+    /**
+     * @return <code>true</code> if --follow is specified
+     */
+    public boolean isFollow() {
+        return this.followToggle;
+    }
+
+    /**
+     * @return <code>true</code> if --ordered is specified
+     */
+    public boolean isOrdered() {
+        return this.orderedToggle;
+    }
+
+    /**
+     * @return the number of `:' terminated fields an output line of a file
+     *         starts with, i.e. the file name and the line number if -n is
+     *         specified
+     */
+    public int getPrefixFields() {
+        return this.lineNumberToggle ? 2 : 1;
+    }
+
+    /**
+     * @return <code>true</code> if --since or --until is specified
+     */
+    private boolean isTimeRange() {
+        return this.since != TimeIndex.NO_TIME || this.until != Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the maximum number of selected lines, Integer.MAX_VALUE if -m
+     *         is not specified
+     */
+    public int getMaxCount() {
+        return this.maxCount;
+    }
+
+    /**
+     * Stop the query. Called by another thread when the client cancels the
+     * query or goes away. Scans stop at their next line, and a --follow query
+     * stops within Catalog.GREP_FOLLOW_POLL_PERIOD.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * @return <code>true</code> if the query has been cancelled
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
     /**
      * @return the concatenation of all patterns.
      */
@@ -184,120 +637,1519 @@ public class Grep {
         return this.cmd;
     }
 
-    private void grep(Scanner sc, PrintWriter pw, String prefix) {
-        int countMatches = 0;
-        int lineNumber = 1;
-        while (sc.hasNext()) {
-            String line = sc.next();
-            if (pattern.matcher(line).matches() ^ invertMatchToggle) {
-                countMatches += 1;
-                currentCount += 1;
-                if (!this.countToggle) {
-                    if (this.lineNumberToggle) {
-                        pw.println(String.format("%s%s:%s", prefix, lineNumber, line));
-                    } else {
-                        pw.println(prefix + line);
-                    }
-                }
-
-                if (currentCount >= this.maxCount) {
-                    return;
+    /**
+     * @param fileNames
+     *            the files to grep instead of the specified file name patterns
+     * @return the arguments of the same query over fileNames, e.g. to send
+     *         only part of the files to each host
+     */
+    public String[] withFiles(List<String> fileNames) {
+        List<String> args = new ArrayList<>();
+        for (Option option : cmd.getOptions()) {
+            String name = option.getLongOpt() != null ? "--" + option.getLongOpt()
+                    : "-" + option.getOpt();
+            if (option.hasArg()) {
+                // --name=value, so a value starting with `-' is not an option
+                for (String value : option.getValues()) {
+                    args.add(name + "=" + value);
                 }
+            } else {
+                args.add(name);
             }
-            lineNumber++;
         }
+        if (!cmd.hasOption("e")) {
+            args.add("--regexp=" + cmd.getArgList().get(0));
+        }
+        args.addAll(fileNames);
+        return args.toArray(new String[0]);
+    }
 
-        if (this.countToggle) {
-            pw.println(prefix + countMatches);
+    /**
+     * @return <code>true</code> if the line is selected, i.e. it matches the
+     *         pattern, or does not match the pattern when -v is specified, and
+     *         its fields satisfy the predicates of --where.
+     */
+    private boolean isSelected(String line) {
+        if (!matchesPattern(line)) {
+            return false;
         }
+        return predicates.isEmpty() || FieldPredicate.testAll(predicates, LogFields.parse(line));
     }
 
     /**
-     * @param fileNamePatterns
-     * @return the file names of all files that match the specified file name
-     *         patterns
+     * @return <code>true</code> if the line matches the pattern, or does not
+     *         match the pattern when -v is specified
      */
-    private static List<String> getTargetFiles(List<String> fileNamePatterns) {
-        List<String> targetFiles = new ArrayList<>();
+    private boolean matchesPattern(String line) {
+        boolean matches = dfa != null ? dfa.matches(line) : pattern.matcher(line).matches();
+        return matches ^ invertMatchToggle;
+    }
 
-        for (String pattern : fileNamePatterns) {
-            File file = new File(pattern);
-            String name = file.getName();
-            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + name);
-            String dirPrefix = file.getParent() == null ? "" : file.getParent() + File.separator;
-            File dir = file.getParentFile();
+    private void printLine(PrintWriter pw, String prefix, long lineNumber, String line) {
+        pw.println(formatLine(prefix, lineNumber, line));
+    }
 
-            if (dir == null) {
-                dir = new File(System.getProperty("user.dir"));
-            }
+    private String formatLine(String prefix, long lineNumber, String line) {
+        if (this.lineNumberToggle) {
+            return String.format("%s%s:%s", prefix, lineNumber, line);
+        } else {
+            return prefix + line;
+        }
+    }
 
-            boolean matched = false;
-            File[] files = dir.listFiles();
-            if (files != null) {
-                for (File f : files) {
-                    String fn = f.getName();
-                    if (matcher.matches(Paths.get(fn))) {
-                        matched = true;
-                        if (f.isDirectory()) {
-                            System.err.println(
-                                    String.format("grep: %s: Is a directory", dirPrefix + fn));
-                        } else {
-                            targetFiles.add(dirPrefix + fn);
-                        }
-                    }
-                }
+    /**
+     * MatchSink receives the lines selected while scanning.
+     */
+    private interface MatchSink {
+        /**
+         * @param lineNumber
+         *            the line number of the selected line, only counted when
+         *            -n is specified
+         * @param line
+         *            the selected line, or <code>null</code> when -c is
+         *            specified, since then lines are not needed
+         * @return <code>false</code> to stop scanning
+         */
+        boolean accept(long lineNumber, String line);
+    }
+
+    /**
+     * PrintingSink prints selected lines as soon as they are found, and stops
+     * scanning once max count is reached.
+     */
+    private class PrintingSink implements MatchSink {
+        private final PrintWriter pw;
+        private final String prefix;
+        private int countMatches = 0;
+
+        PrintingSink(PrintWriter pw, String prefix) {
+            this.pw = pw;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean accept(long lineNumber, String line) {
+            countMatches += 1;
+            currentCount += 1;
+            if (!countToggle) {
+                printLine(pw, prefix, lineNumber, line);
             }
+            return currentCount < maxCount;
+        }
+    }
 
-            if (!matched) {
-                System.err.println(String.format("grep: %s: No such file or directory", file));
+    /**
+     * OutputSink appends selected lines of a file to the FileOutput of the
+     * file. A single file never needs more than max count lines.
+     */
+    private class OutputSink implements MatchSink {
+        private final FileOutput output;
+        private final String prefix;
+        private int countMatches = 0;
+
+        OutputSink(FileOutput output, String prefix) {
+            this.output = output;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean accept(long lineNumber, String line) {
+            countMatches += 1;
+            if (!countToggle && !output.add(formatLine(prefix, lineNumber, line))) {
+                return false;
             }
+            return countMatches < maxCount;
+        }
+    }
+
+    /**
+     * AggregateSink adds selected lines to an aggregate instead of outputting
+     * them. A single file never counts more than max count lines.
+     */
+    private class AggregateSink implements MatchSink {
+        private final Aggregate aggregate;
+        private int countMatches = 0;
 
+        AggregateSink(Aggregate aggregate) {
+            this.aggregate = aggregate;
         }
 
-        return targetFiles;
+        @Override
+        public boolean accept(long lineNumber, String line) {
+            countMatches += 1;
+            String group = null;
+            if (isGrouped() || isDistinct()) {
+                Matcher matcher = groupPattern.matcher(line);
+                // group 1 is the parentheses around all user patterns
+                int index = (isGrouped() ? groupBy : distinctGroup) + 1;
+                if (!matcher.find() || (group = matcher.group(index)) == null) {
+                    return countMatches < maxCount;
+                }
+            }
+            if (isDistinct()) {
+                aggregate.addDistinct(group);
+            } else {
+                aggregate.add(group);
+            }
+            return countMatches < maxCount;
+        }
     }
 
-    public void execute() {
-        PrintWriter pw;
-        try {
-            pw = new PrintWriter(new OutputStreamWriter(os, Catalog.ENCODING), true);
-        } catch (UnsupportedEncodingException e1) {
-            e1.printStackTrace();
-            return;
+    /**
+     * RecordingSink passes selected lines on to another sink, and records them
+     * for ResultCache until they would take more than maxBytes.
+     */
+    private class RecordingSink implements MatchSink {
+        private final MatchSink sink;
+        private final long maxBytes;
+        private long bytes = 0;
+        int countMatches = 0;
+        /**
+         * <code>true</code> if the selected lines took more than maxBytes,
+         * so they are no longer recorded and cannot be cached
+         */
+        boolean overflowed = false;
+        final ArrayList<Long> lineNumbers = new ArrayList<>();
+        final ArrayList<String> selectedLines = new ArrayList<>();
+
+        RecordingSink(MatchSink sink, long maxBytes) {
+            this.sink = sink;
+            this.maxBytes = maxBytes;
         }
-        // Use Scanner instead of BufferedReader.
-        // Because Scanner can specify delimiter which BufferedReader cannot.
-        // BufferedReader will use \r as a delimiter, which is not what we want.
-        Scanner sc;
 
-        if (fileNamePatterns.isEmpty()) {
-            try {
-                sc = new Scanner(new InputStreamReader(System.in, Catalog.ENCODING));
-                sc.useDelimiter("\\n|\\r\\n");
-                grep(sc, pw, "");
-            } catch (UnsupportedEncodingException e) {
-                // Should never reach here
-                e.printStackTrace();
+        @Override
+        public boolean accept(long lineNumber, String line) {
+            countMatches += 1;
+            if (needsLines() && !overflowed) {
+                bytes += ResultCache.estimatedBytes(line);
+                if (bytes > maxBytes) {
+                    overflowed = true;
+                    lineNumbers.clear();
+                    lineNumbers.trimToSize();
+                    selectedLines.clear();
+                    selectedLines.trimToSize();
+                } else {
+                    lineNumbers.add(lineNumber);
+                    selectedLines.add(line);
+                }
             }
-        } else {
-            List<String> targetFiles = Grep.getTargetFiles(fileNamePatterns);
+            return sink.accept(lineNumber, line);
+        }
+    }
 
-            for (String fileName : targetFiles) {
-                String prefix = fileName + ":";
-                try {
-                    sc = new Scanner(
-                            new InputStreamReader(new FileInputStream(fileName), Catalog.ENCODING));
-                    sc.useDelimiter("\\n|\\r\\n");
-                    grep(sc, pw, prefix);
-                    sc.close();
+    private void grep(Scanner sc, MatchSink sink) {
+        int lineNumber = 1;
+        TimeIndex.TimestampParser parser = isTimeRange() ? new TimeIndex.TimestampParser() : null;
+        long time = TimeIndex.NO_TIME;
+        while (!cancelled && sc.hasNext()) {
+            String line = sc.next();
+            if (parser != null) {
+                // lines without timestamp belong to the time of the preceding
+                // line
+                long lineTime = parser.parse(line);
+                time = lineTime == TimeIndex.NO_TIME ? time : lineTime;
+                if (time < this.since || time >= this.until) {
+                    lineNumber++;
+                    continue;
+                }
+            }
+            if (isSelected(line)) {
+                if (!sink.accept(lineNumber, line)) {
+                    return;
+                }
+            }
+            lineNumber++;
+        }
+    }
 
-                    if (this.currentCount >= this.maxCount) {
-                        return;
-                    }
-                } catch (FileNotFoundException e) {
-                    System.err.println("grep: +" + prefix + " No such file or directory");
-                } catch (UnsupportedEncodingException e) {
-                    // Should never reach here
+    /**
+     * Scan all lines read by reader, and pass selected lines to sink. Line
+     * boundaries are found on bytes, and a line is only decoded into a String
+     * when it has to be matched against the pattern or printed.
+     *
+     * @param firstLineNumber
+     *            the line number of the first line read by reader
+     * @return the line number after the last line scanned, or -1 if sink
+     *         stopped scanning or the query has been cancelled. Lines are only
+     *         counted when -n is specified.
+     */
+    private long scan(LineWindowReader reader, long firstLineNumber, MatchSink sink)
+            throws IOException {
+        return scan(reader, firstLineNumber, null, sink);
+    }
+
+    /**
+     * @param parser
+     *            if not <code>null</code>, lines are only selected if they
+     *            are logged in [since, until) by the timestamps it parses,
+     *            and the prefilter does not skip lines, since the time of a
+     *            line without timestamp is the time of the preceding line
+     */
+    private long scan(LineWindowReader reader, long firstLineNumber,
+            TimeIndex.TimestampParser parser, MatchSink sink) throws IOException {
+        LineDecoder decoder = new LineDecoder();
+        long lineNumber = firstLineNumber;
+        long time = TimeIndex.NO_TIME;
+        ByteBuffer window;
+        while ((window = reader.nextWindow()) != null) {
+            int pos = window.position();
+            int limit = window.limit();
+            while (pos < limit) {
+                if (cancelled) {
+                    return -1;
+                }
+                int start = pos;
+                if (prefilter != null && !invertMatchToggle && parser == null) {
+                    // Jump to the next line containing a required literal.
+                    // Lines skipped over cannot match.
+                    int hit = prefilter.indexOf(window, pos, limit);
+                    if (hit < 0) {
+                        if (this.lineNumberToggle) {
+                            lineNumber += MappedLineReader.count(window, NEWLINE, pos, limit);
+                        }
+                        break;
+                    }
+                    int lastNewline = MappedLineReader.lastIndexOf(window, NEWLINE, pos, hit);
+                    start = lastNewline < 0 ? pos : lastNewline + 1;
+                    if (this.lineNumberToggle) {
+                        lineNumber += MappedLineReader.count(window, NEWLINE, pos, start);
+                    }
+                }
+
+                int eol = MappedLineReader.indexOf(window, NEWLINE, start, limit);
+                int end;
+                if (eol < 0) {
+                    // last line of the file without trailing newline
+                    eol = limit;
+                    end = limit;
+                } else {
+                    // the same delimiter as the Scanner path: \n or \r\n
+                    end = eol > start && window.get(eol - 1) == CARRIAGE_RETURN ? eol - 1 : eol;
+                }
+
+                if (parser != null) {
+                    long lineTime = parser.parse(window, start, end);
+                    time = lineTime == TimeIndex.NO_TIME ? time : lineTime;
+                    if (time < this.since || time >= this.until) {
+                        pos = eol + 1;
+                        lineNumber++;
+                        continue;
+                    }
+                }
+
+                String line = null;
+                boolean selected;
+                if (literalsOnly) {
+                    // finding a literal is matching, and without -v the
+                    // line was reached by finding one, unless lines are
+                    // not skipped
+                    boolean found = !invertMatchToggle && parser == null
+                            || prefilter.indexOf(window, start, end) >= 0;
+                    selected = found != invertMatchToggle;
+                } else if (prefilter != null && invertMatchToggle && predicates.isEmpty()
+                        && prefilter.indexOf(window, start, end) < 0) {
+                    // the line cannot match, so it is selected by -v
+                    selected = true;
+                } else {
+                    line = decoder.decode(window, start, end);
+                    selected = isSelected(line);
+                }
+
+                if (selected) {
+                    if (line == null && needsLines()) {
+                        line = decoder.decode(window, start, end);
+                    }
+                    if (!sink.accept(lineNumber, line)) {
+                        return -1;
+                    }
+                }
+                pos = eol + 1;
+                lineNumber++;
+            }
+        }
+        return lineNumber;
+    }
+
+    /**
+     * ChunkTask scans one line aligned byte range of a file, and keeps the
+     * selected lines until they can be printed in order.
+     */
+    private class ChunkTask implements Callable<ChunkTask>, MatchSink {
+        private final Path file;
+        /**
+         * <code>true</code> if the chunk is a run of members of a block gzip
+         * file
+         */
+        private final boolean compressed;
+        private final long start;
+        private final long end;
+        private final AtomicInteger budget;
+        private final AtomicBoolean stopped;
+
+        /** number of lines in the chunk, only counted when -n is specified */
+        long lines;
+        int countMatches = 0;
+        /**
+         * <code>true</code> if the chunk selected more lines than it can
+         * buffer, and stopped scanning
+         */
+        boolean overflowed = false;
+        final List<Long> lineNumbers = new ArrayList<>();
+        final List<String> selectedLines = new ArrayList<>();
+
+        /**
+         * @param budget
+         *            the maximum number of selected lines that can still be
+         *            printed from the file, which only decreases as preceding
+         *            chunks are printed
+         * @param stopped
+         *            set when the selected lines of the chunk are no longer
+         *            needed
+         */
+        ChunkTask(Path file, boolean compressed, long start, long end, AtomicInteger budget,
+                AtomicBoolean stopped) {
+            this.file = file;
+            this.compressed = compressed;
+            this.start = start;
+            this.end = end;
+            this.budget = budget;
+            this.stopped = stopped;
+        }
+
+        @Override
+        public ChunkTask call() throws IOException {
+            if (stopped.get()) {
+                return this;
+            }
+            try (LineWindowReader reader = openChunk(file, compressed, start, end)) {
+                // line numbers are relative to the chunk, and fixed up with
+                // the number of lines in preceding chunks when printed
+                lines = scan(reader, 0, this);
+            }
+            return this;
+        }
+
+        @Override
+        public boolean accept(long lineNumber, String line) {
+            if (needsLines()) {
+                if (selectedLines.size() >= Catalog.GREP_CHUNK_BUFFER_LINES) {
+                    overflowed = true;
+                    return false;
+                }
+                lineNumbers.add(lineNumber);
+                selectedLines.add(line);
+            }
+            countMatches += 1;
+            return countMatches < budget.get() && !stopped.get();
+        }
+    }
+
+    /**
+     * @return a reader of the lines between start and end of a file
+     */
+    private static LineWindowReader openChunk(Path file, boolean compressed, long start,
+            long end) throws IOException {
+        return compressed
+                ? new StreamLineReader(BlockGzip.open(file, start, end),
+                        Catalog.GREP_STREAM_WINDOW_BYTES)
+                : new MappedLineReader(file, start, end, Catalog.GREP_MAP_WINDOW_BYTES);
+    }
+
+    /**
+     * Grep a large file by splitting it into line aligned chunks, which are
+     * scanned in parallel on CHUNK_POOL. Results are printed in the original
+     * order, and line numbers are computed by a prefix sum of the number of
+     * lines in the chunks. At most GREP_CHUNK_THREADS + 1 chunks are scanned
+     * or waiting to be printed at a time, and each buffers at most
+     * GREP_CHUNK_BUFFER_LINES selected lines. Once a chunk selects more, the
+     * query is not selective enough to gain from scanning ahead, and the rest
+     * of the file is scanned sequentially. Once sink needs no more lines, the
+     * remaining chunks are stopped.
+     *
+     * @param start
+     *            the offset of the first line to grep
+     * @param end
+     *            the offset after the last byte to grep
+     * @param firstLineNumber
+     *            the line number of the line at start
+     * @return the line number after the last line, or -1 if sink stopped
+     *         scanning or the query has been cancelled. Lines are only counted
+     *         when -n is specified.
+     */
+    private long grepInChunks(Path file, long start, long end, long firstLineNumber,
+            MatchSink sink) throws IOException {
+        return grepChunks(file, false,
+                MappedLineReader.splitAtLines(file, Catalog.GREP_CHUNK_BYTES, start, end),
+                firstLineNumber, sink);
+    }
+
+    /**
+     * Grep the chunks of a file between consecutive offsets in parallel, as
+     * described in grepInChunks().
+     *
+     * @param compressed
+     *            <code>true</code> if the file is in block gzip format, and
+     *            every chunk is a run of its members
+     */
+    private long grepChunks(Path file, boolean compressed, List<Long> offsets,
+            long firstLineNumber, MatchSink sink) throws IOException {
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        AtomicInteger budget = new AtomicInteger(this.maxCount);
+        int chunks = offsets.size() - 1;
+        Deque<Future<ChunkTask>> futures = new ArrayDeque<>();
+        int submitted = 0;
+        boolean sequential = false;
+
+        try {
+            long lineNumberBase = firstLineNumber;
+            for (int i = 0; i < chunks; i++) {
+                while (!sequential && submitted < chunks
+                        && futures.size() <= Catalog.GREP_CHUNK_THREADS) {
+                    futures.add(CHUNK_POOL.submit(new ChunkTask(file, compressed,
+                            offsets.get(submitted), offsets.get(submitted + 1), budget,
+                            stopped)));
+                    submitted++;
+                }
+                ChunkTask chunk = i < submitted ? futures.remove().get() : null;
+                if (cancelled) {
+                    return -1;
+                }
+                if (chunk == null || chunk.overflowed) {
+                    sequential = true;
+                    try (LineWindowReader reader = openChunk(file, compressed, offsets.get(i),
+                            offsets.get(i + 1))) {
+                        lineNumberBase = scan(reader, lineNumberBase, sink);
+                    }
+                    if (lineNumberBase < 0) {
+                        return -1;
+                    }
+                    continue;
+                }
+                for (int j = 0; j < chunk.countMatches; j++) {
+                    long lineNumber = 0;
+                    String line = null;
+                    if (needsLines()) {
+                        lineNumber = lineNumberBase + chunk.lineNumbers.get(j);
+                        line = chunk.selectedLines.get(j);
+                    }
+                    if (!sink.accept(lineNumber, line)) {
+                        return -1;
+                    }
+                }
+                budget.addAndGet(-chunk.countMatches);
+                lineNumberBase += chunk.lines;
+            }
+            return lineNumberBase;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            stopped.set(true);
+            for (Future<ChunkTask> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * LineDecoder decodes lines of a ByteBuffer into Strings, reusing one byte
+     * array to copy lines out of the buffer.
+     */
+    static class LineDecoder {
+        private static final Charset CHARSET = Charset.forName(Catalog.ENCODING);
+        private byte[] bytes = new byte[256];
+
+        String decode(ByteBuffer buf, int start, int end) {
+            int length = end - start;
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            ByteBuffer dup = buf.duplicate();
+            dup.limit(end);
+            dup.position(start);
+            dup.get(bytes, 0, length);
+            return new String(bytes, 0, length, CHARSET);
+        }
+    }
+
+    /**
+     * @param fileNamePatterns
+     * @return the file names of all files that match the specified file name
+     *         patterns
+     */
+    private List<String> getTargetFiles(List<String> fileNamePatterns) {
+        return getTargetFiles(fileNamePatterns, true);
+    }
+
+    /**
+     * @param reportErrors
+     *            if <code>false</code>, patterns matching no file or matching
+     *            directories are silently skipped
+     * @return the file names of all files that match the specified file name
+     *         patterns
+     */
+    private List<String> getTargetFiles(List<String> fileNamePatterns, boolean reportErrors) {
+        List<String> targetFiles = new ArrayList<>();
+
+        for (String pattern : fileNamePatterns) {
+            if (this.recursiveToggle || FileWalker.isMultiLevel(pattern)) {
+                List<String> files = listingCache != null
+                        ? listingCache.find(pattern, this.recursiveToggle)
+                        : FileWalker.find(pattern, this.recursiveToggle);
+                if (files.isEmpty() && reportErrors) {
+                    System.err.println(
+                            String.format("grep: %s: No such file or directory", pattern));
+                }
+                targetFiles.addAll(files);
+                continue;
+            }
+            File file = new File(pattern);
+            String name = file.getName();
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + name);
+            String dirPrefix = file.getParent() == null ? "" : file.getParent() + File.separator;
+            File dir = file.getParentFile();
+
+            if (dir == null) {
+                dir = new File(System.getProperty("user.dir"));
+            }
+
+            boolean matched = false;
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    String fn = f.getName();
+                    if (matcher.matches(Paths.get(fn))) {
+                        matched = true;
+                        if (f.isDirectory()) {
+                            if (!reportErrors) {
+                                continue;
+                            }
+                            System.err.println(
+                                    String.format("grep: %s: Is a directory", dirPrefix + fn));
+                        } else {
+                            targetFiles.add(dirPrefix + fn);
+                        }
+                    }
+                }
+            }
+
+            if (!matched && reportErrors) {
+                System.err.println(String.format("grep: %s: No such file or directory", file));
+            }
+
+        }
+
+        return targetFiles;
+    }
+
+    /**
+     * @return a pool of daemon threads for grepping the files of this query,
+     *         which has to be shut down once the query is done
+     */
+    private static ExecutorService newFilePool(int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                // daemon threads do not keep the command line Grep alive
+                Thread thread = new Thread(r, "grep-file-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * FileTask greps one file into its FileOutput. It runs on the file pool of
+     * the query.
+     */
+    private class FileTask implements Runnable {
+        private final String fileName;
+        private final FileOutput output;
+
+        FileTask(String fileName, FileOutput output) {
+            this.fileName = fileName;
+            this.output = output;
+        }
+
+        @Override
+        public void run() {
+            OutputSink sink = new OutputSink(output, fileName + ":");
+            int countMatches = FileOutput.NO_COUNT;
+            try {
+                if (grepFile(fileName, sink)) {
+                    countMatches = sink.countMatches;
+                }
+            } finally {
+                output.finish(countMatches);
+            }
+        }
+    }
+
+    /**
+     * AggregateTask greps one file into a shared aggregate. It runs on the
+     * file pool of the query.
+     */
+    private class AggregateTask implements Runnable {
+        private final String fileName;
+        private final Aggregate aggregate;
+
+        AggregateTask(String fileName, Aggregate aggregate) {
+            this.fileName = fileName;
+            this.aggregate = aggregate;
+        }
+
+        @Override
+        public void run() {
+            grepFile(fileName, new AggregateSink(aggregate));
+        }
+    }
+
+    /**
+     * SampleTask estimates the number of selected lines of one file into a
+     * shared aggregate. It runs on the file pool of the query.
+     */
+    private class SampleTask implements Runnable {
+        private final String fileName;
+        private final Aggregate aggregate;
+        private final long deadline;
+
+        SampleTask(String fileName, Aggregate aggregate, long deadline) {
+            this.fileName = fileName;
+            this.aggregate = aggregate;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            if (BlockGzip.isCompressed(Paths.get(fileName))) {
+                // blocks of compressed bytes cannot be decompressed on their
+                // own, so the file is counted in full
+                grepFile(fileName, new AggregateSink(aggregate));
+                return;
+            }
+            try {
+                sampleFile(Paths.get(fileName), aggregate, deadline);
+            } catch (NoSuchFileException e) {
+                System.err.println("grep: +" + fileName + ": No such file or directory");
+            } catch (IOException e) {
+                System.err.println(String.format("grep: %s: %s", fileName, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Estimate the number of selected lines of a file, or of its lines logged
+     * in [since, until), from a simple random sample of its blocks.
+     * <p>
+     * The range is cut into blocks of Catalog.GREP_APPROX_BLOCK_BYTES, and
+     * every line belongs to the block in which it starts, so the blocks
+     * partition the lines. Blocks are drawn without replacement until the
+     * budget is spent, and the count of the N blocks is estimated as N times
+     * the mean count of the n sampled blocks, whose variance is
+     * N<sup>2</sup>(1 - n/N)s<sup>2</sup>/n with s<sup>2</sup> the sample
+     * variance of block counts. Once all blocks are sampled, the count is
+     * exact.
+     *
+     * @param deadline
+     *            the time at which sampling stops, when the budget is a time
+     */
+    private void sampleFile(Path file, Aggregate aggregate, long deadline) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long start = 0;
+            long end = channel.size();
+            if (isTimeRange()) {
+                TimeIndex index = TimeIndex.of(file);
+                start = this.since == TimeIndex.NO_TIME ? 0 : index.seek(file, this.since)[0];
+                end = this.until == Long.MAX_VALUE ? end : index.seek(file, this.until)[0];
+            }
+            if (start >= end) {
+                return;
+            }
+            long blockBytes = Catalog.GREP_APPROX_BLOCK_BYTES;
+            int blocks = (int) Math.min(Integer.MAX_VALUE, (end - start + blockBytes - 1)
+                    / blockBytes);
+            blockBytes = (end - start + blocks - 1) / blocks;
+            int target = this.approxMillis > 0 ? blocks
+                    : (int) Math.min(blocks, Math.ceil(blocks * this.approxFraction));
+            target = Math.max(target, Math.min(blocks, Catalog.GREP_APPROX_MIN_BLOCKS));
+
+            // the first n entries of order are the blocks sampled so far
+            int[] order = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                order[i] = i;
+            }
+            Random random = new Random();
+            int n = 0;
+            double sum = 0;
+            double sumOfSquares = 0;
+            long sampledBytes = 0;
+            while (n < target && !cancelled && (n < Catalog.GREP_APPROX_MIN_BLOCKS
+                    || this.approxMillis == 0 || System.currentTimeMillis() < deadline)) {
+                int j = n + random.nextInt(blocks - n);
+                int block = order[j];
+                order[j] = order[n];
+                order[n] = block;
+                long blockStart = MappedLineReader.nextLineStart(channel,
+                        start + block * blockBytes, end);
+                long blockEnd = MappedLineReader.nextLineStart(channel,
+                        Math.min(end, start + (block + 1) * blockBytes), end);
+                Aggregate sample = new Aggregate();
+                try (MappedLineReader reader = new MappedLineReader(channel, blockStart,
+                        blockEnd, Catalog.GREP_MAP_WINDOW_BYTES)) {
+                    scan(reader, 1, new AggregateSink(sample));
+                }
+                double count = sample.getTotal();
+                sum += count;
+                sumOfSquares += count * count;
+                sampledBytes += blockEnd - blockStart;
+                n++;
+            }
+            if (n == 0) {
+                return;
+            }
+            double variance = 0;
+            if (n > 1 && n < blocks) {
+                double sampleVariance = (sumOfSquares - sum * sum / n) / (n - 1);
+                variance = (double) blocks * blocks * (1 - (double) n / blocks)
+                        * sampleVariance / n;
+            }
+            aggregate.addEstimate(sum * blocks / n, variance, sampledBytes, end - start);
+        }
+    }
+
+    /**
+     * Grep a file into sink, reporting errors to stderr.
+     *
+     * @return <code>true</code> if the file has been grepped successfully
+     */
+    private boolean grepFile(String fileName, MatchSink sink) {
+        String prefix = fileName + ":";
+        try {
+            if (BlockGzip.isCompressed(Paths.get(fileName))) {
+                grepCompressedFile(Paths.get(fileName), sink);
+            } else if (!(Catalog.GREP_USE_MEMORY_MAPPING && grepMappedFile(fileName, sink))) {
+                grepScannedFile(fileName, sink);
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            System.err.println("grep: +" + prefix + " No such file or directory");
+        } catch (IOException e) {
+            System.err.println(String.format("grep: %s %s", prefix, e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Compute the aggregate of selected lines in all target files, or in
+     * standard input if no file is specified. Files are grepped concurrently
+     * on a file pool of the query.
+     *
+     * @return the aggregate
+     */
+    public Aggregate aggregate() {
+        Aggregate aggregate = new Aggregate(isDistinct());
+        if (fileNamePatterns.isEmpty()) {
+            try {
+                Scanner sc = new Scanner(new InputStreamReader(System.in, Catalog.ENCODING));
+                sc.useDelimiter("\\n|\\r\\n");
+                grep(sc, new AggregateSink(aggregate));
+            } catch (UnsupportedEncodingException e) {
+                // Should never reach here
+                e.printStackTrace();
+            }
+            return aggregate;
+        }
+
+        List<String> targetFiles = getTargetFiles(fileNamePatterns);
+        ExecutorService pool = newFilePool(Math.min(targetFiles.size(), FILE_THREADS));
+        List<Future<?>> futures = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + this.approxMillis;
+        for (String fileName : targetFiles) {
+            futures.add(pool.submit(isApproximate()
+                    ? new SampleTask(fileName, aggregate, deadline)
+                    : new AggregateTask(fileName, aggregate)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            pool.shutdown();
+        }
+        return aggregate;
+    }
+
+    public void execute() {
+        PrintWriter pw;
+        try {
+            pw = new PrintWriter(new OutputStreamWriter(os, Catalog.ENCODING), true);
+        } catch (UnsupportedEncodingException e1) {
+            e1.printStackTrace();
+            return;
+        }
+
+        if (isAggregateQuery()) {
+            aggregate().print(pw, isGrouped(), topK);
+        } else if (this.followToggle && !fileNamePatterns.isEmpty()) {
+            follow(pw);
+        } else if (fileNamePatterns.isEmpty()) {
+            try {
+                // Use Scanner instead of BufferedReader.
+                // Because Scanner can specify delimiter which BufferedReader
+                // cannot. BufferedReader will use \r as a delimiter, which is
+                // not what we want.
+                Scanner sc = new Scanner(new InputStreamReader(System.in, Catalog.ENCODING));
+                sc.useDelimiter("\\n|\\r\\n");
+                PrintingSink sink = new PrintingSink(pw, "");
+                grep(sc, sink);
+                if (this.countToggle && this.currentCount < this.maxCount) {
+                    pw.println(sink.countMatches);
+                }
+            } catch (UnsupportedEncodingException e) {
+                // Should never reach here
+                e.printStackTrace();
+            }
+        } else {
+            List<String> targetFiles = getTargetFiles(fileNamePatterns);
+            if (this.orderedToggle && targetFiles.size() > 1) {
+                printOrdered(targetFiles, pw);
+                return;
+            }
+            ExecutorService pool = newFilePool(Math.min(targetFiles.size(), FILE_THREADS));
+            List<FileOutput> outputs = new ArrayList<>();
+            List<Future<?>> futures = new ArrayList<>();
+            for (String fileName : targetFiles) {
+                FileOutput output = new FileOutput(Catalog.GREP_FILE_BUFFER_LINES);
+                outputs.add(output);
+                futures.add(pool.submit(new FileTask(fileName, output)));
+            }
+
+            try {
+                for (int i = 0; i < outputs.size(); i++) {
+                    if (!print(outputs.get(i), targetFiles.get(i) + ":", pw)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // stop workers which are still running
+                for (int i = 0; i < outputs.size(); i++) {
+                    outputs.get(i).abandon();
+                    futures.get(i).cancel(false);
+                }
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Print the selected lines of all files merged in time order. The files
+     * are grepped at the same time, on a file pool of the query with a thread
+     * per file: the merge needs the next line of every file before it can
+     * print any, so a file queued behind files blocked on their full buffers
+     * would never be grepped. The workers block on their FileOutput while the
+     * client reads slowly, which only holds up this query, and the pool is
+     * shut down once the merge is done.
+     */
+    private void printOrdered(List<String> targetFiles, final PrintWriter pw) {
+        ExecutorService pool = newFilePool(targetFiles.size());
+        List<FileOutput> outputs = new ArrayList<>();
+        for (String fileName : targetFiles) {
+            FileOutput output = new FileOutput(Catalog.GREP_FILE_BUFFER_LINES);
+            outputs.add(output);
+            pool.execute(new FileTask(fileName, output));
+        }
+        try {
+            new OrderedMerge(getPrefixFields()).merge(outputs, new OrderedMerge.Sink() {
+                @Override
+                public boolean accept(int source, String line) {
+                    pw.println(line);
+                    currentCount += 1;
+                    return currentCount < maxCount && !cancelled;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // stop files which are still being grepped
+            for (FileOutput output : outputs) {
+                output.abandon();
+            }
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Print the output of a file as it is produced, and apply max count across
+     * all files.
+     *
+     * @return <code>false</code> if max count is reached or the query has
+     *         been cancelled
+     */
+    private boolean print(FileOutput output, String prefix, PrintWriter pw)
+            throws InterruptedException {
+        List<String> lines;
+        while ((lines = output.take()) != null) {
+            if (cancelled) {
+                return false;
+            }
+            for (String line : lines) {
+                pw.println(line);
+                currentCount += 1;
+                if (currentCount >= this.maxCount) {
+                    return false;
+                }
+            }
+        }
+
+        if (cancelled) {
+            // the count of a file may be partial
+            return false;
+        }
+        int countMatches = output.getCountMatches();
+        if (this.countToggle && countMatches != FileOutput.NO_COUNT) {
+            currentCount += countMatches;
+            if (currentCount >= this.maxCount) {
+                return false;
+            }
+            pw.println(prefix + countMatches);
+        }
+        return true;
+    }
+
+    private void grepScannedFile(String fileName, MatchSink sink) throws FileNotFoundException {
+        try (Scanner sc = new Scanner(
+                new InputStreamReader(new FileInputStream(fileName), Catalog.ENCODING))) {
+            sc.useDelimiter("\\n|\\r\\n");
+            grep(sc, sink);
+        } catch (UnsupportedEncodingException e) {
+            // Should never reach here
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Grep a gzip file, which is decompressed as it is scanned, so only the
+     * compressed bytes are read from disk. The members of a block gzip file
+     * with an index are decompressed in parallel chunks on CHUNK_POOL. A
+     * compressed file has no time index, so with --since or --until, the
+     * times of all lines are parsed as the file is scanned from its start.
+     */
+    private void grepCompressedFile(Path file, MatchSink sink) throws IOException {
+        if (isTimeRange()) {
+            try (StreamLineReader reader = new StreamLineReader(BlockGzip.open(file),
+                    Catalog.GREP_STREAM_WINDOW_BYTES)) {
+                scan(reader, 1, new TimeIndex.TimestampParser(), sink);
+            }
+            return;
+        }
+        BlockGzip.Index index = Catalog.GREP_CHUNK_THREADS > 1 ? BlockGzip.Index.open(file)
+                : null;
+        if (index != null && index.members() > 1) {
+            grepChunks(file, true, index.chunkOffsets(Catalog.GREP_CHUNK_BYTES), 1, sink);
+            return;
+        }
+        try (StreamLineReader reader = new StreamLineReader(BlockGzip.open(file),
+                Catalog.GREP_STREAM_WINDOW_BYTES)) {
+            scan(reader, 1, sink);
+        }
+    }
+
+    /**
+     * Grep a file through memory mapping.
+     *
+     * @return <code>true</code> if the file has been grepped, or
+     *         <code>false</code> if the file cannot be mapped and nothing has
+     *         been selected, in which case the caller should fall back to the
+     *         Scanner path.
+     * @throws IOException
+     *             if any IO error occurs after some lines have been selected
+     */
+    private boolean grepMappedFile(String fileName, MatchSink sink) throws IOException {
+        Path file = Paths.get(fileName);
+        long size;
+        try (MappedLineReader reader = new MappedLineReader(file, Catalog.GREP_MAP_WINDOW_BYTES)) {
+            size = reader.size();
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+        ColumnarLog columns = predicates.isEmpty() ? null : ColumnarLog.open(file);
+        if (columns != null) {
+            grepColumns(columns, sink);
+        } else if (isTimeRange()) {
+            grepTimeRange(file, size, sink);
+        } else if (resultCache != null) {
+            grepCachedFile(file, size, sink);
+        } else {
+            grepMappedRange(file, Long.MAX_VALUE, sink);
+        }
+        return true;
+    }
+
+    /**
+     * Grep a log file through its columns. The lines are selected by the
+     * predicates on the columns, and are only put together from the columns
+     * if they have to be matched against the pattern or output.
+     */
+    private void grepColumns(ColumnarLog columns, final MatchSink sink) throws IOException {
+        columns.select(predicates, since, until, invertMatchToggle ? null : requiredLiterals,
+                cmd.hasOption("ignore-case"), needsLines() || !matchesEverything,
+                new ColumnarLog.RowSink() {
+                    @Override
+                    public boolean accept(long lineNumber, String line) {
+                        if (cancelled) {
+                            return false;
+                        }
+                        if (!matchesEverything && !matchesPattern(line)) {
+                            return true;
+                        }
+                        return sink.accept(lineNumber, line);
+                    }
+                });
+    }
+
+    /**
+     * Grep the first end bytes of a file, through its trigram index if it
+     * helps, in parallel chunks if the range is large, or in one scan.
+     *
+     * @return the line number after the last line, or -1 if sink stopped
+     *         scanning. Lines are only counted when -n is specified.
+     */
+    private long grepMappedRange(Path file, long end, MatchSink sink) throws IOException {
+        TrigramIndex index = null;
+        if (requiredLiterals != null && !invertMatchToggle) {
+            index = TrigramIndex.open(file);
+        }
+        BitSet blocks = index == null ? null : index.candidateBlocks(requiredLiterals);
+        if (blocks != null && index.indexedLength() <= end) {
+            return grepIndexed(file, index, blocks, end, sink);
+        }
+        try (MappedLineReader reader = new MappedLineReader(file, 0, end,
+                Catalog.GREP_MAP_WINDOW_BYTES)) {
+            if (Catalog.GREP_CHUNK_THREADS > 1 && reader.size() > Catalog.GREP_CHUNK_BYTES) {
+                return grepInChunks(file, 0, end, 1, sink);
+            }
+            return scan(reader, 1, sink);
+        }
+    }
+
+    /**
+     * Grep only the lines of a file logged in [since, until), which are found
+     * through the TimeIndex of the file.
+     *
+     * @param size
+     *            the size of the file
+     */
+    private void grepTimeRange(Path file, long size, MatchSink sink) throws IOException {
+        TimeIndex index = TimeIndex.of(file);
+        long[] start = this.since == TimeIndex.NO_TIME ? new long[] { 0, 1 }
+                : index.seek(file, this.since);
+        long end = this.until == Long.MAX_VALUE ? size : index.seek(file, this.until)[0];
+        if (start[0] >= end) {
+            return;
+        }
+        if (Catalog.GREP_CHUNK_THREADS > 1 && end - start[0] > Catalog.GREP_CHUNK_BYTES) {
+            grepInChunks(file, start[0], end, start[1], sink);
+            return;
+        }
+        try (MappedLineReader reader = new MappedLineReader(file, start[0], end,
+                Catalog.GREP_MAP_WINDOW_BYTES)) {
+            scan(reader, start[1], sink);
+        }
+    }
+
+    /**
+     * Grep a file through ResultCache. Selected lines of the bytes scanned by
+     * the previous run of the same query are replayed from the cache, and
+     * only the bytes appended since are scanned. The last line is scanned but
+     * not cached if it does not end with a newline yet, since it may still
+     * grow.
+     *
+     * @param size
+     *            the size of the file
+     */
+    private void grepCachedFile(Path file, long size, MatchSink sink) throws IOException {
+        String key = cacheKey();
+        ResultCache.Entry entry = resultCache.get(key, file);
+        long end = MappedLineReader.lastLineEnd(file, size);
+        if (entry != null && entry.scannedBytes > end) {
+            // truncated since the size was taken
+            entry = null;
+        }
+        if (entry != null) {
+            for (ResultCache.Segment segment : entry.segments()) {
+                for (int i = 0; i < segment.countMatches; i++) {
+                    long lineNumber = 0;
+                    String line = null;
+                    if (needsLines()) {
+                        lineNumber = segment.lineNumbers.get(i);
+                        line = segment.selectedLines.get(i);
+                    }
+                    if (!sink.accept(lineNumber, line)) {
+                        return;
+                    }
+                }
+            }
+            if (entry.complete) {
+                return;
+            }
+        }
+
+        // identify the file before scanning, so a rotation during the scan
+        // invalidates the new entry
+        String fileKey = TrigramIndex.fileKey(file);
+        long headHash = TrigramIndex.headHash(file, end);
+        RecordingSink recorder = new RecordingSink(sink,
+                resultCache.maxEntryBytes() - (entry == null ? 0 : entry.estimatedBytes));
+        long lineNumber;
+        if (entry == null) {
+            lineNumber = grepMappedRange(file, end, recorder);
+        } else {
+            try (MappedLineReader reader = new MappedLineReader(file, entry.scannedBytes, end,
+                    Catalog.GREP_MAP_WINDOW_BYTES)) {
+                lineNumber = scan(reader, entry.lines + 1, recorder);
+            }
+        }
+
+        int countMatches = recorder.countMatches + (entry == null ? 0 : entry.countMatches);
+        boolean complete = countMatches >= this.maxCount;
+        if (lineNumber < 0 && !complete) {
+            // stopped for another reason than max count, so the range has not
+            // been fully scanned
+            return;
+        }
+        // a recording which overflowed is too large to cache, so the query
+        // scans the file every time
+        if (!recorder.overflowed) {
+            resultCache.put(key, file, entry == null
+                    ? new ResultCache.Entry(fileKey, headHash, end, lineNumber - 1,
+                            recorder.countMatches, recorder.lineNumbers,
+                            recorder.selectedLines, complete)
+                    : entry.extend(headHash, end, lineNumber - 1, recorder.countMatches,
+                            recorder.lineNumbers, recorder.selectedLines, complete));
+        }
+
+        if (lineNumber >= 0 && end < size) {
+            try (MappedLineReader reader = new MappedLineReader(file, end, size,
+                    Catalog.GREP_MAP_WINDOW_BYTES)) {
+                scan(reader, lineNumber, sink);
+            }
+        }
+    }
+
+    /**
+     * Grep the first end bytes of a file through its trigram index. Only
+     * candidate blocks and the unindexed tail are scanned. Line numbers of
+     * skipped blocks are taken from the index.
+     *
+     * @return the line number after the last line, or -1 if sink stopped
+     *         scanning. Lines are only counted when -n is specified.
+     */
+    private long grepIndexed(Path file, TrigramIndex index, BitSet blocks, long end,
+            MatchSink sink) throws IOException {
+        long lineNumber = 1;
+        int i = 0;
+        while (i < index.blockCount()) {
+            if (!blocks.get(i)) {
+                lineNumber += index.blockLines(i);
+                i++;
+                continue;
+            }
+            // scan a run of consecutive candidate blocks at once
+            int j = i;
+            long lines = 0;
+            while (j < index.blockCount() && blocks.get(j)) {
+                lines += index.blockLines(j);
+                j++;
+            }
+            try (MappedLineReader reader = new MappedLineReader(file, index.blockStart(i),
+                    index.blockEnd(j - 1), Catalog.GREP_MAP_WINDOW_BYTES)) {
+                if (scan(reader, lineNumber, sink) < 0) {
+                    return -1;
+                }
+            }
+            lineNumber += lines;
+            i = j;
+        }
+
+        try (MappedLineReader reader = new MappedLineReader(file, index.indexedLength(), end,
+                Catalog.GREP_MAP_WINDOW_BYTES)) {
+            return scan(reader, lineNumber, sink);
+        }
+    }
+
+    /**
+     * FollowedFile is a file followed by --follow: the channel opened on it,
+     * and the offset and line number of the first line not scanned yet. The
+     * channel stays open, so lines appended to a file right before it is
+     * rotated are still read.
+     */
+    private class FollowedFile {
+        private final String fileName;
+        private final PrintingSink sink;
+        /** the identities of all files followed by the query */
+        private final Set<String> followedKeys;
+        private FileChannel channel;
+        private String fileKey;
+        private long offset;
+        private long lineNumber = 1;
+        /** the hash of the beginning of the first offset bytes */
+        private long headHash;
+
+        /**
+         * @param fromEnd
+         *            if <code>true</code>, only lines completed from now on are
+         *            followed, otherwise the whole file, unless it has been
+         *            followed under another name before
+         * @throws NoSuchFileException
+         *             if the file has been rotated away since it was listed
+         */
+        FollowedFile(String fileName, PrintWriter pw, Set<String> followedKeys,
+                boolean fromEnd) throws IOException {
+            this.fileName = fileName;
+            this.sink = new PrintingSink(pw, fileName + ":");
+            this.followedKeys = followedKeys;
+            open(fromEnd);
+        }
+
+        /**
+         * Open the file the name refers to now, and close the previous one.
+         *
+         * @throws NoSuchFileException
+         *             if no file has the name, and the previous file is kept
+         */
+        private void open(boolean fromEnd) throws IOException {
+            Path path = Paths.get(fileName);
+            String key;
+            FileChannel opened;
+            do {
+                key = TrigramIndex.fileKey(path);
+                opened = FileChannel.open(path, StandardOpenOption.READ);
+                try {
+                    // the name may have been given to another file meanwhile
+                    if (!key.equals(TrigramIndex.fileKey(path))) {
+                        opened.close();
+                        opened = null;
+                    }
+                } catch (IOException e) {
+                    opened.close();
+                    throw e;
+                }
+            } while (opened == null);
+
+            if (channel != null) {
+                channel.close();
+            }
+            channel = opened;
+            fileKey = key;
+            // a file rotated to another name has been read under its old one
+            fromEnd |= !key.isEmpty() && followedKeys.contains(key);
+            followedKeys.add(key);
+            offset = 0;
+            lineNumber = 1;
+            if (fromEnd) {
+                offset = MappedLineReader.lastLineEnd(channel, channel.size());
+                if (lineNumberToggle) {
+                    lineNumber += countLines(channel, offset);
+                }
+            }
+            headHash = TrigramIndex.headHash(channel, offset);
+        }
+
+        /**
+         * Scan the lines appended since the last poll. If the file name now
+         * refers to another file, the rest of the old file is scanned before
+         * switching to the new one.
+         *
+         * @return <code>false</code> if max count is reached
+         */
+        boolean poll() throws IOException {
+            String currentKey;
+            try {
+                currentKey = TrigramIndex.fileKey(Paths.get(fileName));
+            } catch (IOException e) {
+                // rotated away, and not created again yet
+                currentKey = null;
+            }
+            if (currentKey != null && currentKey.equals(fileKey)) {
+                if (channel.size() < offset
+                        || TrigramIndex.headHash(channel, offset) != headHash) {
+                    // truncated in place, and maybe written again since
+                    offset = 0;
+                    lineNumber = 1;
+                }
+                return scan(false);
+            }
+
+            if (!scan(true)) {
+                return false;
+            }
+            if (currentKey != null) {
+                try {
+                    open(false);
+                    return scan(false);
+                } catch (NoSuchFileException e) {
+                    // rotated away again before it could be opened
+                }
+            }
+            fileKey = null;
+            return true;
+        }
+
+        /**
+         * @param toEnd
+         *            if <code>true</code>, also scan a last line without
+         *            trailing newline, since the file is no longer written
+         */
+        private boolean scan(boolean toEnd) throws IOException {
+            long size = channel.size();
+            long end = toEnd ? size : MappedLineReader.lastLineEnd(channel, size);
+            if (end <= offset) {
+                return true;
+            }
+            try (MappedLineReader reader = new MappedLineReader(channel, offset, end,
+                    Catalog.GREP_MAP_WINDOW_BYTES)) {
+                long next = Grep.this.scan(reader, lineNumber, sink);
+                if (next < 0) {
+                    return false;
+                }
+                offset = end;
+                lineNumber = next;
+            } catch (InternalError e) {
+                // the JVM reports the SIGBUS of reading mapped bytes which
+                // have been truncated away, e.g. by copytruncate rotation,
+                // as an InternalError
+                if (channel.size() >= end) {
+                    throw e;
+                }
+                offset = 0;
+                lineNumber = 1;
+                if (!toEnd) {
+                    headHash = TrigramIndex.headHash(channel, 0);
+                }
+                return true;
+            }
+            if (!toEnd) {
+                headHash = TrigramIndex.headHash(channel, offset);
+            }
+            return true;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the number of lines in the first end bytes of a channel
+     */
+    private static long countLines(FileChannel channel, long end) throws IOException {
+        long lines = 0;
+        try (MappedLineReader reader = new MappedLineReader(channel, 0, end,
+                Catalog.GREP_MAP_WINDOW_BYTES)) {
+            ByteBuffer window;
+            while ((window = reader.nextWindow()) != null) {
+                lines += MappedLineReader.count(window, NEWLINE, window.position(),
+                        window.limit());
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Start following a file, unless it has been rotated away since it was
+     * listed, in which case it is looked for again at the next poll.
+     */
+    private void startFollowing(Map<String, FollowedFile> files, String fileName,
+            PrintWriter pw, Set<String> followedKeys, boolean fromEnd) throws IOException {
+        try {
+            files.put(fileName, new FollowedFile(fileName, pw, followedKeys, fromEnd));
+        } catch (NoSuchFileException e) {
+            // not there anymore
+        }
+    }
+
+    /**
+     * Follow the target files, and print selected lines completed after the
+     * query started, until cancelled, max count is reached or the output is
+     * broken. Files are checked whenever the WatchService reports a change in
+     * their directories, and at least every Catalog.GREP_FOLLOW_POLL_PERIOD,
+     * since not all file systems report changes.
+     */
+    private void follow(PrintWriter pw) {
+        Map<String, FollowedFile> files = new LinkedHashMap<>();
+        WatchService watcher = null;
+        try {
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+                Set<Path> dirs = new LinkedHashSet<>();
+                for (String pattern : fileNamePatterns) {
+                    dirs.add(Paths.get(pattern).toAbsolutePath().getParent());
+                }
+                for (Path dir : dirs) {
+                    dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                }
+            } catch (IOException | UnsupportedOperationException e) {
+                // poll offsets only
+            }
+
+            // files existing now are followed from their end, files created
+            // later from their beginning
+            Set<String> followedKeys = new LinkedHashSet<>();
+            for (String fileName : getTargetFiles(fileNamePatterns)) {
+                startFollowing(files, fileName, pw, followedKeys, true);
+            }
+            while (!cancelled && !pw.checkError()) {
+                if (watcher != null) {
+                    WatchKey key = watcher.poll(Catalog.GREP_FOLLOW_POLL_PERIOD,
+                            Catalog.TIME_UNIT);
+                    while (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                        key = watcher.poll();
+                    }
+                } else {
+                    Thread.sleep(Catalog.GREP_FOLLOW_POLL_PERIOD);
+                }
+
+                for (String fileName : getTargetFiles(fileNamePatterns, false)) {
+                    if (!files.containsKey(fileName)) {
+                        startFollowing(files, fileName, pw, followedKeys, false);
+                    }
+                }
+                for (FollowedFile file : files.values()) {
+                    if (!file.poll()) {
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(String.format("grep: %s", e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (FollowedFile file : files.values()) {
+                file.close();
+            }
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
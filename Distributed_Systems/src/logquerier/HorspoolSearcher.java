@@ -0,0 +1,126 @@
+package logquerier;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import system.Catalog;
+
+/**
+ * HorspoolSearcher finds a literal byte string with the Boyer-Moore-Horspool
+ * algorithm. When ignoring case, only US-ASCII letters are folded, which is
+ * the same as Pattern.CASE_INSENSITIVE without Pattern.UNICODE_CASE.
+ * <p>
+ * With Catalog.GREP_USE_SWAR, candidates are first found 8 positions at a
+ * time, as the positions where both the first and the last byte of the needle
+ * match, like SwarBytes. Only they are compared byte by byte.
+ */
+public class HorspoolSearcher implements ByteSearcher {
+    private final byte[] needle;
+    private final int[] shift;
+    private final boolean ignoreCase;
+    /** the first and last byte of the needle, folded, in every byte */
+    private final long firstBytes;
+    private final long lastBytes;
+    /**
+     * the bits set in every byte before comparing with firstBytes and
+     * lastBytes, which fold the case of letters
+     */
+    private final long firstFold;
+    private final long lastFold;
+
+    public HorspoolSearcher(byte[] needle, boolean ignoreCase) {
+        if (needle.length == 0) {
+            throw new IllegalArgumentException("Empty needle");
+        }
+        this.ignoreCase = ignoreCase;
+        this.needle = new byte[needle.length];
+        for (int i = 0; i < needle.length; i++) {
+            this.needle[i] = fold(needle[i]);
+        }
+        this.shift = new int[256];
+        Arrays.fill(shift, needle.length);
+        for (int i = 0; i < needle.length - 1; i++) {
+            shift[this.needle[i] & 0xff] = needle.length - 1 - i;
+        }
+        byte first = this.needle[0];
+        byte last = this.needle[needle.length - 1];
+        this.firstBytes = (first & 0xffL) * SwarBytes.ONES;
+        this.lastBytes = (last & 0xffL) * SwarBytes.ONES;
+        this.firstFold = isFoldedLetter(first) ? 0x20 * SwarBytes.ONES : 0;
+        this.lastFold = isFoldedLetter(last) ? 0x20 * SwarBytes.ONES : 0;
+    }
+
+    /**
+     * @return <code>true</code> if ignoring case and b is a lower case
+     *         letter, whose upper case differs by bit 0x20 only
+     */
+    private boolean isFoldedLetter(byte b) {
+        return ignoreCase && b >= 'a' && b <= 'z';
+    }
+
+    private byte fold(byte b) {
+        if (ignoreCase && b >= 'A' && b <= 'Z') {
+            return (byte) (b + ('a' - 'A'));
+        }
+        return b;
+    }
+
+    @Override
+    public int indexOf(ByteBuffer buf, int from, int to) {
+        int last = needle.length - 1;
+        int i = from;
+        if (Catalog.GREP_USE_SWAR) {
+            boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+            for (; i <= to - last - 8; i += 8) {
+                long candidates = SwarBytes.equalBytes(buf.getLong(i) | firstFold, firstBytes)
+                        & SwarBytes.equalBytes(buf.getLong(i + last) | lastFold, lastBytes);
+                while (candidates != 0) {
+                    int k = SwarBytes.first(candidates, bigEndian);
+                    if (matchesAt(buf, i + k)) {
+                        return i + k;
+                    }
+                    candidates &= bigEndian ? ~(Long.MIN_VALUE >>> (k << 3))
+                            : ~(0x80L << (k << 3));
+                }
+            }
+        }
+        while (i + last < to) {
+            byte b = fold(buf.get(i + last));
+            if (b == needle[last]) {
+                int j = last - 1;
+                while (j >= 0 && fold(buf.get(i + j)) == needle[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += shift[b & 0xff];
+        }
+        return -1;
+    }
+
+    private boolean matchesAt(ByteBuffer buf, int i) {
+        for (int j = needle.length - 2; j > 0; j--) {
+            if (fold(buf.get(i + j)) != needle[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a searcher which finds the leftmost occurrence of any of the
+     *         literals. Several literals are found in one pass by
+     *         Aho-Corasick, since searching for each literal in turn rescans
+     *         the bytes after every occurrence of a frequent one.
+     */
+    public static ByteSearcher anyOf(List<byte[]> literals, boolean ignoreCase) {
+        if (literals.size() == 1) {
+            return new HorspoolSearcher(literals.get(0), ignoreCase);
+        }
+        return new AhoCorasickSearcher(literals, ignoreCase);
+    }
+}
@@ -0,0 +1,1006 @@
+package logquerier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import system.Catalog;
+
+/**
+ * LazyDfa matches lines against a Pattern in time linear in the length of the
+ * line, whatever the pattern, like RE2. The pattern is compiled into an NFA,
+ * whose DFA states are built lazily, as lines need them, and cached. Each
+ * thread has its own cache of at most Catalog.GREP_DFA_MAX_STATES states,
+ * which is flushed when full, so memory stays bounded and each character costs
+ * at most one step of the NFA.
+ * <p>
+ * Only the regular subset of the java.util.regex syntax is supported:
+ * literals, character classes, ., \d \w \s and their complements, groups,
+ * alternation, greedy and lazy quantifiers, ^ $ \A \z \Z \b \B, and the
+ * CASE_INSENSITIVE and UNIX_LINES flags. Backreferences, lookaround,
+ * possessive quantifiers, atomic groups, embedded flags and Unicode properties
+ * are not.
+ * <p>
+ * matches(line) is equivalent to pattern.matcher(line).matches(). Lines which
+ * the DFA cannot decide exactly, because they contain line terminators, or non
+ * ASCII characters where the pattern has word boundaries, are matched by the
+ * Pattern itself.
+ */
+public class LazyDfa {
+    /** patterns needing more NFA states, through large repetitions, are not supported */
+    private static final int MAX_NFA_STATES = 10000;
+    private static final int MAX_CODE_POINT = Character.MAX_CODE_POINT;
+
+    // NFA state types
+    private static final int CHARS = 0;
+    private static final int SPLIT = 1;
+    private static final int ASSERT = 2;
+    private static final int MATCH = 3;
+
+    // assertions
+    private static final int BEGIN = 0;
+    private static final int END = 1;
+    private static final int WORD_BOUNDARY = 2;
+    private static final int NOT_WORD_BOUNDARY = 3;
+
+    // DFA state flags, the context assertions depend on
+    private static final int AT_BEGIN = 1;
+    private static final int AFTER_WORD = 2;
+
+    private final Pattern pattern;
+    private final boolean unixLines;
+
+    private final int[] type;
+    private final int[] out;
+    /** the second successor of SPLIT states, or the assertion of ASSERT states */
+    private final int[] arg;
+    /** the character classes accepted by each CHARS state */
+    private final boolean[][] accepts;
+    private final int start;
+
+    /** the first code point of each character class, ascending */
+    private final int[] classStarts;
+    /**
+     * the input symbol of each ASCII character, or -1 for line terminators,
+     * which the DFA leaves to the pattern
+     */
+    private final int[] asciiSymbol = new int[128];
+    private final int classCount;
+    /** if <code>true</code>, the input symbols also tell word characters */
+    private final boolean hasWordBoundaries;
+    /** the DFA state flags which any assertion of the pattern depends on */
+    private final int flagMask;
+    /**
+     * <code>true</code> if the pattern ends with .*, so a line matches as
+     * soon as any prefix of it does
+     */
+    private final boolean matchesPrefix;
+
+    private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+        @Override
+        protected Cache initialValue() {
+            return new Cache();
+        }
+    };
+
+    /**
+     * @return the DFA matching lines like the pattern, or <code>null</code>
+     *         if the pattern uses syntax or flags which are not supported
+     */
+    public static LazyDfa of(Pattern pattern) {
+        if ((pattern.flags() & ~(Pattern.CASE_INSENSITIVE | Pattern.UNIX_LINES)) != 0) {
+            return null;
+        }
+        try {
+            Node root = new Parser(pattern.pattern(),
+                    (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0).parse();
+            return new LazyDfa(pattern, root);
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private LazyDfa(Pattern pattern, Node root) {
+        this.pattern = pattern;
+        this.unixLines = (pattern.flags() & Pattern.UNIX_LINES) != 0;
+
+        // split code points into classes which no part of the pattern tells
+        // apart, so transitions are on classes rather than code points
+        List<int[]> sets = new ArrayList<>();
+        root.collectRanges(sets);
+        // the ASCII word characters, for word boundaries
+        sets.add(Ranges.WORD);
+        int length = 0;
+        for (int[] ranges : sets) {
+            length += ranges.length;
+        }
+        int[] bounds = new int[length + 1];
+        int n = 0;
+        bounds[n++] = 0;
+        for (int[] ranges : sets) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                bounds[n++] = ranges[i];
+                bounds[n++] = ranges[i + 1] + 1;
+            }
+        }
+        Arrays.sort(bounds, 0, n);
+        int classes = 0;
+        for (int i = 0; i < n; i++) {
+            if (bounds[i] <= MAX_CODE_POINT
+                    && (classes == 0 || bounds[i] != bounds[classes - 1])) {
+                bounds[classes++] = bounds[i];
+            }
+        }
+        this.classStarts = Arrays.copyOf(bounds, classes);
+        this.classCount = classes;
+
+        Compiler compiler = new Compiler();
+        int match = compiler.add(MATCH, -1, -1, null);
+        this.start = compiler.compile(root, match);
+        this.type = Arrays.copyOf(compiler.type, compiler.size);
+        this.out = Arrays.copyOf(compiler.out, compiler.size);
+        this.arg = Arrays.copyOf(compiler.arg, compiler.size);
+        this.accepts = new boolean[compiler.size][];
+        int flagMask = 0;
+        for (int s = 0; s < compiler.size; s++) {
+            if (type[s] == CHARS) {
+                int[] ranges = compiler.ranges.get(s);
+                accepts[s] = new boolean[classes];
+                for (int c = 0; c < classes; c++) {
+                    accepts[s][c] = Ranges.contains(ranges, classStarts[c]);
+                }
+            } else if (type[s] == ASSERT) {
+                flagMask |= arg[s] == BEGIN ? AT_BEGIN : arg[s] == END ? 0 : AFTER_WORD;
+            }
+        }
+        this.flagMask = flagMask;
+        this.hasWordBoundaries = (flagMask & AFTER_WORD) != 0;
+        this.matchesPrefix = root.endsWithDotStar();
+        for (int c = 0; c < 128; c++) {
+            asciiSymbol[c] = isTerminator(c) ? -1
+                    : hasWordBoundaries && isWord(c) ? classOf(c) + classes : classOf(c);
+        }
+    }
+
+    private int classOf(int codePoint) {
+        int index = Arrays.binarySearch(classStarts, codePoint);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private static boolean isWord(int codePoint) {
+        return Ranges.contains(Ranges.WORD, codePoint);
+    }
+
+    /**
+     * @return <code>true</code> if the whole line matches the pattern
+     */
+    public boolean matches(CharSequence line) {
+        Cache cache = caches.get();
+        State state = cache.start();
+        int length = line.length();
+        for (int i = 0; i < length;) {
+            int codePoint = line.charAt(i);
+            int symbol;
+            if (codePoint < 128) {
+                symbol = asciiSymbol[codePoint];
+                i++;
+            } else {
+                codePoint = Character.codePointAt(line, i);
+                i += Character.charCount(codePoint);
+                symbol = hasWordBoundaries || isTerminator(codePoint) ? -1 : classOf(codePoint);
+            }
+            if (symbol < 0) {
+                return pattern.matcher(line).matches();
+            }
+            State next = state.next[symbol];
+            state = next != null ? next : cache.step(state, symbol);
+            if (state.nodes.length == 0) {
+                return false;
+            }
+            if (matchesPrefix && state.hasMatch) {
+                // the trailing .* matches the rest, unless it has line
+                // terminators
+                return isLine(line, i) || pattern.matcher(line).matches();
+            }
+        }
+        return cache.acceptsAtEnd(state);
+    }
+
+    /**
+     * @return <code>true</code> if the line has no line terminator from the
+     *         specified index on
+     */
+    private boolean isLine(CharSequence line, int from) {
+        for (int i = from; i < line.length(); i++) {
+            if (isTerminator(line.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if the character ends lines for the pattern,
+     *         which the DFA leaves to it
+     */
+    private boolean isTerminator(int c) {
+        return c == '\n' || (!unixLines
+                && (c == '\r' || c == 0x85 || c == 0x2028 || c == 0x2029));
+    }
+
+    /**
+     * A DFA state: the NFA states the input so far can lead to, without
+     * following assertions, which depend on the next character.
+     */
+    private static class State {
+        final int[] nodes;
+        final int flags;
+        final State[] next;
+        /** <code>true</code> if the MATCH state is among nodes */
+        boolean hasMatch;
+        /** 1 if the input may end here, 0 if not, -1 if not known yet */
+        int acceptsAtEnd = -1;
+
+        State(int[] nodes, int flags, int symbols) {
+            this.nodes = nodes;
+            this.flags = flags;
+            this.next = new State[symbols];
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            State other = (State) obj;
+            return flags == other.flags && Arrays.equals(nodes, other.nodes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(nodes) * 31 + flags;
+        }
+    }
+
+    /**
+     * The DFA states built by one thread.
+     */
+    private class Cache {
+        private final Map<State, State> states = new HashMap<>();
+        private State start;
+        /** the generation in which each NFA state was last visited */
+        private final int[] visited = new int[type.length];
+        private int generation = 0;
+        private final int[] stack = new int[type.length];
+        private final int[] found = new int[type.length];
+
+        State start() {
+            if (start == null) {
+                start = intern(follow(new int[] { LazyDfa.this.start }, false, 0, false, false),
+                        AT_BEGIN);
+            }
+            return start;
+        }
+
+        /**
+         * @return the state after reading the symbol in the specified state
+         */
+        State step(State state, int symbol) {
+            boolean word = symbol >= classCount;
+            int cls = word ? symbol - classCount : symbol;
+            int[] nodes = follow(state.nodes, true, state.flags, false, word);
+            int targets = 0;
+            for (int s : nodes) {
+                if (type[s] == CHARS && accepts[s][cls]) {
+                    nodes[targets++] = out[s];
+                }
+            }
+            State next = intern(follow(Arrays.copyOf(nodes, targets), false, 0, false, false),
+                    word ? AFTER_WORD : 0);
+            state.next[symbol] = next;
+            return next;
+        }
+
+        boolean acceptsAtEnd(State state) {
+            if (state.acceptsAtEnd < 0) {
+                state.acceptsAtEnd = 0;
+                for (int s : follow(state.nodes, true, state.flags, true, false)) {
+                    if (type[s] == MATCH) {
+                        state.acceptsAtEnd = 1;
+                    }
+                }
+            }
+            return state.acceptsAtEnd == 1;
+        }
+
+        private State intern(int[] nodes, int flags) {
+            State state = new State(nodes, flags & flagMask,
+                    hasWordBoundaries ? classCount * 2 : classCount);
+            State cached = states.get(state);
+            if (cached != null) {
+                return cached;
+            }
+            if (states.size() >= Catalog.GREP_DFA_MAX_STATES) {
+                // like RE2, start over rather than grow; states still in use
+                // by the current line are garbage once it is matched
+                states.clear();
+                start = null;
+            }
+            for (int s : nodes) {
+                state.hasMatch |= type[s] == MATCH;
+            }
+            states.put(state, state);
+            return state;
+        }
+
+        /**
+         * Follow the SPLIT states, and the ASSERT states if expanding, from
+         * the specified states.
+         *
+         * @param flags
+         *            the context before the next character
+         * @param atEnd
+         *            <code>true</code> if there is no next character
+         * @param word
+         *            <code>true</code> if the next character is a word
+         *            character
+         * @return the CHARS and MATCH states reached, and the ASSERT states if
+         *         not expanding, ascending
+         */
+        private int[] follow(int[] from, boolean expand, int flags, boolean atEnd,
+                boolean word) {
+            generation++;
+            int count = 0;
+            int top = 0;
+            for (int i = from.length - 1; i >= 0; i--) {
+                top = push(from[i], top);
+            }
+            while (top > 0) {
+                int s = stack[--top];
+                switch (type[s]) {
+                case SPLIT:
+                    top = push(arg[s], top);
+                    top = push(out[s], top);
+                    break;
+                case ASSERT:
+                    if (!expand) {
+                        found[count++] = s;
+                    } else if (holds(arg[s], flags, atEnd, word)) {
+                        top = push(out[s], top);
+                    }
+                    break;
+                default:
+                    found[count++] = s;
+                }
+            }
+            int[] nodes = Arrays.copyOf(found, count);
+            Arrays.sort(nodes);
+            return nodes;
+        }
+
+        /**
+         * Push the state unless visited in this generation already.
+         *
+         * @return the new top of the stack
+         */
+        private int push(int s, int top) {
+            if (visited[s] != generation) {
+                visited[s] = generation;
+                stack[top++] = s;
+            }
+            return top;
+        }
+
+        private boolean holds(int assertion, int flags, boolean atEnd, boolean word) {
+            boolean afterWord = (flags & AFTER_WORD) != 0;
+            switch (assertion) {
+            case BEGIN:
+                return (flags & AT_BEGIN) != 0;
+            case END:
+                return atEnd;
+            case WORD_BOUNDARY:
+                return afterWord != word;
+            default:
+                return afterWord == word;
+            }
+        }
+    }
+
+    /**
+     * Builds the NFA of a parsed pattern, Thompson's way, from the last state
+     * backwards.
+     */
+    private static class Compiler {
+        int[] type = new int[64];
+        int[] out = new int[64];
+        int[] arg = new int[64];
+        final Map<Integer, int[]> ranges = new HashMap<>();
+        int size = 0;
+
+        int add(int t, int o, int a, int[] r) {
+            if (size == MAX_NFA_STATES) {
+                throw new UnsupportedOperationException("Too many NFA states");
+            }
+            if (size == type.length) {
+                type = Arrays.copyOf(type, size * 2);
+                out = Arrays.copyOf(out, size * 2);
+                arg = Arrays.copyOf(arg, size * 2);
+            }
+            type[size] = t;
+            out[size] = o;
+            arg[size] = a;
+            if (r != null) {
+                ranges.put(size, r);
+            }
+            return size++;
+        }
+
+        /**
+         * @return the first state of the node, which continues to next
+         */
+        int compile(Node node, int next) {
+            switch (node.kind) {
+            case Node.CHARS:
+                return add(CHARS, next, -1, node.ranges);
+            case Node.ASSERT:
+                return add(ASSERT, next, node.min, null);
+            case Node.CONCAT:
+                for (int i = node.children.size() - 1; i >= 0; i--) {
+                    next = compile(node.children.get(i), next);
+                }
+                return next;
+            case Node.ALTERNATE: {
+                int first = compile(node.children.get(node.children.size() - 1), next);
+                for (int i = node.children.size() - 2; i >= 0; i--) {
+                    first = add(SPLIT, compile(node.children.get(i), next), first, null);
+                }
+                return first;
+            }
+            default: {
+                Node child = node.children.get(0);
+                int first = next;
+                if (node.max < 0) {
+                    int loop = add(SPLIT, -1, next, null);
+                    int body = compile(child, loop);
+                    out[loop] = body;
+                    first = loop;
+                } else {
+                    for (int i = node.min; i < node.max; i++) {
+                        first = add(SPLIT, compile(child, first), next, null);
+                    }
+                }
+                for (int i = 0; i < node.min; i++) {
+                    first = compile(child, first);
+                }
+                return first;
+            }
+            }
+        }
+    }
+
+    /**
+     * A node of the parsed pattern.
+     */
+    private static class Node {
+        static final int CHARS = 0;
+        static final int CONCAT = 1;
+        static final int ALTERNATE = 2;
+        static final int REPEAT = 3;
+        static final int ASSERT = 4;
+
+        final int kind;
+        /** the code points matched by CHARS */
+        int[] ranges;
+        final List<Node> children = new ArrayList<>();
+        /** the minimum of REPEAT, or the assertion of ASSERT */
+        int min;
+        /** the maximum of REPEAT, or -1 if unbounded */
+        int max;
+
+        Node(int kind) {
+            this.kind = kind;
+        }
+
+        static Node chars(int[] ranges) {
+            Node node = new Node(CHARS);
+            node.ranges = ranges;
+            return node;
+        }
+
+        void collectRanges(List<int[]> sets) {
+            if (kind == CHARS) {
+                sets.add(ranges);
+            }
+            for (Node child : children) {
+                child.collectRanges(sets);
+            }
+        }
+
+        boolean matchesEmpty() {
+            switch (kind) {
+            case CHARS:
+                return false;
+            case ALTERNATE:
+                for (Node child : children) {
+                    if (child.matchesEmpty()) {
+                        return true;
+                    }
+                }
+                return false;
+            case REPEAT:
+                return min == 0 || children.get(0).matchesEmpty();
+            default:
+                for (Node child : children) {
+                    if (!child.matchesEmpty()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        boolean endsWithDotStar() {
+            if (kind == CONCAT && !children.isEmpty()) {
+                return children.get(children.size() - 1).endsWithDotStar();
+            }
+            return kind == REPEAT && min == 0 && max < 0 && children.get(0).kind == CHARS
+                    && Arrays.equals(children.get(0).ranges, Ranges.ALL);
+        }
+    }
+
+    /**
+     * Parses the supported subset of the java.util.regex syntax. The pattern
+     * has been compiled by Pattern already, so it is known to be valid, and
+     * anything unexpected is reported as not supported.
+     */
+    private static class Parser {
+        private final String regex;
+        private final boolean ignoreCase;
+        private int pos = 0;
+
+        Parser(String regex, boolean ignoreCase) {
+            this.regex = regex;
+            this.ignoreCase = ignoreCase;
+        }
+
+        Node parse() {
+            Node node = alternation();
+            if (pos < regex.length()) {
+                throw unsupported();
+            }
+            return node;
+        }
+
+        private UnsupportedOperationException unsupported() {
+            return new UnsupportedOperationException(
+                    "Unsupported syntax at index " + pos + " of " + regex);
+        }
+
+        private boolean more() {
+            return pos < regex.length();
+        }
+
+        private char peek() {
+            return regex.charAt(pos);
+        }
+
+        private boolean accept(char c) {
+            if (more() && peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private Node alternation() {
+            Node node = new Node(Node.ALTERNATE);
+            node.children.add(concatenation());
+            while (accept('|')) {
+                node.children.add(concatenation());
+            }
+            return node.children.size() == 1 ? node.children.get(0) : node;
+        }
+
+        private Node concatenation() {
+            Node node = new Node(Node.CONCAT);
+            while (more() && peek() != '|' && peek() != ')') {
+                node.children.add(repetition());
+            }
+            return node;
+        }
+
+        private Node repetition() {
+            Node node = atom();
+            if (more()) {
+                int min;
+                int max;
+                char c = peek();
+                if (c == '*') {
+                    min = 0;
+                    max = -1;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                } else if (c == '?') {
+                    min = 0;
+                    max = 1;
+                } else if (c == '{') {
+                    pos++;
+                    min = number();
+                    max = min;
+                    if (accept(',')) {
+                        max = more() && peek() == '}' ? -1 : number();
+                    }
+                    if (!more() || peek() != '}') {
+                        throw unsupported();
+                    }
+                } else {
+                    return node;
+                }
+                pos++;
+                // lazy quantifiers select the same lines, possessive ones
+                // do not
+                accept('?');
+                // Pattern does not nest stacked quantifiers like a?{2}, so
+                // they are left to it
+                if (more() && isQuantifier(peek())) {
+                    throw unsupported();
+                }
+                // Pattern stops repeating a group once an iteration matches
+                // the empty string, so the minimum may not be reached
+                if (min > 1 && node.matchesEmpty()) {
+                    throw unsupported();
+                }
+                Node repeat = new Node(Node.REPEAT);
+                repeat.children.add(node);
+                repeat.min = min;
+                repeat.max = max;
+                node = repeat;
+            }
+            return node;
+        }
+
+        private static boolean isQuantifier(char c) {
+            return c == '*' || c == '+' || c == '?' || c == '{';
+        }
+
+        private int number() {
+            int begin = pos;
+            while (more() && peek() >= '0' && peek() <= '9') {
+                pos++;
+            }
+            if (pos == begin || pos - begin > 4) {
+                throw unsupported();
+            }
+            return Integer.parseInt(regex.substring(begin, pos));
+        }
+
+        private Node atom() {
+            int c = regex.codePointAt(pos);
+            pos += Character.charCount(c);
+            switch (c) {
+            case '(':
+                if (accept('?')) {
+                    // only non capturing and named groups
+                    if (accept('<') && more() && Character.isLetter(peek())) {
+                        while (more() && Character.isLetterOrDigit(peek())) {
+                            pos++;
+                        }
+                        if (!accept('>')) {
+                            throw unsupported();
+                        }
+                    } else if (!accept(':')) {
+                        throw unsupported();
+                    }
+                }
+                Node node = alternation();
+                if (!accept(')')) {
+                    throw unsupported();
+                }
+                return node;
+            case '[':
+                return Node.chars(characterClass());
+            case '.':
+                // lines with line terminators are left to Pattern
+                return Node.chars(Ranges.ALL);
+            case '^':
+                return assertion(BEGIN);
+            case '$':
+                return assertion(END);
+            case '\\':
+                return escape();
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+            case ')':
+                throw unsupported();
+            default:
+                return Node.chars(literal(c));
+            }
+        }
+
+        private static Node assertion(int assertion) {
+            Node node = new Node(Node.ASSERT);
+            node.min = assertion;
+            return node;
+        }
+
+        private Node escape() {
+            if (!more()) {
+                throw unsupported();
+            }
+            char c = regex.charAt(pos++);
+            switch (c) {
+            case 'b':
+                return assertion(WORD_BOUNDARY);
+            case 'B':
+                return assertion(NOT_WORD_BOUNDARY);
+            case 'A':
+                return assertion(BEGIN);
+            case 'z':
+            case 'Z':
+                return assertion(END);
+            case 'Q': {
+                int end = regex.indexOf("\\E", pos);
+                String quoted = regex.substring(pos, end < 0 ? regex.length() : end);
+                pos = end < 0 ? regex.length() : end + 2;
+                // Pattern repeats only the last quoted character
+                if (quoted.codePointCount(0, quoted.length()) > 1 && more()
+                        && isQuantifier(peek())) {
+                    throw unsupported();
+                }
+                Node node = new Node(Node.CONCAT);
+                for (int i = 0; i < quoted.length();) {
+                    int q = quoted.codePointAt(i);
+                    node.children.add(Node.chars(literal(q)));
+                    i += Character.charCount(q);
+                }
+                return node;
+            }
+            default:
+                pos--;
+                return Node.chars(escapedChars());
+            }
+        }
+
+        /**
+         * @return the code points of the escape sequence at pos, which is
+         *         valid inside and outside character classes
+         */
+        private int[] escapedChars() {
+            char c = regex.charAt(pos++);
+            switch (c) {
+            case 'd':
+                return Ranges.DIGIT;
+            case 'D':
+                return Ranges.complement(Ranges.DIGIT);
+            case 'w':
+                return Ranges.WORD;
+            case 'W':
+                return Ranges.complement(Ranges.WORD);
+            case 's':
+                return Ranges.SPACE;
+            case 'S':
+                return Ranges.complement(Ranges.SPACE);
+            case 't':
+                return literal('\t');
+            case 'n':
+                return literal('\n');
+            case 'r':
+                return literal('\r');
+            case 'f':
+                return literal('\f');
+            case 'a':
+                return literal('\u0007');
+            case 'e':
+                return literal('\u001b');
+            case 'x':
+                if (accept('{')) {
+                    int x = hex(regex.indexOf('}', pos) - pos);
+                    pos++;
+                    return literal(x);
+                }
+                return literal(hex(2));
+            case 'u': {
+                int u = hex(4);
+                if (Character.isSurrogate((char) u)) {
+                    throw unsupported();
+                }
+                return literal(u);
+            }
+            default:
+                // backreferences, \p, \h, \R and others are not supported,
+                // other escaped characters stand for themselves
+                if (c < 128 && Character.isLetterOrDigit(c)) {
+                    pos--;
+                    throw unsupported();
+                }
+                pos--;
+                int e = regex.codePointAt(pos);
+                pos += Character.charCount(e);
+                return literal(e);
+            }
+        }
+
+        private int hex(int digits) {
+            if (digits <= 0 || digits > 6 || pos + digits > regex.length()) {
+                throw unsupported();
+            }
+            int value = Integer.parseInt(regex.substring(pos, pos + digits), 16);
+            pos += digits;
+            if (value > MAX_CODE_POINT) {
+                throw unsupported();
+            }
+            return value;
+        }
+
+        /**
+         * @return the code points of the character class after [
+         */
+        private int[] characterClass() {
+            boolean negate = accept('^');
+            if (more() && peek() == ']') {
+                throw unsupported();
+            }
+            List<int[]> sets = new ArrayList<>();
+            while (more() && peek() != ']') {
+                char c = peek();
+                if (c == '[' || regex.startsWith("&&", pos)) {
+                    throw unsupported();
+                }
+                int low;
+                if (c == '\\') {
+                    pos++;
+                    if (!more() || peek() == 'Q' || peek() == 'b' || peek() == 'B') {
+                        throw unsupported();
+                    }
+                    int[] escaped = escapedChars();
+                    if (escaped.length != 2 || escaped[0] != escaped[1] || ignoreCase) {
+                        // a predefined class, or a folded character, cannot
+                        // start a range
+                        if (more() && peek() == '-' && !regex.startsWith("-]", pos)) {
+                            throw unsupported();
+                        }
+                        sets.add(escaped);
+                        continue;
+                    }
+                    low = escaped[0];
+                } else {
+                    low = regex.codePointAt(pos);
+                    pos += Character.charCount(low);
+                }
+                int high = low;
+                if (more() && peek() == '-' && !regex.startsWith("-]", pos)) {
+                    pos++;
+                    if (peek() == '\\') {
+                        pos++;
+                        int[] escaped = escapedChars();
+                        if (escaped.length != 2 || escaped[0] != escaped[1]) {
+                            throw unsupported();
+                        }
+                        high = escaped[0];
+                    } else if (peek() == '[') {
+                        throw unsupported();
+                    } else {
+                        high = regex.codePointAt(pos);
+                        pos += Character.charCount(high);
+                    }
+                    if (high < low) {
+                        throw unsupported();
+                    }
+                }
+                sets.add(fold(new int[] { low, high }));
+            }
+            if (!accept(']')) {
+                throw unsupported();
+            }
+            int[] ranges = Ranges.union(sets);
+            return negate ? Ranges.complement(ranges) : ranges;
+        }
+
+        private int[] literal(int c) {
+            return fold(new int[] { c, c });
+        }
+
+        /**
+         * @return the ranges with the other case of their US-ASCII letters
+         *         added if ignoring case, like Pattern without UNICODE_CASE
+         */
+        private int[] fold(int[] ranges) {
+            if (!ignoreCase) {
+                return ranges;
+            }
+            List<int[]> sets = new ArrayList<>();
+            sets.add(ranges);
+            sets.add(Ranges.shift(Ranges.intersect(ranges, 'a', 'z'), 'A' - 'a'));
+            sets.add(Ranges.shift(Ranges.intersect(ranges, 'A', 'Z'), 'a' - 'A'));
+            return Ranges.union(sets);
+        }
+    }
+
+    /**
+     * Sets of code points, as ascending disjoint [low, high] pairs.
+     */
+    private static class Ranges {
+        static final int[] ALL = { 0, MAX_CODE_POINT };
+        static final int[] DIGIT = { '0', '9' };
+        static final int[] WORD = { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' };
+        static final int[] SPACE = { '\t', '\r', ' ', ' ' };
+
+        static boolean contains(int[] ranges, int c) {
+            for (int i = 0; i < ranges.length && ranges[i] <= c; i += 2) {
+                if (c <= ranges[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        static int[] union(List<int[]> sets) {
+            List<int[]> pairs = new ArrayList<>();
+            for (int[] ranges : sets) {
+                for (int i = 0; i < ranges.length; i += 2) {
+                    pairs.add(new int[] { ranges[i], ranges[i + 1] });
+                }
+            }
+            Collections.sort(pairs, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    return Integer.compare(a[0], b[0]);
+                }
+            });
+            int[] union = new int[pairs.size() * 2];
+            int n = 0;
+            for (int[] pair : pairs) {
+                if (n > 0 && pair[0] <= union[n - 1] + 1) {
+                    union[n - 1] = Math.max(union[n - 1], pair[1]);
+                } else {
+                    union[n++] = pair[0];
+                    union[n++] = pair[1];
+                }
+            }
+            return Arrays.copyOf(union, n);
+        }
+
+        static int[] complement(int[] ranges) {
+            int[] complement = new int[ranges.length + 2];
+            int n = 0;
+            int next = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] > next) {
+                    complement[n++] = next;
+                    complement[n++] = ranges[i] - 1;
+                }
+                next = ranges[i + 1] + 1;
+            }
+            if (next <= MAX_CODE_POINT) {
+                complement[n++] = next;
+                complement[n++] = MAX_CODE_POINT;
+            }
+            return Arrays.copyOf(complement, n);
+        }
+
+        static int[] intersect(int[] ranges, int low, int high) {
+            int[] intersection = new int[ranges.length];
+            int n = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] <= high && ranges[i + 1] >= low) {
+                    intersection[n++] = Math.max(ranges[i], low);
+                    intersection[n++] = Math.min(ranges[i + 1], high);
+                }
+            }
+            return Arrays.copyOf(intersection, n);
+        }
+
+        static int[] shift(int[] ranges, int delta) {
+            int[] shifted = new int[ranges.length];
+            for (int i = 0; i < ranges.length; i++) {
+                shifted[i] = ranges[i] + delta;
+            }
+            return shifted;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package logquerier;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * LineWindowReader reads a range of lines in windows of bytes. Every window
+ * ends right after a newline, so a line never spans two windows, except that
+ * the last window may end without a newline.
+ */
+public interface LineWindowReader extends Closeable {
+
+    /**
+     * @return the next window of complete lines, or <code>null</code> if the
+     *         whole range has been read. Position and limit of the returned
+     *         buffer delimit the window, which is only valid until the next
+     *         call.
+     * @throws IOException
+     *             if any IO error occurs when reading
+     */
+    ByteBuffer nextWindow() throws IOException;
+}
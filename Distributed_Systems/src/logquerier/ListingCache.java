@@ -0,0 +1,83 @@
+package logquerier;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * ListingCache keeps the files found by FileWalker for a short time, so
+ * concurrent and repeated queries over the same tree share one traversal. A
+ * query asking for a pattern being traversed waits for that traversal
+ * rather than starting another one. Entries expire after ttl milliseconds,
+ * so files created since are found by later queries.
+ */
+public class ListingCache {
+
+    /**
+     * Entry is the traversal of one pattern, which may still be running.
+     */
+    private static class Entry {
+        final FutureTask<List<String>> files;
+        final long created = System.currentTimeMillis();
+
+        Entry(FutureTask<List<String>> files) {
+            this.files = files;
+        }
+    }
+
+    private final long ttl;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttl
+     *            the time an entry is kept, measured in milliseconds
+     */
+    public ListingCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Find the files matching a pattern, like FileWalker.find(), through the
+     * cache.
+     *
+     * @return the unmodifiable list of names of the files found
+     */
+    public List<String> find(final String pattern, final boolean recursive) {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            if (now - it.next().created >= ttl) {
+                it.remove();
+            }
+        }
+
+        String key = recursive + ":" + pattern;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Entry created = new Entry(new FutureTask<>(new Callable<List<String>>() {
+                @Override
+                public List<String> call() {
+                    return Collections.unmodifiableList(FileWalker.find(pattern, recursive));
+                }
+            }));
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                entry.files.run();
+            }
+        }
+        try {
+            return entry.files.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            entries.remove(key, entry);
+        }
+        return FileWalker.find(pattern, recursive);
+    }
+}
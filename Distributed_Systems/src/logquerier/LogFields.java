@@ -0,0 +1,161 @@
+package logquerier;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import system.Catalog;
+
+/**
+ * LogFields are the fields of one log line: its timestamp, level, logger and
+ * message, as split by Catalog.LOG_LINE_REGEX. A line which does not split,
+ * such as a line of a stack trace, is unstructured: it has no level and no
+ * logger, its message is the whole line, and its time is the timestamp it
+ * starts with, if any.
+ * <p>
+ * A line is only structured if it can be written again exactly from its
+ * fields, so a line and its fields can always be told from each other.
+ */
+public class LogFields {
+    private static final ThreadLocal<Parser> PARSERS = new ThreadLocal<Parser>() {
+        @Override
+        protected Parser initialValue() {
+            return new Parser();
+        }
+    };
+
+    /** the time of the line, or TimeIndex.NO_TIME */
+    public final long time;
+    /** the level, or <code>null</code> if the line is unstructured */
+    public final String level;
+    /** the logger, or <code>null</code> if the line is unstructured */
+    public final String logger;
+    public final String message;
+
+    LogFields(long time, String level, String logger, String message) {
+        this.time = time;
+        this.level = level;
+        this.logger = logger;
+        this.message = message;
+    }
+
+    /**
+     * @return <code>true</code> if the line has been split into fields
+     */
+    public boolean isStructured() {
+        return level != null;
+    }
+
+    /**
+     * Split a line into fields with a Parser of the calling thread.
+     */
+    public static LogFields parse(String line) {
+        return PARSERS.get().parse(line);
+    }
+
+    /**
+     * Parser splits lines into fields. A Parser must only be used by one
+     * thread at a time.
+     * <p>
+     * Timestamps are parsed and formatted with SimpleDateFormat only once per
+     * hour, since consecutive lines are mostly logged in the same hour; the
+     * minutes, seconds and milliseconds are added to the time of the hour.
+     */
+    public static class Parser {
+        private static final Pattern PATTERN = Pattern.compile(Catalog.LOG_LINE_REGEX);
+        private static final int HOUR_LENGTH = "yyyy-MM-dd HH".length();
+        private static final long HOUR_MILLIS = 60 * 60 * 1000;
+        private final Matcher matcher = PATTERN.matcher("");
+        private final SimpleDateFormat format = new SimpleDateFormat(
+                Catalog.LOG_TIMESTAMP_FORMAT);
+        private final TimeIndex.TimestampParser timestampParser =
+                new TimeIndex.TimestampParser();
+        /** the beginning of the last timestamp parsed or formatted, up to the hour */
+        private String hour;
+        /** the time of the beginning of hour */
+        private long hourTime;
+
+        public Parser() {
+            format.setLenient(false);
+        }
+
+        public LogFields parse(String line) {
+            if (matcher.reset(line).matches()) {
+                long time = parseTimestamp(matcher.group(1));
+                if (time != TimeIndex.NO_TIME) {
+                    return new LogFields(time, matcher.group(2), matcher.group(3),
+                            matcher.group(4));
+                }
+            }
+            return new LogFields(timestampParser.parse(line), null, null, line);
+        }
+
+        /**
+         * @return the time of a timestamp matched by Catalog.LOG_LINE_REGEX,
+         *         or NO_TIME if it is not a valid time or would not be
+         *         formatted into the same timestamp
+         */
+        private long parseTimestamp(String timestamp) {
+            String prefix = timestamp.substring(0, HOUR_LENGTH);
+            if (!prefix.equals(hour)) {
+                String start = prefix + ":00:00:000";
+                ParsePosition position = new ParsePosition(0);
+                Date date = format.parse(start, position);
+                if (date == null || position.getIndex() != start.length()
+                        || !format.format(date).equals(start)) {
+                    return TimeIndex.NO_TIME;
+                }
+                hour = prefix;
+                hourTime = date.getTime();
+            }
+            int minutes = digits(timestamp, 14, 16);
+            int seconds = digits(timestamp, 17, 19);
+            if (minutes > 59 || seconds > 59) {
+                return TimeIndex.NO_TIME;
+            }
+            return hourTime + minutes * 60000L + seconds * 1000L + digits(timestamp, 20, 23);
+        }
+
+        private static int digits(String s, int start, int end) {
+            int value = 0;
+            for (int i = start; i < end; i++) {
+                value = value * 10 + (s.charAt(i) - '0');
+            }
+            return value;
+        }
+
+        private String formatTimestamp(long time) {
+            if (hour == null || time < hourTime || time >= hourTime + HOUR_MILLIS) {
+                String timestamp = format.format(new Date(time));
+                hour = timestamp.substring(0, HOUR_LENGTH);
+                hourTime = time - digits(timestamp, 14, 16) * 60000L
+                        - digits(timestamp, 17, 19) * 1000L - digits(timestamp, 20, 23);
+                return timestamp;
+            }
+            int offset = (int) (time - hourTime);
+            StringBuilder timestamp = new StringBuilder(hour).append(':');
+            appendDigits(timestamp, offset / 60000, 2).append(':');
+            appendDigits(timestamp, offset / 1000 % 60, 2).append(':');
+            return appendDigits(timestamp, offset % 1000, 3).toString();
+        }
+
+        private static StringBuilder appendDigits(StringBuilder sb, int value, int width) {
+            for (int divisor = width == 3 ? 100 : 10; divisor > 0; divisor /= 10) {
+                sb.append((char) ('0' + value / divisor % 10));
+            }
+            return sb;
+        }
+
+        /**
+         * @return the line the fields have been split from
+         */
+        public String toLine(long time, String level, String logger, String message) {
+            if (level == null) {
+                return message;
+            }
+            return "[" + formatTimestamp(time) + "] " + level + " " + logger + ": " + message;
+        }
+    }
+}
@@ -1,22 +1,109 @@
 package logquerier;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.ParseException;
 import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
+import membershipservice.GossipGroupMembershipService;
 import system.Catalog;
 import system.DaemonService;
+import system.Identity;
 
 public class LogQueryService implements DaemonService {
+    /**
+     * the line a client sends after its query to stop it, e.g. when it has
+     * received enough lines
+     */
+    public static final String CANCEL = "cancel";
+
+    /**
+     * checks the connections of all running queries for CANCEL. Its tasks
+     * never block, as it is shared by all queries.
+     */
+    private static final ScheduledExecutorService CANCEL_POLLER = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "cancel-poller");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * CancelWatch reads what the client of a running query has sent so far,
+     * without blocking, and cancels the query once a CANCEL line has arrived
+     * or the connection is broken. The end of the input does not cancel the
+     * query, since a client may shut down its output once the query is sent.
+     */
+    private static class CancelWatch implements Runnable {
+        private final Grep grep;
+        private final BufferedReader br;
+        private final StringBuilder line = new StringBuilder();
+
+        CancelWatch(Grep grep, BufferedReader br) {
+            this.grep = grep;
+            this.br = br;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // ready() is false at the end of the input, so read() never
+                // blocks
+                while (br.ready()) {
+                    int c = br.read();
+                    if (c < 0) {
+                        return;
+                    } else if (c != '\n') {
+                        // a longer line is not CANCEL, whatever follows
+                        if (line.length() <= CANCEL.length()) {
+                            line.append((char) c);
+                        }
+                    } else if (CANCEL.equals(line.toString().trim())) {
+                        grep.cancel();
+                        return;
+                    } else {
+                        line.setLength(0);
+                    }
+                }
+            } catch (IOException e) {
+                // the connection is broken, so nobody reads the output
+                grep.cancel();
+            }
+        }
+    }
 
     private class GrepWorker implements Runnable {
         private final Socket socket;
+        /** the time at which the connection was accepted */
+        private final long acceptTime = System.nanoTime();
+        /** the CancelWatch of the query, once it has been created */
+        private ScheduledFuture<?> cancelWatch;
+        /** why the query has not been admitted */
+        private String refusal;
 
         GrepWorker(Socket socket) {
             this.socket = socket;
@@ -34,22 +121,46 @@ public class LogQueryService implements DaemonService {
                     // client programs, and any mistakes should be detected
                     // there.
                     JSONArray cmd = (JSONArray) JSONValue.parse(line);
-                    switch ((String) cmd.get(0)) {
-                    case "grep":
-                        @SuppressWarnings("unchecked")
-                        String[] args = (String[]) cmd.subList(1, cmd.size())
-                                .toArray(new String[0]);
-                        ;
-                        new Grep(args, os).execute();
+                    @SuppressWarnings("unchecked")
+                    String[] args = (String[]) cmd.subList(1, cmd.size())
+                            .toArray(new String[0]);
+                    String command = (String) cmd.get(0);
+                    if (command.equals("members")) {
+                        members(os);
                         return;
-                    default:
-                        // Should never reach here.
-                        System.err.println(String.format("Unsupported Operation: %s.", cmd.get(0)));
+                    }
+                    List<Semaphore> admission = admit(args);
+                    if (admission == null) {
+                        reject(command, os, refusal);
                         return;
                     }
+                    try {
+                        switch (command) {
+                        case "grep":
+                            watch(newGrep(args, os), br).execute();
+                            return;
+                        case "grep-framed":
+                            framedGrep(args, br, os);
+                            return;
+                        case "aggregate":
+                            aggregate(watch(newGrep(args, os), br), os);
+                            return;
+                        default:
+                            // Should never reach here.
+                            System.err.println(String.format("Unsupported Operation: %s.", command));
+                            return;
+                        }
+                    } finally {
+                        if (cancelWatch != null) {
+                            cancelWatch.cancel(false);
+                        }
+                        scanAdmission.release(admission);
+                    }
                 }
             } catch (IOException | ParseException e) {
                 e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } finally {
                 try {
                     socket.close();
@@ -59,34 +170,294 @@ public class LogQueryService implements DaemonService {
             }
         }
 
+        /**
+         * Cancel the query once the client sends CANCEL or the connection
+         * breaks, so its scans do not keep the disk busy for nobody. The
+         * connection is checked by CANCEL_POLLER until the query is done.
+         *
+         * @return grep
+         */
+        private Grep watch(Grep grep, BufferedReader br) {
+            cancelWatch = CANCEL_POLLER.scheduleWithFixedDelay(new CancelWatch(grep, br),
+                    Catalog.LOG_QUERY_CANCEL_POLL_PERIOD, Catalog.LOG_QUERY_CANCEL_POLL_PERIOD,
+                    Catalog.TIME_UNIT);
+            return grep;
+        }
+
+        /**
+         * Grep, and send output lines back in frames, followed by a trailer
+         * with the status of the query. If the query fails with an Error, the
+         * stream is closed without a trailer.
+         */
+        private void framedGrep(String[] args, BufferedReader br, OutputStream os)
+                throws IOException {
+            try (FramedOutputStream fos = new FramedOutputStream(os, Catalog.GREP_FRAME_BYTES,
+                    Catalog.GREP_FRAME_DELAY, Catalog.GREP_FRAME_COMPRESSION)) {
+                String error = null;
+                boolean cancelled = false;
+                try {
+                    Grep grep = watch(newGrep(args, fos), br);
+                    grep.execute();
+                    cancelled = grep.isCancelled();
+                } catch (ParseException | RuntimeException e) {
+                    error = e.getMessage() == null ? e.toString() : e.getMessage();
+                    e.printStackTrace();
+                }
+                if (error == null && cancelled) {
+                    fos.finishCancelled();
+                } else {
+                    fos.finish(error);
+                }
+            }
+        }
+
+        /**
+         * Wait in the queue of the disks of the query, for at most
+         * Catalog.LOG_QUERY_ADMISSION_TIMEOUT since the connection was
+         * accepted. Subscriptions do not wait for the disks, but only
+         * Catalog.LOG_QUERY_MAX_FOLLOWS of them are open at a time.
+         *
+         * @return the admission of the query, or <code>null</code> if it timed
+         *         out or too many subscriptions are open
+         */
+        private List<Semaphore> admit(String[] args) throws InterruptedException {
+            List<String> fileNamePatterns;
+            try {
+                Grep grep = new Grep(args, null);
+                if (grep.isFollow()) {
+                    // subscriptions only scan appended lines, and would hold
+                    // the disk for as long as they are open
+                    if (!follows.tryAcquire()) {
+                        refusal = "Server busy, too many subscriptions";
+                        return null;
+                    }
+                    return Collections.singletonList(follows);
+                }
+                fileNamePatterns = grep.getFileNamePatterns();
+            } catch (ParseException e) {
+                // the query reports the error itself
+                fileNamePatterns = Collections.emptyList();
+            }
+            long waited = Catalog.TIME_UNIT.convert(System.nanoTime() - acceptTime,
+                    TimeUnit.NANOSECONDS);
+            refusal = "Server busy, too many queries on the same disk";
+            return scanAdmission.acquire(fileNamePatterns,
+                    Math.max(0, Catalog.LOG_QUERY_ADMISSION_TIMEOUT - waited));
+        }
+    }
+
+    /**
+     * Tell the client that its query has been refused, in the protocol of the
+     * command.
+     */
+    @SuppressWarnings("unchecked")
+    private static void reject(String command, OutputStream os, String reason)
+            throws IOException {
+        switch (command) {
+        case "grep-framed":
+            try (FramedOutputStream fos = new FramedOutputStream(os, Catalog.GREP_FRAME_BYTES,
+                    Catalog.GREP_FRAME_DELAY, false)) {
+                fos.reject(reason);
+            }
+            break;
+        case "aggregate":
+            JSONObject json = new JSONObject();
+            json.put("error", reason);
+            new PrintWriter(new OutputStreamWriter(os, Catalog.ENCODING), true)
+                    .println(json.toJSONString());
+            break;
+        default:
+            new PrintWriter(new OutputStreamWriter(os, Catalog.ENCODING), true)
+                    .println("grep: " + reason);
+            break;
+        }
+    }
+
+    /**
+     * @return a Grep which shares the result cache of the service
+     */
+    private Grep newGrep(String[] args, OutputStream os) throws ParseException {
+        Grep grep = new Grep(args, os);
+        grep.setResultCache(resultCache);
+        grep.setListingCache(listingCache);
+        return grep;
+    }
+
+    /**
+     * Send the host names of the live log query services as one line of JSON,
+     * which is empty if the service is not in a membership group.
+     */
+    @SuppressWarnings("unchecked")
+    private void members(OutputStream os) throws IOException {
+        JSONArray hosts = new JSONArray();
+        if (membershipService != null) {
+            for (Identity id : membershipService.getAliveMembers()) {
+                hosts.add(id.IPAddress.getHostName());
+            }
+        }
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(os, Catalog.ENCODING), true);
+        pw.println(hosts.toJSONString());
+    }
+
+    /**
+     * Compute the aggregate of a query next to the data, and send it back as
+     * one line of JSON.
+     */
+    private static void aggregate(Grep grep, OutputStream os) throws IOException {
+        Aggregate aggregate = grep.aggregate();
+        if (grep.isGrouped() && grep.getTopK() != Integer.MAX_VALUE) {
+            // keep more groups than requested, so that merged top-K is exact
+            // unless counts are very evenly spread across hosts
+            long keep = (long) grep.getTopK() * Catalog.AGGREGATE_TOP_K_FACTOR;
+            aggregate.truncate((int) Math.min(Integer.MAX_VALUE, keep));
+        }
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(os, Catalog.ENCODING), true);
+        pw.println(aggregate.toJSONString());
     }
 
+    private final ResultCache resultCache = Catalog.GREP_RESULT_CACHE_BYTES > 0
+            ? new ResultCache(Catalog.GREP_RESULT_CACHE_BYTES) : null;
+    private final ListingCache listingCache = new ListingCache(Catalog.GREP_LISTING_CACHE_TTL);
+    private final ScanAdmission scanAdmission = new ScanAdmission(
+            Catalog.LOG_DISK_IS_SSD ? Catalog.GREP_MAX_SCANS_SSD : Catalog.GREP_MAX_SCANS_HDD,
+            Catalog.LOG_QUERY_ADMISSION_WAITERS);
+    /** the permits of the open --follow subscriptions */
+    private final Semaphore follows = new Semaphore(Catalog.LOG_QUERY_MAX_FOLLOWS);
     private ServerSocket serverSocket;
+    private ThreadPoolExecutor workers;
+    /** answers the connections refused for lack of worker threads */
+    private ThreadPoolExecutor rejecter;
+    private TrigramIndexer indexer;
+    private ColumnarConverter converter;
+    private GossipGroupMembershipService membershipService;
 
     @Override
     public void startServe() throws IOException {
+        if (Catalog.TRIGRAM_INDEX_ENABLED) {
+            indexer = new TrigramIndexer();
+            indexer.startServe();
+        }
+        if (Catalog.COLUMNAR_ENABLED) {
+            converter = new ColumnarConverter();
+            converter.startServe();
+        }
+        if (Catalog.LOG_QUERY_MEMBERSHIP_ENABLED) {
+            joinGroup();
+        }
+        // connections beyond the worker threads wait in a bounded queue, and
+        // connections beyond the queue are refused by the rejecter, or closed
+        // right away when it is busy as well
+        workers = new ThreadPoolExecutor(Catalog.LOG_QUERY_WORKER_THREADS,
+                Catalog.LOG_QUERY_WORKER_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Catalog.LOG_QUERY_BACKLOG));
+        rejecter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Catalog.LOG_QUERY_BACKLOG));
         serverSocket = new ServerSocket(Catalog.LOG_QUERY_SERVICE_PORT);
         new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
                     while (true) {
-                        new Thread(new GrepWorker(serverSocket.accept())).start();
+                        Socket socket = serverSocket.accept();
+                        try {
+                            workers.execute(new GrepWorker(socket));
+                        } catch (RejectedExecutionException e) {
+                            refuse(socket);
+                        }
                     }
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    if (!serverSocket.isClosed()) {
+                        e.printStackTrace();
+                    }
                 }
             }
         }).start();
     }
 
+    /**
+     * Join the gossip group of log queriers. The service runs without it if
+     * it fails, and clients fall back to Catalog.HOST_LIST.
+     */
+    private void joinGroup() {
+        // the membership service exits the JVM when it cannot create its log
+        // in Catalog.LOG_DIR, so it is not loaded unless it can
+        File logDir = new File(Catalog.LOG_DIR);
+        if (!(logDir.isDirectory() || logDir.mkdirs()) || !logDir.canWrite()) {
+            System.err.println(String.format(
+                    "Cannot join the log querier group: cannot write to %s", logDir));
+            return;
+        }
+        try {
+            membershipService = new GossipGroupMembershipService(
+                    InetAddress.getByName(Catalog.LOG_QUERY_INTRODUCER_ADDRESS),
+                    Catalog.LOG_QUERY_MEMBERSHIP_PORT, Catalog.LOG_QUERY_MEMBERSHIP_PORT);
+            membershipService.startServe();
+        } catch (IOException | RuntimeException e) {
+            System.err.println(String.format("Cannot join the log querier group: %s",
+                    e.getMessage()));
+            membershipService = null;
+        }
+    }
+
+    /**
+     * Refuse a connection for lack of worker threads, answering its query in
+     * its protocol when the rejecter has time to read it.
+     */
+    private void refuse(final Socket socket) {
+        System.err.println(String.format("Too many connections, refusing connection from %s.",
+                socket.getInetAddress()));
+        try {
+            rejecter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        socket.setSoTimeout(Catalog.LOG_QUERY_REJECT_TIMEOUT);
+                        BufferedReader br = new BufferedReader(new InputStreamReader(
+                                socket.getInputStream(), Catalog.ENCODING));
+                        String line = br.readLine();
+                        if (line != null) {
+                            JSONArray cmd = (JSONArray) JSONValue.parse(line);
+                            reject((String) cmd.get(0), socket.getOutputStream(),
+                                    "Server busy, too many connections");
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // the client sees the connection closed instead
+                    } finally {
+                        close(socket);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            close(socket);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public void stopServe() {
+        if (indexer != null) {
+            indexer.stopServe();
+        }
+        if (converter != null) {
+            converter.stopServe();
+        }
+        if (membershipService != null) {
+            membershipService.stopServe();
+        }
         try {
             serverSocket.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        workers.shutdownNow();
+        rejecter.shutdownNow();
     }
     
     public static void main(String[] args) throws IOException {
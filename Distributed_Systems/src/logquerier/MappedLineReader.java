@@ -0,0 +1,303 @@
+package logquerier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import system.Catalog;
+
+/**
+ * MappedLineReader memory-maps a byte range of a file in fixed size windows,
+ * which are returned by {@link #nextWindow()}. A line longer than the window
+ * size grows the window until the whole line fits.
+ */
+public class MappedLineReader implements LineWindowReader {
+    private final FileChannel channel;
+    /** <code>true</code> if the channel is closed with the reader */
+    private final boolean ownsChannel;
+    private final long end;
+    private final int windowBytes;
+    private long position;
+
+    /**
+     * Construct a MappedLineReader over the whole file.
+     *
+     * @param file
+     *            the file to read
+     * @param windowBytes
+     *            the preferred number of bytes mapped at a time
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    public MappedLineReader(Path file, int windowBytes) throws IOException {
+        this(file, 0, Long.MAX_VALUE, windowBytes);
+    }
+
+    /**
+     * Construct a MappedLineReader over bytes [start, end) of the file. The
+     * caller is responsible for start being at the beginning of a line. If end
+     * is beyond the end of the file, the range stops at the end of the file.
+     *
+     * @param file
+     *            the file to read
+     * @param start
+     *            the offset of the first byte to read
+     * @param end
+     *            the offset after the last byte to read
+     * @param windowBytes
+     *            the preferred number of bytes mapped at a time
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    public MappedLineReader(Path file, long start, long end, int windowBytes)
+            throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.READ), true, start, end, windowBytes);
+    }
+
+    /**
+     * Construct a MappedLineReader over bytes [start, end) of an open channel,
+     * which is left open when the reader is closed.
+     *
+     * @throws IOException
+     *             if the size of the channel cannot be read
+     */
+    public MappedLineReader(FileChannel channel, long start, long end, int windowBytes)
+            throws IOException {
+        this(channel, false, start, end, windowBytes);
+    }
+
+    private MappedLineReader(FileChannel channel, boolean ownsChannel, long start, long end,
+            int windowBytes) throws IOException {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.end = Math.min(end, channel.size());
+        this.position = start;
+        this.windowBytes = windowBytes;
+    }
+
+    /**
+     * @return the number of bytes in the range
+     */
+    public long size() {
+        return end - position;
+    }
+
+    /**
+     * @return the offset in the file of the next window
+     */
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public ByteBuffer nextWindow() throws IOException {
+        if (position >= end) {
+            return null;
+        }
+
+        long size = windowBytes;
+        while (true) {
+            size = Math.min(Math.min(size, end - position), Integer.MAX_VALUE);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            // SwarBytes reads longs, which need no byte swapping in native
+            // order
+            window.order(ByteOrder.nativeOrder());
+            if (position + size == end) {
+                position = end;
+                return window;
+            }
+            int lastNewline = lastIndexOf(window, (byte) '\n', 0, (int) size);
+            if (lastNewline >= 0) {
+                window.limit(lastNewline + 1);
+                position += lastNewline + 1;
+                return window;
+            }
+            if (size == Integer.MAX_VALUE) {
+                throw new IOException("Line too long");
+            }
+            // the window holds part of one single line, so try a larger one
+            size *= 2;
+        }
+    }
+
+    /**
+     * Split a file into ranges of about chunkBytes bytes, each of which starts
+     * at the beginning of a line.
+     *
+     * @return the offsets of the range boundaries, starting with 0 and ending
+     *         with the size of the file
+     * @throws IOException
+     *             if any IO error occurs when reading the file
+     */
+    public static List<Long> splitAtLines(Path file, long chunkBytes) throws IOException {
+        return splitAtLines(file, chunkBytes, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Split bytes [start, end) of a file into ranges of about chunkBytes
+     * bytes, each of which starts at the beginning of a line. The caller is
+     * responsible for start being at the beginning of a line.
+     *
+     * @return the offsets of the range boundaries, starting with start and
+     *         ending with end, or the size of the file if it is smaller
+     * @throws IOException
+     *             if any IO error occurs when reading the file
+     */
+    public static List<Long> splitAtLines(Path file, long chunkBytes, long start, long end)
+            throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        offsets.add(start);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = Math.min(channel.size(), end);
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            long offset = start + chunkBytes;
+            while (offset < size) {
+                // the chunk starts right after the first newline at or after
+                // offset - 1
+                long position = offset - 1;
+                long boundary = size;
+                buf.clear();
+                int n;
+                while (position < size && (n = channel.read(buf, position)) > 0) {
+                    int i = indexOf(buf, (byte) '\n', 0, n);
+                    if (i >= 0) {
+                        boundary = position + i + 1;
+                        break;
+                    }
+                    position += n;
+                    buf.clear();
+                }
+                if (boundary >= size) {
+                    break;
+                }
+                offsets.add(boundary);
+                offset = Math.max(boundary, offset) + chunkBytes;
+            }
+            offsets.add(size);
+        }
+        return offsets;
+    }
+
+    /**
+     * @return the offset of the first line starting at or after offset, or
+     *         end if no line starts in [offset, end)
+     * @throws IOException
+     *             if any IO error occurs when reading the channel
+     */
+    public static long nextLineStart(FileChannel channel, long offset, long end)
+            throws IOException {
+        if (offset <= 0) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        // the line starts right after the first newline at or after offset - 1
+        long position = offset - 1;
+        int n;
+        while (position < end && (n = channel.read(buf, position)) > 0) {
+            int i = indexOf(buf, (byte) '\n', 0, n);
+            if (i >= 0) {
+                return Math.min(position + i + 1, end);
+            }
+            position += n;
+            buf.clear();
+        }
+        return end;
+    }
+
+    /**
+     * @return the offset right after the last newline in the first size bytes
+     *         of a file, or 0 if there is no newline
+     * @throws IOException
+     *             if any IO error occurs when reading the file
+     */
+    public static long lastLineEnd(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return lastLineEnd(channel, size);
+        }
+    }
+
+    /**
+     * @return the offset right after the last newline in the first size bytes
+     *         of a channel, or 0 if there is no newline
+     * @throws IOException
+     *             if any IO error occurs when reading the channel
+     */
+    public static long lastLineEnd(FileChannel channel, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long end = Math.min(size, channel.size());
+        while (end > 0) {
+            long position = Math.max(0, end - buf.capacity());
+            buf.clear();
+            buf.limit((int) (end - position));
+            while (buf.hasRemaining() && channel.read(buf, position + buf.position()) > 0) {
+            }
+            int i = lastIndexOf(buf, (byte) '\n', 0, buf.position());
+            if (i >= 0) {
+                return position + i + 1;
+            }
+            end = position;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the index of the first occurrence of b in buf[from, to), or -1
+     *         if b does not occur
+     */
+    public static int indexOf(ByteBuffer buf, byte b, int from, int to) {
+        if (Catalog.GREP_USE_SWAR) {
+            return SwarBytes.indexOf(buf, b, from, to);
+        }
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the last occurrence of b in buf[from, to), or -1 if
+     *         b does not occur
+     */
+    public static int lastIndexOf(ByteBuffer buf, byte b, int from, int to) {
+        if (Catalog.GREP_USE_SWAR) {
+            return SwarBytes.lastIndexOf(buf, b, from, to);
+        }
+        for (int i = to - 1; i >= from; i--) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of occurrences of b in buf[from, to)
+     */
+    public static int count(ByteBuffer buf, byte b, int from, int to) {
+        if (Catalog.GREP_USE_SWAR) {
+            return SwarBytes.count(buf, b, from, to);
+        }
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsChannel) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package logquerier;
+
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * OrderedMerge merges several streams of output lines, each already in time
+ * order, into one stream in time order. Only the current batch of every
+ * stream is held, so the memory used is bounded by the buffers of the
+ * streams, and a stream which is not taken from stops its producer.
+ * <p>
+ * The time of a line is the timestamp found after its prefix fields, e.g.
+ * `file:' or `file:12:' of a line printed by Grep. A line without timestamp
+ * belongs to the time of the preceding line of its stream, so stack traces
+ * stay together with the line which logged them. Lines logged at the same
+ * time are output in the order of their streams.
+ */
+public class OrderedMerge {
+
+    /**
+     * Source is one stream of lines in time order.
+     */
+    public interface Source {
+        /**
+         * Wait until lines are available or the stream ends.
+         *
+         * @return the next lines, or <code>null</code> at the end of the
+         *         stream
+         * @throws InterruptedException
+         *             if interrupted while waiting
+         */
+        List<String> take() throws InterruptedException;
+    }
+
+    /**
+     * Sink receives the merged lines.
+     */
+    public interface Sink {
+        /**
+         * @param source
+         *            the index of the source of the line
+         * @return <code>false</code> to stop merging
+         */
+        boolean accept(int source, String line);
+    }
+
+    /**
+     * Cursor is the current line of one source.
+     */
+    private static class Cursor implements Comparable<Cursor> {
+        final int index;
+        final Source source;
+        List<String> batch;
+        int next = 0;
+        String line;
+        long time = TimeIndex.NO_TIME;
+
+        Cursor(int index, Source source) {
+            this.index = index;
+            this.source = source;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return Integer.compare(index, other.index);
+        }
+    }
+
+    private final int prefixFields;
+    private final TimeIndex.TimestampParser parser = new TimeIndex.TimestampParser();
+
+    /**
+     * @param prefixFields
+     *            the number of `:' terminated fields before the original line
+     */
+    public OrderedMerge(int prefixFields) {
+        this.prefixFields = prefixFields;
+    }
+
+    /**
+     * Merge the sources into sink, until all sources end or sink stops.
+     *
+     * @return <code>false</code> if sink stopped merging
+     * @throws InterruptedException
+     *             if interrupted while waiting for a source
+     */
+    public boolean merge(List<? extends Source> sources, Sink sink) throws InterruptedException {
+        PriorityQueue<Cursor> heads = new PriorityQueue<>(Math.max(1, sources.size()));
+        for (int i = 0; i < sources.size(); i++) {
+            Cursor cursor = new Cursor(i, sources.get(i));
+            if (advance(cursor)) {
+                heads.add(cursor);
+            }
+        }
+        Cursor cursor;
+        while ((cursor = heads.poll()) != null) {
+            if (!sink.accept(cursor.index, cursor.line)) {
+                return false;
+            }
+            if (advance(cursor)) {
+                heads.add(cursor);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move the cursor to the next line of its source.
+     *
+     * @return <code>false</code> if the source has ended
+     */
+    private boolean advance(Cursor cursor) throws InterruptedException {
+        while (cursor.batch == null || cursor.next >= cursor.batch.size()) {
+            cursor.batch = cursor.source.take();
+            cursor.next = 0;
+            if (cursor.batch == null) {
+                return false;
+            }
+        }
+        cursor.line = cursor.batch.get(cursor.next++);
+        long time = timeOf(cursor.line);
+        if (time != TimeIndex.NO_TIME) {
+            cursor.time = time;
+        }
+        return true;
+    }
+
+    private long timeOf(String line) {
+        int start = 0;
+        for (int i = 0; i < prefixFields; i++) {
+            int colon = line.indexOf(':', start);
+            if (colon < 0) {
+                return TimeIndex.NO_TIME;
+            }
+            start = colon + 1;
+        }
+        return parser.parse(line.substring(start, Math.min(line.length(), start + 128)));
+    }
+}
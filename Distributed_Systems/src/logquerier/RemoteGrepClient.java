@@ -1,17 +1,37 @@
 package logquerier;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
 import org.apache.commons.cli.ParseException;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
+import sdfs.Client;
+import sdfs.OutsideClient;
 import system.Catalog;
 
 /**
@@ -20,26 +40,264 @@ import system.Catalog;
  * of RemoteGrepClient is exactly the same as Grep, except that at least one
  * file should be given (i.e. cannot read from standard input, which does not
  * make sense in distributed settings).
+ * <p>
+ * The query is sent to the live log query services, as found in the
+ * membership of the first host of Catalog.HOST_LIST which answers. When logs
+ * are replicated, a host which has not answered after the 95th percentile of
+ * the latency of the other hosts is hedged by sending the query to one of its
+ * replicas as well, and the output of whichever answers first is used.
+ * <p>
+ * With --sdfs namenode as the first arguments, the file name patterns are
+ * globs of SDFS files. The name node tells the replicas of every matching
+ * file, and each file is grepped on exactly one of them, next to its data, so
+ * only the selected lines travel over the network.
+ * <p>
+ * -m limits the number of lines printed from all hosts together. Once enough
+ * lines have been received, or the client is interrupted, every host is told
+ * to cancel the query, so they stop scanning instead of running to the end.
+ * <p>
+ * With --ordered, every host merges its own files in time order, and the
+ * lines of all hosts are merged again by a k-way merge in time order. Lines
+ * of each host are buffered up to Catalog.GREP_MERGE_BUFFER_LINES, after which
+ * the host is no longer read until the merge catches up with it.
  */
 public class RemoteGrepClient {
+    /** the number of lines which can still be printed, from all hosts */
+    private static final AtomicLong remainingLines = new AtomicLong(Long.MAX_VALUE);
+    private static final List<QueryThread> queries = new CopyOnWriteArrayList<>();
+
+    /**
+     * Take one line from the budget of -m, and cancel the query on all hosts
+     * once the budget is used up.
+     *
+     * @return <code>true</code> if the line can be printed
+     */
+    private static boolean takeLine() {
+        long remaining = remainingLines.decrementAndGet();
+        if (remaining == 0) {
+            cancelAll();
+        }
+        return remaining >= 0;
+    }
+
+    private static void cancelAll() {
+        for (QueryThread query : queries) {
+            query.cancel();
+        }
+    }
+
+    /**
+     * HostQuery is the query of one host of the fan-out. It is sent to the
+     * host, and may be hedged by sending it to a replica of the host as well.
+     * The first attempt to answer wins, and the other one is cancelled.
+     */
+    private static class HostQuery {
+        private final String host;
+        private final String[] args;
+        /** live replicas of the host, which are not queried yet */
+        private final List<String> replicas;
+        private final Aggregate merged;
+        private final FileOutput ordered;
+        private final long startTime = System.nanoTime();
+
+        private final List<QueryThread> attempts = new ArrayList<>();
+        private int running = 0;
+        private QueryThread winner;
+        /** the time until the first answer, measured in nanoseconds */
+        private long latency = -1;
+        private long duration = -1;
+        private boolean done = false;
+
+        HostQuery(String host, String[] args, List<String> replicas, Aggregate merged,
+                FileOutput ordered) {
+            this.host = host;
+            this.args = args;
+            this.replicas = new ArrayList<>(replicas);
+            this.merged = merged;
+            this.ordered = ordered;
+        }
+
+        void start() {
+            startAttempt(host);
+        }
+
+        private synchronized void startAttempt(String target) {
+            QueryThread attempt = new QueryThread(target, args, merged, ordered, this);
+            attempts.add(attempt);
+            queries.add(attempt);
+            running++;
+            new Thread(attempt).start();
+        }
+
+        /**
+         * Send the query to a replica too, if the host has any left and has
+         * not answered yet.
+         */
+        synchronized void hedge() {
+            if (winner != null || done || replicas.isEmpty()) {
+                return;
+            }
+            String replica = replicas.remove(0);
+            System.err.println(String.format("%s: No answer after %ss, hedging with %s", host,
+                    (System.nanoTime() - startTime) / 1000000000., replica));
+            startAttempt(replica);
+        }
+
+        /**
+         * Called by an attempt before it outputs anything.
+         *
+         * @return <code>true</code> if the attempt is the first to answer, and
+         *         should output its answer
+         */
+        synchronized boolean claim(QueryThread attempt) {
+            if (winner == null) {
+                winner = attempt;
+                latency = System.nanoTime() - startTime;
+                for (QueryThread other : attempts) {
+                    if (other != attempt) {
+                        other.cancel();
+                    }
+                }
+            }
+            return winner == attempt;
+        }
+
+        /**
+         * Called by an attempt when it ends. An attempt which ends without
+         * answering, e.g. because its host is down, is hedged right away.
+         */
+        void finished(QueryThread attempt) {
+            boolean hedge;
+            synchronized (this) {
+                running--;
+                hedge = winner == null && running == 0 && !replicas.isEmpty();
+                if (!hedge && (winner == attempt || (winner == null && running == 0))) {
+                    duration = System.nanoTime() - startTime;
+                    done = true;
+                    if (ordered != null) {
+                        ordered.finish(0);
+                    }
+                    notifyAll();
+                }
+            }
+            if (hedge) {
+                hedge();
+            }
+        }
+
+        synchronized boolean isAnswered() {
+            return winner != null;
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * @return the time since the query was sent, measured in nanoseconds
+         */
+        long waited() {
+            return System.nanoTime() - startTime;
+        }
+
+        /**
+         * @return the time until the first answer, measured in nanoseconds,
+         *         or -1 if the host has not answered
+         */
+        synchronized long getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return the host whose answer is used
+         */
+        synchronized String answeredBy() {
+            return winner == null ? host : winner.host;
+        }
+
+        synchronized void awaitDone() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+        }
+
+        synchronized String report() {
+            if (winner == null) {
+                return String.format("%s: No answer", host);
+            }
+            String by = winner.host.equals(host) ? "" : String.format(" (answered by %s)",
+                    winner.host);
+            return String.format("%s: Answered in %ss, done in %ss%s", host,
+                    latency / 1000000000., duration / 1000000000., by);
+        }
+    }
 
     private static class QueryThread implements Runnable {
         private final String host;
         private final String[] args;
+        /**
+         * the aggregate into which the aggregate of the host is merged, or
+         * <code>null</code> if the query is not an aggregate query
+         */
+        private final Aggregate merged;
+        /**
+         * the buffer into which lines are put to be merged in time order, or
+         * <code>null</code> if lines are printed as they arrive
+         */
+        private final FileOutput ordered;
+        private final HostQuery hostQuery;
+        /** the writer of the connection, once the query has been sent */
+        private PrintWriter pw;
+        private boolean cancelled = false;
+        /** set once the host query has been claimed by this attempt */
+        private boolean claimed = false;
 
-        QueryThread(String host, String[] args) {
+        QueryThread(String host, String[] args, Aggregate merged, FileOutput ordered,
+                HostQuery hostQuery) {
             this.host = host;
             this.args = args;
+            this.merged = merged;
+            this.ordered = ordered;
+            this.hostQuery = hostQuery;
+        }
+
+        /**
+         * Tell the host to stop the query. Lines it has already sent are still
+         * read until it closes the query.
+         */
+        synchronized void cancel() {
+            if (!cancelled && pw != null) {
+                pw.println(LogQueryService.CANCEL);
+            }
+            cancelled = true;
+        }
+
+        private synchronized void sent(PrintWriter pw) {
+            this.pw = pw;
+            if (cancelled) {
+                pw.println(LogQueryService.CANCEL);
+            }
+        }
+
+        /**
+         * @return <code>true</code> if the answer of this attempt is output,
+         *         <code>false</code> if another attempt has answered first
+         */
+        private boolean claim() {
+            if (!claimed) {
+                claimed = hostQuery.claim(this);
+            }
+            return claimed;
         }
 
         /**
          * Attempt to connect the specified host.
-         * 
+         *
          * @return the connected socket if succeed, <code>null</code> otherwise.
          */
         private Socket connect() {
             try {
-                Socket socket = new Socket(host, Catalog.LOG_QUERY_SERVICE_PORT);
+                Socket socket = RemoteGrepClient.connect(host);
                 System.err.println(String.format("%s: Connection set up successfully.", host));
                 return socket;
             } catch (IOException e) {
@@ -51,7 +309,7 @@ public class RemoteGrepClient {
         /**
          * Send `grep' query over the specified socket, and output received
          * responses to standard output.
-         * 
+         *
          * @param socket
          *            requires the socket not null and open.
          */
@@ -65,21 +323,141 @@ public class RemoteGrepClient {
                 // Notice: A tricky detail here.
                 // send String array using JSON format
                 // In case String has quote or space
+                boolean framed = merged == null && Catalog.GREP_FRAMED_PROTOCOL;
                 List<String> argList = new ArrayList<>();
-                argList.add("grep");
+                argList.add(merged != null ? "aggregate" : framed ? "grep-framed" : "grep");
                 argList.addAll(Arrays.asList(args));
                 String jsonText = JSONValue.toJSONString(argList);
                 pw.println(jsonText);
+                sent(pw);
 
+                if (merged != null) {
+                    // the whole aggregate comes in one line
+                    if (sc.hasNext()) {
+                        JSONObject reply = (JSONObject) JSONValue.parse(sc.next());
+                        if (reply.containsKey("error")) {
+                            System.err.println(String.format("%s: Query rejected: %s", host,
+                                    reply.get("error")));
+                        } else if (claim()) {
+                            merged.merge(Aggregate.fromJSON(reply));
+                        }
+                    }
+                    return;
+                }
+                if (framed) {
+                    // frames are never further apart than the heartbeat
+                    socket.setSoTimeout(Catalog.GREP_READ_TIMEOUT);
+                    readFrames(socket.getInputStream());
+                    return;
+                }
                 while (sc.hasNext()) {
                     String matchedLine = sc.next();
-                    System.out.println(String.format("%s:%s", host, matchedLine));
+                    if (!claim()) {
+                        return;
+                    }
+                    if (ordered != null) {
+                        ordered.add(matchedLine);
+                    } else if (takeLine()) {
+                        System.out.println(String.format("%s:%s", host, matchedLine));
+                    }
                 }
+                claim();
             } catch (IOException e) {
                 System.err.println(String.format("%s: %s", host, e.getMessage()));
             }
         }
 
+        /**
+         * Output the lines received in frames to standard output, and the
+         * trailer to standard error. A line split across frames is output once
+         * its last part has arrived.
+         */
+        private void readFrames(InputStream is) throws IOException {
+            try (FrameReader reader = new FrameReader(is)) {
+                readFrames(reader);
+            }
+        }
+
+        private void readFrames(FrameReader reader) throws IOException {
+            String prefix = host + ":";
+            String separator = System.lineSeparator();
+            StringBuilder sb = new StringBuilder();
+            // the bytes of a line whose end is in a later frame
+            ByteArrayOutputStream partial = new ByteArrayOutputStream();
+            int len;
+            while ((len = reader.next()) >= 0) {
+                if (len == 0) {
+                    // heartbeat
+                    continue;
+                }
+                if (!claim()) {
+                    return;
+                }
+                byte[] data = reader.getData();
+                sb.setLength(0);
+                int start = 0;
+                for (int end = 0; end < len; end++) {
+                    if (data[end] != '\n') {
+                        continue;
+                    }
+                    String line;
+                    if (partial.size() > 0) {
+                        partial.write(data, start, end - start);
+                        line = partial.toString(Catalog.ENCODING);
+                        partial.reset();
+                    } else {
+                        line = new String(data, start, end - start, Catalog.ENCODING);
+                    }
+                    addLine(line, prefix, separator, sb);
+                    start = end + 1;
+                }
+                partial.write(data, start, len - start);
+                // one print per frame, so lines of different hosts never mix
+                System.out.print(sb);
+            }
+            if (partial.size() > 0 && claim()) {
+                // the last line of the output has no line end
+                sb.setLength(0);
+                addLine(partial.toString(Catalog.ENCODING), prefix, separator, sb);
+                System.out.print(sb);
+            }
+            JSONObject trailer = reader.getTrailer();
+            if (FramedOutputStream.STATUS_CANCELLED.equals(trailer.get("status"))) {
+                System.err.println(String.format("%s: Query cancelled after %s lines", host,
+                        trailer.get("lines")));
+            } else if (FramedOutputStream.STATUS_OK.equals(trailer.get("status"))) {
+                if (!claim()) {
+                    return;
+                }
+                System.err.println(String.format(
+                        "%s: %s lines, %s bytes in %s frames (%s on the wire)", host,
+                        trailer.get("lines"), trailer.get("bytes"), trailer.get("frames"),
+                        trailer.get("wireBytes")));
+            } else {
+                // not an answer, so a replica may still answer
+                System.err.println(String.format("%s: Query %s: %s", host,
+                        FramedOutputStream.STATUS_REJECTED.equals(trailer.get("status"))
+                                ? "rejected" : "failed",
+                        trailer.get("message")));
+            }
+        }
+
+        /**
+         * Hand a received line to the merge, or append it to the output of the
+         * frame.
+         */
+        private void addLine(String line, String prefix, String separator, StringBuilder sb) {
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (ordered != null) {
+                // lines are dropped once the merge has stopped
+                ordered.add(line);
+            } else if (takeLine()) {
+                sb.append(prefix).append(line).append(separator);
+            }
+        }
+
         private void close(Socket socket) {
             try {
                 // flush System.out to ensure log lines appear after regular
@@ -94,21 +472,212 @@ public class RemoteGrepClient {
 
         @Override
         public void run() {
-            Socket socket = connect();
+            try {
+                Socket socket = connect();
+
+                if (socket != null) {
+                    long startTime = System.nanoTime();
 
-            if (socket != null) {
-                long startTime = System.nanoTime();
+                    executeQuery(socket);
+                    close(socket);
 
-                executeQuery(socket);
-                close(socket);
+                    long duration = System.nanoTime() - startTime;
+                    System.err.println(String.format("%s: Elapsed time: %ss", host, duration / 1000000000.));
+                }
+            } finally {
+                hostQuery.finished(this);
+            }
+        }
+    }
 
-                long duration = System.nanoTime() - startTime;
-                System.err.println(String.format("%s: Elapsed time: %ss", host, duration / 1000000000.));
+    /**
+     * Connect to the log query service of the host, within
+     * Catalog.GREP_CONNECT_TIMEOUT.
+     */
+    private static Socket connect(String host) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, Catalog.LOG_QUERY_SERVICE_PORT),
+                    Catalog.GREP_CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Ask the hosts of Catalog.HOST_LIST in turn for the live log query
+     * services, until one of them answers.
+     *
+     * @return the host names of the live services, or Catalog.HOST_LIST if no
+     *         host knows them
+     */
+    private static List<String> findLiveHosts() {
+        for (String seed : Catalog.HOST_LIST) {
+            try (Socket socket = connect(seed)) {
+                socket.setSoTimeout(Catalog.GREP_CONNECT_TIMEOUT);
+                PrintWriter pw = new PrintWriter(
+                        new OutputStreamWriter(socket.getOutputStream(), Catalog.ENCODING), true);
+                pw.println(JSONValue.toJSONString(Collections.singletonList("members")));
+                Scanner sc = new Scanner(
+                        new InputStreamReader(socket.getInputStream(), Catalog.ENCODING))
+                                .useDelimiter("\\n|\\r\\n");
+                if (!sc.hasNext()) {
+                    // an old service which does not know its members
+                    break;
+                }
+                JSONArray members = (JSONArray) JSONValue.parse(sc.next());
+                if (members == null || members.isEmpty()) {
+                    // the services are not in a membership group
+                    break;
+                }
+                List<String> hosts = new ArrayList<>();
+                for (Object member : members) {
+                    hosts.add((String) member);
+                }
+                Collections.sort(hosts);
+                return hosts;
+            } catch (IOException | ClassCastException e) {
+                // try the next host
+            }
+        }
+        return Arrays.asList(Catalog.HOST_LIST);
+    }
+
+    /**
+     * @return the live hosts of the replica group of the host, other than the
+     *         host itself
+     */
+    private static List<String> replicasOf(String host, List<String> liveHosts) {
+        List<String> replicas = new ArrayList<>();
+        for (String[] group : Catalog.LOG_REPLICA_GROUPS) {
+            if (Arrays.asList(group).contains(host)) {
+                for (String replica : group) {
+                    if (!replica.equals(host) && liveHosts.contains(replica)) {
+                        replicas.add(replica);
+                    }
+                }
             }
         }
+        return replicas;
     }
-    
-    public static void main(String[] args) throws IOException {
+
+    /**
+     * Hedge hosts which have not answered after the 95th percentile of the
+     * latency of the hosts which have. Until half of the hosts have answered,
+     * Catalog.GREP_HEDGE_DELAY is used instead.
+     */
+    private static void hedgeSlowHosts(List<HostQuery> hostQueries) throws InterruptedException {
+        while (true) {
+            Thread.sleep(Catalog.GREP_HEDGE_CHECK_PERIOD);
+            List<Long> latencies = new ArrayList<>();
+            boolean done = true;
+            for (HostQuery hostQuery : hostQueries) {
+                done &= hostQuery.isDone();
+                if (hostQuery.getLatency() >= 0) {
+                    latencies.add(hostQuery.getLatency());
+                }
+            }
+            if (done) {
+                return;
+            }
+            long delay = Catalog.TIME_UNIT.toNanos(Catalog.GREP_HEDGE_DELAY);
+            if (latencies.size() * 2 >= hostQueries.size()) {
+                Collections.sort(latencies);
+                int p95 = (int) Math.ceil(latencies.size() * 0.95) - 1;
+                delay = Math.max(Catalog.TIME_UNIT.toNanos(Catalog.GREP_HEDGE_MIN_DELAY),
+                        latencies.get(p95));
+            }
+            for (HostQuery hostQuery : hostQueries) {
+                if (!hostQuery.isAnswered() && hostQuery.waited() > delay) {
+                    hostQuery.hedge();
+                }
+            }
+        }
+    }
+
+    /**
+     * Print the lines of all hosts merged in time order, as long as the budget
+     * of -m lasts.
+     */
+    private static void printOrdered(final List<HostQuery> hostQueries, List<FileOutput> outputs,
+            int prefixFields) throws IOException, InterruptedException {
+        final PrintWriter pw = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, Catalog.ENCODING)));
+        try {
+            new OrderedMerge(prefixFields).merge(outputs, new OrderedMerge.Sink() {
+                @Override
+                public boolean accept(int source, String line) {
+                    if (!takeLine()) {
+                        return false;
+                    }
+                    pw.print(hostQueries.get(source).answeredBy());
+                    pw.print(':');
+                    pw.println(line);
+                    return true;
+                }
+            });
+        } finally {
+            pw.flush();
+            // let hosts still sending lines drain into nowhere
+            for (FileOutput output : outputs) {
+                output.abandon();
+            }
+        }
+    }
+
+    /**
+     * Ask the name node of SDFS for the SDFS files matching the file name
+     * patterns, and give each file to one of its replicas. A file goes to the
+     * replica with the fewest files of the query so far, or the one with the
+     * fewest SDFS files on a tie, so scans are spread over the data nodes.
+     *
+     * @return the SDFS files to grep on each host
+     */
+    private static Map<String, List<String>> assignSDFSFiles(String namenode,
+            List<String> fileNamePatterns) throws RemoteException, NotBoundException {
+        Logger logger = Logger.getLogger(RemoteGrepClient.class.getName());
+        Client client = new OutsideClient(logger, namenode);
+        Map<String, List<InetAddress>> locations = new TreeMap<>();
+        for (String pattern : fileNamePatterns) {
+            Map<String, List<InetAddress>> matched = client.getFileLocationsMatching(pattern);
+            if (matched.isEmpty()) {
+                System.err.println(String.format("grep: %s: No such SDFS file", pattern));
+            }
+            locations.putAll(matched);
+        }
+        Map<String, List<String>> filesOnHost = new LinkedHashMap<>();
+        for (Map.Entry<String, List<InetAddress>> entry : locations.entrySet()) {
+            String chosen = null;
+            int chosenFiles = Integer.MAX_VALUE;
+            for (InetAddress IP : entry.getValue()) {
+                List<String> files = filesOnHost.get(IP.getHostName());
+                int assigned = files == null ? 0 : files.size();
+                // the least loaded data node comes first, and wins ties
+                if (assigned < chosenFiles) {
+                    chosen = IP.getHostName();
+                    chosenFiles = assigned;
+                }
+            }
+            filesOnHost.putIfAbsent(chosen, new ArrayList<String>());
+            // the log query service runs next to the data node, in the same
+            // working directory, and takes file name patterns, so the glob
+            // characters of SDFS file names are escaped
+            filesOnHost.get(chosen).add(Paths.get(Catalog.SDFS_DIR,
+                    FileWalker.escape(entry.getKey())).toString());
+        }
+        return filesOnHost;
+    }
+
+    public static void main(String[] args)
+            throws IOException, InterruptedException, NotBoundException {
+        // --sdfs is the option of the client, not of grep
+        String namenode = null;
+        if (args.length >= 2 && args[0].equals("--sdfs")) {
+            namenode = args[1];
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
         // args errors are detected here,
         // so no invalid commands will be sent to other servers.
         try {
@@ -119,8 +688,88 @@ public class RemoteGrepClient {
                 System.exit(-1);
             }
 
-            for (String host : Catalog.HOST_LIST) {
-                new Thread(new QueryThread(host, args)).start();
+            Aggregate merged = grep.isAggregateQuery() ? new Aggregate(grep.isDistinct()) : null;
+            if (merged == null && !grep.getOptions().hasOption("count")) {
+                remainingLines.set(grep.getMaxCount());
+            }
+            // stop the scans on all hosts when interrupted, e.g. by Ctrl-C
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    cancelAll();
+                }
+            }));
+
+            List<String> liveHosts;
+            List<String> hosts = new ArrayList<>();
+            Map<String, String[]> hostArgs = new HashMap<>();
+            if (namenode != null) {
+                // every file is only queried on the host it is assigned to
+                liveHosts = new ArrayList<>();
+                Map<String, List<String>> filesOnHost = assignSDFSFiles(namenode,
+                        grep.getFileNamePatterns());
+                for (Map.Entry<String, List<String>> entry : filesOnHost.entrySet()) {
+                    hosts.add(entry.getKey());
+                    hostArgs.put(entry.getKey(), grep.withFiles(entry.getValue()));
+                }
+            } else {
+                liveHosts = findLiveHosts();
+                // a replica of a host already queried is only queried to hedge
+                // it, so the same logs are not output twice
+                for (String host : liveHosts) {
+                    boolean replicated = false;
+                    for (String replica : replicasOf(host, liveHosts)) {
+                        replicated |= hosts.contains(replica);
+                    }
+                    if (!replicated) {
+                        hosts.add(host);
+                        hostArgs.put(host, args);
+                    }
+                }
+            }
+
+            List<FileOutput> outputs = grep.isOrdered() ? new ArrayList<FileOutput>() : null;
+            final List<HostQuery> hostQueries = new ArrayList<>();
+            for (String host : hosts) {
+                FileOutput output = null;
+                if (outputs != null) {
+                    output = new FileOutput(Catalog.GREP_MERGE_BUFFER_LINES);
+                    outputs.add(output);
+                }
+                // a subscription never answers in full, so it is not hedged
+                List<String> replicas = grep.isFollow() ? new ArrayList<String>()
+                        : replicasOf(host, liveHosts);
+                HostQuery hostQuery = new HostQuery(host, hostArgs.get(host), replicas,
+                        merged, output);
+                hostQueries.add(hostQuery);
+                hostQuery.start();
+            }
+            Thread hedger = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        hedgeSlowHosts(hostQueries);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "hedger");
+            hedger.setDaemon(true);
+            hedger.start();
+
+            if (outputs != null) {
+                printOrdered(hostQueries, outputs, grep.getPrefixFields());
+            }
+            for (HostQuery hostQuery : hostQueries) {
+                hostQuery.awaitDone();
+            }
+            if (merged != null) {
+                PrintWriter pw = new PrintWriter(
+                        new OutputStreamWriter(System.out, Catalog.ENCODING), true);
+                merged.print(pw, grep.isGrouped(), grep.getTopK());
+            }
+            for (HostQuery hostQuery : hostQueries) {
+                System.err.println(hostQuery.report());
             }
         } catch (ParseException e) {
             System.err.println(e.getMessage());
@@ -0,0 +1,374 @@
+package logquerier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RequiredLiterals analyzes a regular expression in java.util.regex syntax, and
+ * finds a set of literal strings such that every match of the expression
+ * contains at least one of them. Any line not containing one of the literals
+ * can then be rejected without running the regular expression.
+ * <p>
+ * The analysis is conservative: whenever it meets a construct it does not
+ * understand (inline flags, unusual escapes, etc.), it gives up and reports
+ * that no literal is required.
+ */
+public class RequiredLiterals {
+
+    private static class UnsupportedSyntaxException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Node is the result of analyzing a piece of a regular expression.
+     */
+    private static class Node {
+        /**
+         * the only string the piece can match, or <code>null</code> if it can
+         * match different strings
+         */
+        final String exact;
+        /**
+         * every match of the piece contains one of these literals, or
+         * <code>null</code> if nothing is known
+         */
+        final List<String> anyOf;
+
+        Node(String exact, List<String> anyOf) {
+            this.exact = exact;
+            this.anyOf = anyOf;
+        }
+
+        static Node unknown() {
+            return new Node(null, null);
+        }
+
+        static Node exact(String s) {
+            List<String> anyOf = null;
+            if (!s.isEmpty()) {
+                anyOf = new ArrayList<>();
+                anyOf.add(s);
+            }
+            return new Node(s, anyOf);
+        }
+    }
+
+    private final String regex;
+    private int pos;
+
+    private RequiredLiterals(String regex) {
+        this.regex = regex;
+        this.pos = 0;
+    }
+
+    /**
+     * @param regex
+     *            a valid regular expression
+     * @return a list of non empty literals such that every match of regex
+     *         contains at least one of them, or <code>null</code> if no such
+     *         list can be found
+     */
+    public static List<String> of(String regex) {
+        RequiredLiterals rl = new RequiredLiterals(regex);
+        try {
+            Node node = rl.parseAlternation();
+            if (rl.pos != regex.length()) {
+                return null;
+            }
+            return node.anyOf;
+        } catch (UnsupportedSyntaxException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param regex
+     *            a valid regular expression
+     * @return the only string regex can match, or <code>null</code> if it can
+     *         match different strings or nothing is known
+     */
+    public static String exact(String regex) {
+        RequiredLiterals rl = new RequiredLiterals(regex);
+        try {
+            Node node = rl.parseAlternation();
+            return rl.pos == regex.length() ? node.exact : null;
+        } catch (UnsupportedSyntaxException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the better of two requirements: the one whose shortest literal
+     *         is longer, since short literals occur more often.
+     */
+    private static List<String> better(List<String> a, List<String> b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        }
+        int minA = Integer.MAX_VALUE;
+        int minB = Integer.MAX_VALUE;
+        for (String s : a) {
+            minA = Math.min(minA, s.length());
+        }
+        for (String s : b) {
+            minB = Math.min(minB, s.length());
+        }
+        if (minA != minB) {
+            return minA > minB ? a : b;
+        }
+        return a.size() <= b.size() ? a : b;
+    }
+
+    private boolean atEnd() {
+        return pos >= regex.length();
+    }
+
+    private char peek() {
+        return regex.charAt(pos);
+    }
+
+    private Node parseAlternation() throws UnsupportedSyntaxException {
+        List<Node> branches = new ArrayList<>();
+        branches.add(parseConcatenation());
+        while (!atEnd() && peek() == '|') {
+            pos++;
+            branches.add(parseConcatenation());
+        }
+        if (branches.size() == 1) {
+            return branches.get(0);
+        }
+
+        String exact = branches.get(0).exact;
+        List<String> anyOf = new ArrayList<>();
+        for (Node branch : branches) {
+            if (exact != null && !exact.equals(branch.exact)) {
+                exact = null;
+            }
+            if (anyOf != null && branch.anyOf != null) {
+                anyOf.addAll(branch.anyOf);
+            } else {
+                anyOf = null;
+            }
+        }
+        if (exact != null) {
+            return Node.exact(exact);
+        }
+        return new Node(null, anyOf);
+    }
+
+    private Node parseConcatenation() throws UnsupportedSyntaxException {
+        StringBuilder run = new StringBuilder();
+        boolean allExact = true;
+        List<String> best = null;
+
+        while (!atEnd() && peek() != '|' && peek() != ')') {
+            Node node = parseQuantified();
+            if (node.exact != null) {
+                run.append(node.exact);
+            } else {
+                allExact = false;
+                if (run.length() > 0) {
+                    best = better(best, Node.exact(run.toString()).anyOf);
+                    run.setLength(0);
+                }
+                best = better(best, node.anyOf);
+            }
+        }
+
+        if (allExact) {
+            return Node.exact(run.toString());
+        }
+        if (run.length() > 0) {
+            best = better(best, Node.exact(run.toString()).anyOf);
+        }
+        return new Node(null, best);
+    }
+
+    private Node parseQuantified() throws UnsupportedSyntaxException {
+        Node atom = parseAtom();
+        if (atEnd()) {
+            return atom;
+        }
+
+        int min;
+        char c = peek();
+        if (c == '*' || c == '?') {
+            pos++;
+            min = 0;
+        } else if (c == '+') {
+            pos++;
+            min = 1;
+        } else if (c == '{') {
+            int close = regex.indexOf('}', pos);
+            if (close < 0) {
+                throw new UnsupportedSyntaxException();
+            }
+            String bounds = regex.substring(pos + 1, close);
+            int comma = bounds.indexOf(',');
+            try {
+                min = Integer.parseInt(comma < 0 ? bounds : bounds.substring(0, comma));
+            } catch (NumberFormatException e) {
+                throw new UnsupportedSyntaxException();
+            }
+            pos = close + 1;
+        } else {
+            return atom;
+        }
+        // lazy and possessive quantifiers
+        if (!atEnd() && (peek() == '?' || peek() == '+')) {
+            pos++;
+        }
+
+        if (min == 0) {
+            return Node.unknown();
+        }
+        return new Node(null, atom.anyOf);
+    }
+
+    private Node parseAtom() throws UnsupportedSyntaxException {
+        char c = peek();
+        switch (c) {
+        case '(':
+            return parseGroup();
+        case '[':
+            skipCharacterClass();
+            return Node.unknown();
+        case '\\':
+            return parseEscape();
+        case '.':
+        case '^':
+        case '$':
+            pos++;
+            return Node.unknown();
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+            throw new UnsupportedSyntaxException();
+        default:
+            return literal(regex.codePointAt(pos));
+        }
+    }
+
+    private Node literal(int codePoint) {
+        pos += Character.charCount(codePoint);
+        if (codePoint == '\n' || codePoint == '\r') {
+            // lines never contain line terminators
+            return Node.unknown();
+        }
+        return Node.exact(new String(Character.toChars(codePoint)));
+    }
+
+    private Node parseGroup() throws UnsupportedSyntaxException {
+        pos++;
+        boolean lookaround = false;
+        if (regex.startsWith("?", pos)) {
+            if (regex.startsWith("?:", pos) || regex.startsWith("?>", pos)) {
+                pos += 2;
+            } else if (regex.startsWith("?=", pos) || regex.startsWith("?!", pos)) {
+                pos += 2;
+                lookaround = true;
+            } else if (regex.startsWith("?<=", pos) || regex.startsWith("?<!", pos)) {
+                pos += 3;
+                lookaround = true;
+            } else if (regex.startsWith("?<", pos)) {
+                int close = regex.indexOf('>', pos);
+                if (close < 0) {
+                    throw new UnsupportedSyntaxException();
+                }
+                pos = close + 1;
+            } else {
+                // inline flags may change how literals are matched
+                throw new UnsupportedSyntaxException();
+            }
+        }
+
+        Node inner = parseAlternation();
+        if (atEnd() || peek() != ')') {
+            throw new UnsupportedSyntaxException();
+        }
+        pos++;
+        return lookaround ? Node.unknown() : inner;
+    }
+
+    private void skipCharacterClass() throws UnsupportedSyntaxException {
+        int depth = 0;
+        do {
+            char c = regex.charAt(pos);
+            if (c == '\\') {
+                if (regex.charAt(pos + 1) == 'Q') {
+                    throw new UnsupportedSyntaxException();
+                }
+                pos += 2;
+                continue;
+            } else if (c == '[') {
+                depth++;
+                pos++;
+                // a leading ^ or ] does not terminate the class
+                if (regex.charAt(pos) == '^') {
+                    pos++;
+                }
+                if (regex.charAt(pos) == ']') {
+                    throw new UnsupportedSyntaxException();
+                }
+                continue;
+            } else if (c == ']') {
+                depth--;
+            }
+            pos++;
+        } while (depth > 0);
+    }
+
+    private Node parseEscape() throws UnsupportedSyntaxException {
+        pos++;
+        char c = regex.charAt(pos);
+        if (c == 'Q') {
+            int end = regex.indexOf("\\E", pos + 1);
+            String quoted = end < 0 ? regex.substring(pos + 1) : regex.substring(pos + 1, end);
+            pos = end < 0 ? regex.length() : end + 2;
+            if (quoted.indexOf('\n') >= 0 || quoted.indexOf('\r') >= 0) {
+                return Node.unknown();
+            }
+            return Node.exact(quoted);
+        }
+        if (c == 't') {
+            pos++;
+            return Node.exact("\t");
+        }
+        if (c == 'f') {
+            pos++;
+            return Node.exact("\f");
+        }
+        if (c == 'a') {
+            pos++;
+            return Node.exact("\u0007");
+        }
+        if (c == 'e') {
+            pos++;
+            return Node.exact("\u001B");
+        }
+        if (c == 'p' || c == 'P') {
+            pos++;
+            if (regex.charAt(pos) == '{') {
+                pos = regex.indexOf('}', pos) + 1;
+                if (pos == 0) {
+                    throw new UnsupportedSyntaxException();
+                }
+            } else {
+                pos++;
+            }
+            return Node.unknown();
+        }
+        if ("dDsSwWbBAzZGRhHvVnrX".indexOf(c) >= 0) {
+            pos++;
+            return Node.unknown();
+        }
+        if (Character.isLetterOrDigit(c)) {
+            // hex, unicode, octal and control escapes, back references, etc.
+            throw new UnsupportedSyntaxException();
+        }
+        return literal(regex.codePointAt(pos));
+    }
+}
@@ -0,0 +1,216 @@
+package logquerier;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ResultCache keeps the selected lines of recent queries per file, so a
+ * repeated query over a log which has only grown by appending scans only the
+ * appended bytes. An entry is keyed by the query and the file, and remembers
+ * how much of the file has been scanned. It is dropped when the file has been
+ * rotated or truncated, i.e. its inode has changed, it has shrunk, or its
+ * first bytes have changed. Entries are evicted in LRU order once their
+ * estimated size exceeds the memory budget.
+ */
+public class ResultCache {
+
+    /**
+     * the fraction of the memory budget one entry may take at most, so that
+     * the result of one query which selects most lines of a large file does
+     * not evict all other entries
+     */
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    /**
+     * Segment is the immutable result of scanning one range of a file. The
+     * segments of an entry form a chain from the newest back to the oldest,
+     * so an entry is extended without copying what it already holds.
+     */
+    public static class Segment {
+        final Segment previous;
+        final int countMatches;
+        /** line numbers of selected lines, only kept when lines are needed */
+        final List<Long> lineNumbers;
+        /** selected lines, only kept when lines are needed */
+        final List<String> selectedLines;
+
+        Segment(Segment previous, int countMatches, List<Long> lineNumbers,
+                List<String> selectedLines) {
+            this.previous = previous;
+            this.countMatches = countMatches;
+            this.lineNumbers = Collections.unmodifiableList(lineNumbers);
+            this.selectedLines = Collections.unmodifiableList(selectedLines);
+        }
+    }
+
+    /**
+     * Entry is the immutable result of scanning the first scannedBytes bytes
+     * of a file, which always end at the end of a line. headHash is the hash
+     * of the beginning of those bytes, see TrigramIndex.headHash().
+     */
+    public static class Entry {
+        final String fileKey;
+        final long headHash;
+        final long scannedBytes;
+        /** the number of lines scanned, only counted when -n is specified */
+        final long lines;
+        final int countMatches;
+        /** the last segment of selected lines, or <code>null</code> if none */
+        private final Segment last;
+        /**
+         * <code>true</code> if max count has been reached, so the rest of the
+         * file does not matter
+         */
+        final boolean complete;
+        final long estimatedBytes;
+
+        Entry(String fileKey, long headHash, long scannedBytes, long lines, int countMatches,
+                List<Long> lineNumbers, List<String> selectedLines, boolean complete) {
+            this(fileKey, headHash, scannedBytes, lines, countMatches,
+                    new Segment(null, countMatches, lineNumbers, selectedLines),
+                    256 + estimatedBytes(selectedLines), complete);
+        }
+
+        private Entry(String fileKey, long headHash, long scannedBytes, long lines,
+                int countMatches, Segment last, long estimatedBytes, boolean complete) {
+            this.fileKey = fileKey;
+            this.headHash = headHash;
+            this.scannedBytes = scannedBytes;
+            this.lines = lines;
+            this.countMatches = countMatches;
+            this.last = last;
+            this.complete = complete;
+            this.estimatedBytes = estimatedBytes;
+        }
+
+        /**
+         * @return a new entry with the result of scanning more bytes appended
+         *         to this one. It shares the segments of this one, so only
+         *         the new lines are copied and counted.
+         */
+        Entry extend(long headHash, long scannedBytes, long lines, int moreMatches,
+                List<Long> moreLineNumbers, List<String> moreLines, boolean complete) {
+            if (moreMatches == 0) {
+                return new Entry(fileKey, headHash, scannedBytes, lines, countMatches, last,
+                        estimatedBytes, complete);
+            }
+            return new Entry(fileKey, headHash, scannedBytes, lines, countMatches + moreMatches,
+                    new Segment(last, moreMatches, moreLineNumbers, moreLines),
+                    estimatedBytes + estimatedBytes(moreLines), complete);
+        }
+
+        /**
+         * @return the segments of selected lines, oldest first
+         */
+        List<Segment> segments() {
+            List<Segment> segments = new ArrayList<>();
+            for (Segment segment = last; segment != null; segment = segment.previous) {
+                segments.add(segment);
+            }
+            Collections.reverse(segments);
+            return segments;
+        }
+    }
+
+    /**
+     * @return the estimated number of bytes taken by selected lines in an
+     *         entry: object headers, the char array, and the boxed line number
+     */
+    static long estimatedBytes(String line) {
+        return 64 + 2 * line.length();
+    }
+
+    private static long estimatedBytes(List<String> selectedLines) {
+        long bytes = 0;
+        for (String line : selectedLines) {
+            bytes += estimatedBytes(line);
+        }
+        return bytes;
+    }
+
+    private final long capacityBytes;
+    private long usedBytes = 0;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param capacityBytes
+     *            the memory budget of the cache
+     */
+    public ResultCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    private static String keyOf(String query, Path file) {
+        return query + "\0" + file.toAbsolutePath().normalize();
+    }
+
+    /**
+     * @return the entry of the query over the file if it is still valid for
+     *         the file, or <code>null</code>
+     * @throws IOException
+     *             if any IO error occurs when checking the file
+     */
+    public Entry get(String query, Path file) throws IOException {
+        String key = keyOf(query, file);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (Files.size(file) < entry.scannedBytes
+                || !entry.fileKey.equals(TrigramIndex.fileKey(file))
+                || entry.headHash != TrigramIndex.headHash(file, entry.scannedBytes)) {
+            // the file has been rotated or truncated
+            remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return the maximum estimated size of an entry which is stored
+     */
+    public long maxEntryBytes() {
+        return capacityBytes / MAX_ENTRY_FRACTION;
+    }
+
+    /**
+     * Store the entry of the query over the file, replacing the previous one.
+     * Entries larger than maxEntryBytes() are not stored.
+     */
+    public void put(String query, Path file, Entry entry) {
+        String key = keyOf(query, file);
+        synchronized (this) {
+            Entry previous = entries.remove(key);
+            if (previous != null) {
+                usedBytes -= previous.estimatedBytes;
+            }
+            if (entry.estimatedBytes > maxEntryBytes()) {
+                return;
+            }
+            entries.put(key, entry);
+            usedBytes += entry.estimatedBytes;
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (usedBytes > capacityBytes && it.hasNext()) {
+                usedBytes -= it.next().getValue().estimatedBytes;
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized void remove(String key, Entry entry) {
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+            usedBytes -= entry.estimatedBytes;
+        }
+    }
+}
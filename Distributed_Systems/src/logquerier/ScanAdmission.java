@@ -0,0 +1,130 @@
+package logquerier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ScanAdmission limits the number of queries scanning each disk at the same
+ * time. A query has to be admitted on every disk holding its files before it
+ * starts, and waits in a fair queue until it is admitted or times out, so a
+ * burst of queries is served in arrival order instead of all competing for
+ * the disk at once. Once the queue of a disk is full, queries on the disk are
+ * rejected without waiting, so they do not hold the threads of queries on
+ * other disks.
+ */
+public class ScanAdmission {
+    /** the key of files whose disk cannot be determined */
+    private static final Object UNKNOWN_DISK = new Object();
+
+    private final int scansPerDisk;
+    private final int waitersPerDisk;
+    private final Map<Object, Disk> disks = new HashMap<>();
+
+    /**
+     * Disk holds the permits of one disk.
+     */
+    private static class Disk {
+        /** permits to scan the disk */
+        final Semaphore scans;
+        /** permits to scan the disk or to wait for a scan permit */
+        final Semaphore slots;
+
+        Disk(int scans, int waiters) {
+            this.scans = new Semaphore(scans, true);
+            this.slots = new Semaphore(scans + waiters);
+        }
+    }
+
+    /**
+     * @param scansPerDisk
+     *            the maximum number of queries scanning one disk at a time
+     * @param waitersPerDisk
+     *            the maximum number of queries waiting for one disk
+     */
+    public ScanAdmission(int scansPerDisk, int waitersPerDisk) {
+        this.scansPerDisk = scansPerDisk;
+        this.waitersPerDisk = waitersPerDisk;
+    }
+
+    /**
+     * Wait until the query is admitted on the disks of all its files.
+     *
+     * @param fileNamePatterns
+     *            the file name patterns of the query
+     * @param timeout
+     *            the maximum time to wait, measured in milliseconds
+     * @return the admission to pass to release(), or <code>null</code> if the
+     *         query could not be admitted in time, or too many queries are
+     *         already waiting for one of its disks
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public List<Semaphore> acquire(List<String> fileNamePatterns, long timeout)
+            throws InterruptedException {
+        Set<Disk> needed = new LinkedHashSet<>();
+        for (String pattern : fileNamePatterns) {
+            needed.add(diskOf(pattern));
+        }
+        if (needed.isEmpty()) {
+            needed.add(permitsOf(UNKNOWN_DISK));
+        }
+
+        List<Semaphore> acquired = new ArrayList<>();
+        for (Disk disk : needed) {
+            if (!disk.slots.tryAcquire()) {
+                release(acquired);
+                return null;
+            }
+            acquired.add(disk.slots);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (Disk disk : needed) {
+            long remaining = deadline - System.nanoTime();
+            if (!disk.scans.tryAcquire(Math.max(0, remaining), TimeUnit.NANOSECONDS)) {
+                release(acquired);
+                return null;
+            }
+            acquired.add(disk.scans);
+        }
+        return acquired;
+    }
+
+    /**
+     * Let the next queries waiting for the disks in.
+     */
+    public void release(List<Semaphore> admission) {
+        for (Semaphore semaphore : admission) {
+            semaphore.release();
+        }
+    }
+
+    private Disk diskOf(String pattern) {
+        File dir = new File(pattern).getAbsoluteFile().getParentFile();
+        try {
+            FileStore store = Files.getFileStore(dir.toPath());
+            return permitsOf(store);
+        } catch (IOException e) {
+            // the query will report the missing directory itself
+            return permitsOf(UNKNOWN_DISK);
+        }
+    }
+
+    private synchronized Disk permitsOf(Object store) {
+        Disk disk = disks.get(store);
+        if (disk == null) {
+            disk = new Disk(scansPerDisk, waitersPerDisk);
+            disks.put(store, disk);
+        }
+        return disk;
+    }
+}
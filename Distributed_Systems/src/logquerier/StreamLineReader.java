@@ -0,0 +1,71 @@
+package logquerier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * StreamLineReader reads the lines of a stream, such as a decompressed file,
+ * into a buffer of fixed size, which is reused for every window. A line
+ * longer than the buffer grows the buffer until the whole line fits.
+ */
+public class StreamLineReader implements LineWindowReader {
+    private final InputStream in;
+    private byte[] buf;
+    /** the number of bytes read into buf */
+    private int filled = 0;
+    /** the number of bytes of buf returned in the last window */
+    private int consumed = 0;
+    private boolean eof = false;
+
+    /**
+     * @param in
+     *            the stream to read, which is closed with the reader
+     * @param windowBytes
+     *            the preferred number of bytes in a window
+     */
+    public StreamLineReader(InputStream in, int windowBytes) {
+        this.in = in;
+        this.buf = new byte[windowBytes];
+    }
+
+    @Override
+    public ByteBuffer nextWindow() throws IOException {
+        // keep the partial line after the last window
+        System.arraycopy(buf, consumed, buf, 0, filled - consumed);
+        filled -= consumed;
+        consumed = 0;
+        while (true) {
+            int n;
+            while (filled < buf.length && (n = in.read(buf, filled, buf.length - filled)) >= 0) {
+                filled += n;
+            }
+            eof |= filled < buf.length;
+            if (filled == 0) {
+                return null;
+            }
+            // SwarBytes reads longs, which need no byte swapping in native
+            // order
+            ByteBuffer window = ByteBuffer.wrap(buf, 0, filled).order(ByteOrder.nativeOrder());
+            if (eof) {
+                consumed = filled;
+                return window;
+            }
+            int lastNewline = MappedLineReader.lastIndexOf(window, (byte) '\n', 0, filled);
+            if (lastNewline >= 0) {
+                window.limit(lastNewline + 1);
+                consumed = lastNewline + 1;
+                return window;
+            }
+            // the buffer holds part of one single line, so try a larger one
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
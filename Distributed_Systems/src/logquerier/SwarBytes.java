@@ -0,0 +1,105 @@
+package logquerier;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * SwarBytes finds a byte in a ByteBuffer 8 bytes at a time, reading them as
+ * one long and comparing all of them with a few arithmetic operations, which
+ * is SIMD within a register. The comparison is exact, so no candidate needs to
+ * be checked again byte by byte.
+ */
+public class SwarBytes {
+    private static final long LOW_BITS = 0x7f7f7f7f7f7f7f7fL;
+    /** 1 in every byte, which multiplied by a byte repeats it in every byte */
+    static final long ONES = 0x0101010101010101L;
+
+    /**
+     * @return the high bit of every byte of word equal to the corresponding
+     *         byte of pattern, and no other bit
+     */
+    static long equalBytes(long word, long pattern) {
+        long x = word ^ pattern;
+        return ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+    }
+
+    /**
+     * @return the index in the long of the first byte in the buffer whose
+     *         high bit is set in mask
+     */
+    static int first(long mask, boolean bigEndian) {
+        return (bigEndian ? Long.numberOfLeadingZeros(mask)
+                : Long.numberOfTrailingZeros(mask)) >>> 3;
+    }
+
+    /**
+     * @return the index in the long of the last byte in the buffer whose high
+     *         bit is set in mask
+     */
+    private static int last(long mask, boolean bigEndian) {
+        return 7 - ((bigEndian ? Long.numberOfTrailingZeros(mask)
+                : Long.numberOfLeadingZeros(mask)) >>> 3);
+    }
+
+    /**
+     * @return the index of the first occurrence of b in buf[from, to), or -1
+     *         if b does not occur
+     */
+    public static int indexOf(ByteBuffer buf, byte b, int from, int to) {
+        long pattern = (b & 0xffL) * ONES;
+        boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+        for (; i <= to - 8; i += 8) {
+            long mask = equalBytes(buf.getLong(i), pattern);
+            if (mask != 0) {
+                return i + first(mask, bigEndian);
+            }
+        }
+        for (; i < to; i++) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the last occurrence of b in buf[from, to), or -1 if
+     *         b does not occur
+     */
+    public static int lastIndexOf(ByteBuffer buf, byte b, int from, int to) {
+        long pattern = (b & 0xffL) * ONES;
+        boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+        int i = to - 8;
+        for (; i >= from; i -= 8) {
+            long mask = equalBytes(buf.getLong(i), pattern);
+            if (mask != 0) {
+                return i + last(mask, bigEndian);
+            }
+        }
+        for (i += 7; i >= from; i--) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of occurrences of b in buf[from, to)
+     */
+    public static int count(ByteBuffer buf, byte b, int from, int to) {
+        long pattern = (b & 0xffL) * ONES;
+        int count = 0;
+        int i = from;
+        for (; i <= to - 8; i += 8) {
+            count += Long.bitCount(equalBytes(buf.getLong(i), pattern));
+        }
+        for (; i < to; i++) {
+            if (buf.get(i) == b) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,258 @@
+package logquerier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import system.Catalog;
+
+/**
+ * TimeIndex is a sparse in-memory index of one log file, which maps
+ * timestamps to byte offsets. About every Catalog.TIME_INDEX_SAMPLE_BYTES
+ * bytes, it records the offset, line number and timestamp of the first line
+ * with a timestamp, so a time range query only scans the lines between two
+ * samples to find its first and last line. Lines are assumed to be appended
+ * in time order, and a line without timestamp, e.g. a line of a stack trace,
+ * belongs to the time of the preceding line.
+ * <p>
+ * Only complete lines are indexed, and the index is extended by the appended
+ * lines whenever it is used. Like TrigramIndex, it is dropped when the file is
+ * rotated or truncated.
+ */
+public class TimeIndex {
+    /** the time of lines before the first line with a timestamp */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    /**
+     * TimestampParser finds the timestamp at the beginning of a line with
+     * Catalog.LOG_TIMESTAMP_REGEX, and parses it with
+     * Catalog.LOG_TIMESTAMP_FORMAT. It is not thread safe.
+     */
+    public static class TimestampParser {
+        private static final Pattern PATTERN = Pattern.compile(Catalog.LOG_TIMESTAMP_REGEX);
+        private static final int MAX_PREFIX = 128;
+
+        private final SimpleDateFormat format = new SimpleDateFormat(
+                Catalog.LOG_TIMESTAMP_FORMAT);
+        private final byte[] bytes = new byte[MAX_PREFIX];
+
+        /**
+         * @return the time of the line in milliseconds, or NO_TIME if the line
+         *         has no timestamp
+         */
+        public long parse(CharSequence line) {
+            Matcher matcher = PATTERN.matcher(line);
+            if (!matcher.find()) {
+                return NO_TIME;
+            }
+            Date date = format.parse(matcher.group(1), new ParsePosition(0));
+            return date == null ? NO_TIME : date.getTime();
+        }
+
+        /**
+         * @return the time of the line buf[start, end) in milliseconds, or
+         *         NO_TIME if the line has no timestamp. Only the beginning of
+         *         the line is decoded.
+         */
+        public long parse(ByteBuffer buf, int start, int end) {
+            int length = Math.min(end - start, MAX_PREFIX);
+            ByteBuffer dup = buf.duplicate();
+            dup.position(start);
+            dup.get(bytes, 0, length);
+            return parse(new String(bytes, 0, length, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /**
+     * the indexes of recently queried files, in LRU order, so the indexes of
+     * rotated logs do not pile up in a long running service
+     */
+    private static final Map<Path, TimeIndex> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<Path, TimeIndex>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, TimeIndex> eldest) {
+                    return size() > Catalog.TIME_INDEX_CACHE_ENTRIES;
+                }
+            });
+
+    private final String fileKey;
+    /** hash of the first min(indexedLength, HEAD_BYTES) bytes of the file */
+    private long headHash;
+    private long indexedLength = 0;
+    private long indexedLines = 0;
+    /** the offset from which the next sample is taken */
+    private long nextSample = 0;
+
+    private int sampleCount = 0;
+    private long[] sampleOffsets = new long[16];
+    /** the number of lines before each sample */
+    private long[] sampleLines = new long[16];
+    private long[] sampleTimes = new long[16];
+
+    private TimeIndex(String fileKey) {
+        this.fileKey = fileKey;
+    }
+
+    /**
+     * @return the index of the file, brought up to date with the lines
+     *         appended since it was last used
+     * @throws IOException
+     *             if any IO error occurs when reading the file
+     */
+    public static TimeIndex of(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        try {
+            TimeIndex index = CACHE.get(key);
+            if (index == null || !index.isValidFor(file)) {
+                index = new TimeIndex(TrigramIndex.fileKey(file));
+                CACHE.put(key, index);
+            }
+            index.extend(file);
+            return index;
+        } catch (IOException e) {
+            // e.g. the file has been rotated away
+            CACHE.remove(key);
+            throw e;
+        }
+    }
+
+    private synchronized boolean isValidFor(Path file) throws IOException {
+        if (Files.size(file) < indexedLength
+                || !fileKey.equals(TrigramIndex.fileKey(file))) {
+            return false;
+        }
+        return headHash == TrigramIndex.headHash(file, indexedLength);
+    }
+
+    private synchronized void extend(Path file) throws IOException {
+        long end = MappedLineReader.lastLineEnd(file, Files.size(file));
+        if (end <= indexedLength) {
+            return;
+        }
+        TimestampParser parser = new TimestampParser();
+        try (MappedLineReader reader = new MappedLineReader(file, indexedLength, end,
+                Catalog.GREP_MAP_WINDOW_BYTES)) {
+            ByteBuffer window;
+            while ((window = reader.nextWindow()) != null) {
+                long base = reader.position() - window.limit();
+                int pos = window.position();
+                int limit = window.limit();
+                while (pos < limit) {
+                    if (base + pos < nextSample) {
+                        // count the lines up to the next sample at once
+                        int stop = (int) Math.min(limit, nextSample - base);
+                        int lastNewline = MappedLineReader.lastIndexOf(window, (byte) '\n', pos,
+                                stop);
+                        if (lastNewline >= 0) {
+                            indexedLines += MappedLineReader.count(window, (byte) '\n', pos,
+                                    lastNewline + 1);
+                            pos = lastNewline + 1;
+                        }
+                        if (base + pos < nextSample) {
+                            // the sample point is within the current line
+                            int eol = MappedLineReader.indexOf(window, (byte) '\n', pos, limit);
+                            pos = eol < 0 ? limit : eol + 1;
+                            indexedLines++;
+                        }
+                        continue;
+                    }
+                    int eol = MappedLineReader.indexOf(window, (byte) '\n', pos, limit);
+                    int lineEnd = eol < 0 ? limit : eol;
+                    long time = parser.parse(window, pos, lineEnd);
+                    if (time != NO_TIME) {
+                        addSample(base + pos, indexedLines, time);
+                        nextSample = base + pos + Catalog.TIME_INDEX_SAMPLE_BYTES;
+                    }
+                    pos = lineEnd + 1;
+                    indexedLines++;
+                }
+            }
+        }
+        indexedLength = end;
+        headHash = TrigramIndex.headHash(file, indexedLength);
+    }
+
+    private void addSample(long offset, long lines, long time) {
+        if (sampleCount == sampleOffsets.length) {
+            sampleOffsets = Arrays.copyOf(sampleOffsets, sampleCount * 2);
+            sampleLines = Arrays.copyOf(sampleLines, sampleCount * 2);
+            sampleTimes = Arrays.copyOf(sampleTimes, sampleCount * 2);
+        }
+        sampleOffsets[sampleCount] = offset;
+        sampleLines[sampleCount] = lines;
+        sampleTimes[sampleCount] = time;
+        sampleCount++;
+    }
+
+    /**
+     * Find the first line at or after time. The lines from the last sample
+     * before time are read to find it.
+     *
+     * @return the offset and the line number of the first line whose time is
+     *         at or after time, or the size of the file and the number of
+     *         lines plus one if there is no such line
+     * @throws IOException
+     *             if any IO error occurs when reading the file
+     */
+    public synchronized long[] seek(Path file, long time) throws IOException {
+        // the last sample before time
+        int lo = 0;
+        int hi = sampleCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sampleTimes[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo == 0) {
+            // every sampled line is at or after time, except maybe the lines
+            // before the first sample, which have no timestamp
+            if (sampleCount > 0) {
+                return new long[] { sampleOffsets[0], sampleLines[0] + 1 };
+            }
+            if (indexedLength > 0) {
+                // no line has a timestamp
+                return new long[] { indexedLength, indexedLines + 1 };
+            }
+        }
+        long offset = lo == 0 ? 0 : sampleOffsets[lo - 1];
+        long lineNumber = lo == 0 ? 1 : sampleLines[lo - 1] + 1;
+
+        TimestampParser parser = new TimestampParser();
+        try (MappedLineReader reader = new MappedLineReader(file, offset, Long.MAX_VALUE,
+                Catalog.GREP_MAP_WINDOW_BYTES)) {
+            ByteBuffer window;
+            while ((window = reader.nextWindow()) != null) {
+                long base = reader.position() - window.limit();
+                int pos = window.position();
+                int limit = window.limit();
+                while (pos < limit) {
+                    int eol = MappedLineReader.indexOf(window, (byte) '\n', pos, limit);
+                    int lineEnd = eol < 0 ? limit : eol;
+                    long lineTime = parser.parse(window, pos, lineEnd);
+                    if (lineTime != NO_TIME && lineTime >= time) {
+                        return new long[] { base + pos, lineNumber };
+                    }
+                    pos = lineEnd + 1;
+                    lineNumber++;
+                }
+            }
+            return new long[] { Files.size(file), lineNumber };
+        }
+    }
+}
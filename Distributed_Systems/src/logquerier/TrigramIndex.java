@@ -0,0 +1,454 @@
+package logquerier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import system.Catalog;
+
+/**
+ * TrigramIndex is an index of one log file. The file is divided into line
+ * aligned blocks, and for every trigram (3 consecutive bytes, with US-ASCII
+ * letters folded to lower case) the index keeps the posting list of blocks in
+ * which the trigram occurs. A block which misses any trigram of a required
+ * literal cannot contain a matching line, so Grep can skip it.
+ * <p>
+ * Only complete lines are indexed, and bytes after the indexed length are
+ * always scanned. An index is only valid for the file it was built from: the
+ * file key (e.g. inode), a hash of the head of the file, and the indexed
+ * length are checked when the index is opened, so a rotated or truncated file
+ * is never searched through a stale index.
+ */
+public class TrigramIndex {
+    private static final int MAGIC = 0x54524958;
+    private static final byte VERSION = 1;
+    /** number of bytes at the head of a file hashed to detect rotation */
+    private static final int HEAD_BYTES = 4096;
+
+    /**
+     * CacheEntry keeps a loaded index in memory until its index file changes.
+     */
+    private static class CacheEntry {
+        final long indexFileModified;
+        final TrigramIndex index;
+
+        CacheEntry(long indexFileModified, TrigramIndex index) {
+            this.indexFileModified = indexFileModified;
+            this.index = index;
+        }
+    }
+
+    /**
+     * the indexes of recently queried files, in LRU order, so the indexes of
+     * rotated logs do not pile up in a long running service
+     */
+    private static final Map<Path, CacheEntry> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<Path, CacheEntry>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, CacheEntry> eldest) {
+                    return size() > Catalog.TRIGRAM_INDEX_CACHE_ENTRIES;
+                }
+            });
+
+    private final String fileKey;
+    /** hash of the first min(indexedLength(), HEAD_BYTES) bytes of the file */
+    private long headHash;
+    private final int blockBytes;
+    /** blockStarts[i] is the offset of block i; the last element is the indexed length */
+    private long[] blockStarts;
+    private int[] blockLines;
+    private int blockCount;
+    private final Map<Integer, int[]> postings;
+    private final Map<Integer, Integer> postingSizes;
+
+    private TrigramIndex(String fileKey, long headHash, int blockBytes) {
+        this.fileKey = fileKey;
+        this.headHash = headHash;
+        this.blockBytes = blockBytes;
+        this.blockStarts = new long[] { 0 };
+        this.blockLines = new int[0];
+        this.blockCount = 0;
+        this.postings = new HashMap<>();
+        this.postingSizes = new HashMap<>();
+    }
+
+    /**
+     * @return the number of indexed blocks
+     */
+    public int blockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return the offset of the first byte of block i
+     */
+    public long blockStart(int i) {
+        return blockStarts[i];
+    }
+
+    /**
+     * @return the offset after the last byte of block i
+     */
+    public long blockEnd(int i) {
+        return blockStarts[i + 1];
+    }
+
+    /**
+     * @return the number of lines in block i
+     */
+    public int blockLines(int i) {
+        return blockLines[i];
+    }
+
+    /**
+     * @return the number of bytes at the beginning of the file covered by the
+     *         index
+     */
+    public long indexedLength() {
+        return blockStarts[blockCount];
+    }
+
+    private static byte fold(byte b) {
+        if (b >= 'A' && b <= 'Z') {
+            return (byte) (b + ('a' - 'A'));
+        }
+        return b;
+    }
+
+    private static int trigram(byte a, byte b, byte c) {
+        return (fold(a) & 0xff) << 16 | (fold(b) & 0xff) << 8 | (fold(c) & 0xff);
+    }
+
+    /**
+     * Find the blocks which may contain a line containing one of the literals.
+     *
+     * @param literals
+     *            byte strings, one of which every matching line contains
+     * @return the candidate blocks, or <code>null</code> if the literals
+     *         cannot be looked up in the index because one of them is shorter
+     *         than a trigram
+     */
+    public BitSet candidateBlocks(List<byte[]> literals) {
+        BitSet candidates = new BitSet(blockCount);
+        for (byte[] literal : literals) {
+            if (literal.length < 3) {
+                return null;
+            }
+            BitSet blocks = new BitSet(blockCount);
+            blocks.set(0, blockCount);
+            for (int i = 0; i + 2 < literal.length && !blocks.isEmpty(); i++) {
+                int t = trigram(literal[i], literal[i + 1], literal[i + 2]);
+                BitSet present = new BitSet(blockCount);
+                int[] posting = postings.get(t);
+                if (posting != null) {
+                    int size = postingSizes.get(t);
+                    for (int j = 0; j < size; j++) {
+                        present.set(posting[j]);
+                    }
+                }
+                blocks.and(present);
+            }
+            candidates.or(blocks);
+        }
+        return candidates;
+    }
+
+    /**
+     * Index complete lines appended to the file after indexedLength().
+     */
+    private void extend(Path file) throws IOException {
+        BitSet seen = new BitSet(1 << 24);
+        try (MappedLineReader reader = new MappedLineReader(file, indexedLength(),
+                Long.MAX_VALUE, blockBytes)) {
+            ByteBuffer block;
+            while ((block = reader.nextWindow()) != null) {
+                int from = block.position();
+                int to = block.limit();
+                if (to == from || block.get(to - 1) != '\n') {
+                    // the last line may still be being written
+                    break;
+                }
+                addBlock(block, from, to, seen);
+            }
+        }
+    }
+
+    private void addBlock(ByteBuffer block, int from, int to, BitSet seen) {
+        int id = blockCount;
+        int lines = 0;
+        seen.clear();
+        for (int i = from; i < to; i++) {
+            byte c = block.get(i);
+            if (c == '\n') {
+                lines++;
+            } else if (i + 2 < to) {
+                byte d = block.get(i + 1);
+                byte e = block.get(i + 2);
+                // literals never contain newlines
+                if (d != '\n' && e != '\n') {
+                    seen.set(trigram(c, d, e));
+                }
+            }
+        }
+        for (int t = seen.nextSetBit(0); t >= 0; t = seen.nextSetBit(t + 1)) {
+            append(t, id);
+        }
+
+        if (blockCount + 1 >= blockStarts.length) {
+            blockStarts = Arrays.copyOf(blockStarts, blockStarts.length * 2);
+            blockLines = Arrays.copyOf(blockLines, blockStarts.length);
+        }
+        blockLines[blockCount] = lines;
+        blockStarts[blockCount + 1] = blockStarts[blockCount] + (to - from);
+        blockCount++;
+    }
+
+    private void append(int trigram, int block) {
+        int[] posting = postings.get(trigram);
+        int size = posting == null ? 0 : postingSizes.get(trigram);
+        if (posting == null) {
+            posting = new int[4];
+            postings.put(trigram, posting);
+        } else if (size == posting.length) {
+            posting = Arrays.copyOf(posting, size * 2);
+            postings.put(trigram, posting);
+        }
+        posting[size] = block;
+        postingSizes.put(trigram, size + 1);
+    }
+
+    /**
+     * @return the identity of a file, which changes when the file is rotated
+     */
+    static String fileKey(Path file) throws IOException {
+        Object key = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        return key == null ? "" : key.toString();
+    }
+
+    /**
+     * @return a hash of the first length bytes of a file, at most HEAD_BYTES,
+     *         which changes when the file is truncated and rewritten
+     */
+    static long headHash(Path file, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return headHash(channel, length);
+        }
+    }
+
+    /**
+     * @return the hash of headHash(Path, long) of the file a channel is open
+     *         on, which may have been renamed or removed since
+     */
+    static long headHash(FileChannel channel, long length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(length, HEAD_BYTES));
+        while (buf.hasRemaining() && channel.read(buf, buf.position()) > 0) {
+        }
+        long hash = 1125899906842597L;
+        for (int i = 0; i < buf.position(); i++) {
+            hash = 31 * hash + buf.get(i);
+        }
+        return hash;
+    }
+
+    /**
+     * @return <code>true</code> if the index still describes the beginning of
+     *         the file
+     */
+    private boolean isValidFor(Path file) throws IOException {
+        if (Files.size(file) < indexedLength() || !fileKey.equals(fileKey(file))) {
+            return false;
+        }
+        return headHash == headHash(file, indexedLength());
+    }
+
+    /**
+     * Bring the index of a file up to date. The existing index is extended if
+     * the file has only grown, or rebuilt if the file has been rotated or
+     * truncated.
+     *
+     * @param previous
+     *            the existing index of the file, or <code>null</code>
+     * @return an index covering all complete lines of the file
+     * @throws IOException
+     *             if any IO error occurs when reading the file
+     */
+    public static TrigramIndex update(Path file, TrigramIndex previous) throws IOException {
+        TrigramIndex index = previous;
+        if (index == null || !index.isValidFor(file)) {
+            index = new TrigramIndex(fileKey(file), headHash(file, 0),
+                    Catalog.TRIGRAM_INDEX_BLOCK_BYTES);
+        }
+        if (index.indexedLength() < HEAD_BYTES) {
+            index.extend(file);
+            index.headHash = headHash(file, index.indexedLength());
+        } else {
+            index.extend(file);
+        }
+        return index;
+    }
+
+    /**
+     * @return the file in which the index of a log file is persisted
+     */
+    public static Path indexFileOf(Path file) {
+        String name = file.toAbsolutePath().normalize().toString();
+        String escaped = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        return Paths.get(Catalog.TRIGRAM_INDEX_DIR,
+                String.format("%s.%08x.tri", escaped, name.hashCode()));
+    }
+
+    /**
+     * Open the persisted index of a log file.
+     *
+     * @return the index, or <code>null</code> if the file has no index or the
+     *         index is not valid for the file any more
+     */
+    public static TrigramIndex open(Path file) {
+        Path indexFile = indexFileOf(file);
+        try {
+            if (!Files.exists(indexFile)) {
+                CACHE.remove(indexFile);
+                return null;
+            }
+            long modified = Files.getLastModifiedTime(indexFile).toMillis();
+            CacheEntry entry = CACHE.get(indexFile);
+            if (entry == null || entry.indexFileModified != modified) {
+                entry = new CacheEntry(modified, load(indexFile));
+                CACHE.put(indexFile, entry);
+            }
+            return entry.index.isValidFor(file) ? entry.index : null;
+        } catch (IOException e) {
+            // e.g. the file has been rotated away
+            CACHE.remove(indexFile);
+            return null;
+        }
+    }
+
+    /**
+     * Load the persisted index of a log file for update. Unlike open(), the
+     * returned index is a private copy which is not shared with readers, since
+     * update() modifies it in place.
+     *
+     * @return the index, or <code>null</code> if it cannot be loaded
+     */
+    public static TrigramIndex openForUpdate(Path file) {
+        try {
+            return load(indexFileOf(file));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Persist the index of a log file. The index is written to a temporary
+     * file first, so readers never see a partially written index.
+     */
+    public void save(Path file) throws IOException {
+        Path indexFile = indexFileOf(file);
+        Files.createDirectories(indexFile.getParent());
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(fileKey);
+            out.writeLong(headHash);
+            out.writeInt(blockBytes);
+            out.writeInt(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                writeVarint(out, blockEnd(i) - blockStart(i));
+                writeVarint(out, blockLines[i]);
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<Integer, int[]> e : postings.entrySet()) {
+                int size = postingSizes.get(e.getKey());
+                out.writeInt(e.getKey());
+                writeVarint(out, size);
+                int last = 0;
+                for (int j = 0; j < size; j++) {
+                    // posting lists are sorted, so store deltas
+                    writeVarint(out, e.getValue()[j] - last);
+                    last = e.getValue()[j];
+                }
+            }
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static TrigramIndex load(Path indexFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Unknown index format: " + indexFile);
+            }
+            TrigramIndex index = new TrigramIndex(in.readUTF(), in.readLong(), in.readInt());
+            int blockCount = in.readInt();
+            index.blockStarts = new long[blockCount + 1];
+            index.blockLines = new int[blockCount + 1];
+            for (int i = 0; i < blockCount; i++) {
+                index.blockStarts[i + 1] = index.blockStarts[i] + readVarint(in);
+                index.blockLines[i] = (int) readVarint(in);
+            }
+            index.blockCount = blockCount;
+            int trigrams = in.readInt();
+            for (int i = 0; i < trigrams; i++) {
+                int t = in.readInt();
+                int size = (int) readVarint(in);
+                int[] posting = new int[size];
+                int last = 0;
+                for (int j = 0; j < size; j++) {
+                    last += (int) readVarint(in);
+                    posting[j] = last;
+                }
+                index.postings.put(t, posting);
+                index.postingSizes.put(t, size);
+            }
+            return index;
+        }
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Truncated index");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,83 @@
+package logquerier;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import system.Catalog;
+import system.CommonUtils;
+import system.DaemonService;
+
+/**
+ * TrigramIndexer is a daemon service which periodically brings the trigram
+ * indexes of the log files matching Catalog.TRIGRAM_INDEXED_FILES up to date,
+ * and persists them in Catalog.TRIGRAM_INDEX_DIR, where Grep finds them.
+ */
+public class TrigramIndexer implements DaemonService {
+
+    private class IndexUpdater implements Runnable {
+        @Override
+        public void run() {
+            for (String pattern : Catalog.TRIGRAM_INDEXED_FILES) {
+                Path glob = Paths.get(pattern);
+                Path dir = glob.getParent() == null ? Paths.get("") : glob.getParent();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                        dir.toAbsolutePath(), glob.getFileName().toString())) {
+                    for (Path file : files) {
+                        if (Files.isRegularFile(file)) {
+                            update(file);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
+
+        private void update(Path file) {
+            try {
+                TrigramIndex previous = indexes.get(file);
+                if (previous == null) {
+                    previous = TrigramIndex.openForUpdate(file);
+                }
+                long before = previous == null ? -1 : previous.indexedLength();
+                TrigramIndex index = TrigramIndex.update(file, previous);
+                if (index != previous || index.indexedLength() != before) {
+                    index.save(file);
+                    LOGGER.info(String.format("Indexed %s: %s bytes in %s blocks.", file,
+                            index.indexedLength(), index.blockCount()));
+                }
+                indexes.put(file, index);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    private final static Logger LOGGER = CommonUtils.initializeLogger(
+            TrigramIndexer.class.getName(), Catalog.LOG_DIR + Catalog.TRIGRAM_INDEXER_LOG, false);
+
+    /** the working copies of indexes, which are only touched by IndexUpdater */
+    private final Map<Path, TrigramIndex> indexes = new HashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void startServe() throws IOException {
+        scheduler = Executors.newScheduledThreadPool(1);
+        scheduler.scheduleWithFixedDelay(new IndexUpdater(), 0, Catalog.TRIGRAM_INDEX_PERIOD,
+                Catalog.TIME_UNIT);
+    }
+
+    @Override
+    public void stopServe() {
+        scheduler.shutdown();
+    }
+}
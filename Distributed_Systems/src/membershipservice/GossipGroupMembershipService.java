@@ -1,11 +1,11 @@
 package membershipservice;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Observable;
@@ -61,9 +61,7 @@ public class GossipGroupMembershipService extends Observable implements DaemonSe
                     nfm = membershipList.getNonFailMembers();
                 }
                 if (id != null) {
-                    synchronized (sendSocket) {
-                        CommonUtils.sendObjectOverUDP(nfm, id.IPAddress, id.port, sendSocket);
-                    }
+                    send(nfm, id.IPAddress, id.port);
                 }
             } catch (IOException e) {
                 // Exception means voluntarily leaving,
@@ -83,9 +81,7 @@ public class GossipGroupMembershipService extends Observable implements DaemonSe
             try {
                 // It is ok to not update membership list here
                 MembershipList nfm = membershipList.getNonFailMembers();
-                synchronized (sendSocket) {
-                    CommonUtils.sendObjectOverUDP(nfm, introducerIP, introducerPort, sendSocket);
-                }
+                send(nfm, introducerIP, introducerPort);
             } catch (IOException e) {
                 // Exception means voluntarily leaving,
                 // so it's safe to ignore it.
@@ -101,14 +97,22 @@ public class GossipGroupMembershipService extends Observable implements DaemonSe
     private class GossipReceiver implements Runnable {
         @Override
         public void run() {
-            DatagramPacket packet = new DatagramPacket(new byte[Catalog.MAX_UDP_PACKET_BYTES],
-                    Catalog.MAX_UDP_PACKET_BYTES);
+            ByteBuffer buf = ByteBuffer.allocate(Catalog.MAX_UDP_PACKET_BYTES);
+            DatagramPacket packet = new DatagramPacket(buf.array(), buf.capacity());
             try {
                 while (true) {
+                    packet.setLength(buf.capacity());
                     recSocket.receive(packet);
-                    ByteArrayInputStream bais = new ByteArrayInputStream(packet.getData());
-                    MembershipList receivedMsl = (MembershipList) new ObjectInputStream(bais)
-                            .readObject();
+                    buf.clear();
+                    buf.limit(packet.getLength());
+                    MembershipList receivedMsl;
+                    try {
+                        receivedMsl = MembershipListCodec.decode(buf);
+                    } catch (StreamCorruptedException e) {
+                        LOGGER.warning(String.format("Dropped gossip from %s: %s",
+                                packet.getAddress(), e.getMessage()));
+                        continue;
+                    }
                     synchronized (this) {
                         List<MembershipList.MemberStateChange> mscList = membershipList
                                 .merge(receivedMsl);
@@ -119,13 +123,29 @@ public class GossipGroupMembershipService extends Observable implements DaemonSe
             } catch (IOException e) {
                 // Exception means voluntarily leaving,
                 // so it's safe to ignore it.
-            } catch (ClassNotFoundException e) {
-                LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                System.exit(-1);
             }
         }
     }
 
+    /**
+     * Encode the membership list into the send buffer, and send it to the
+     * specified IP and port. The buffer and packet are reused for every
+     * message, under the lock of sendSocket.
+     *
+     * @throws IOException
+     *             if the list does not fit in a packet, or any IO error occurs
+     */
+    private void send(MembershipList ml, InetAddress ip, int port) throws IOException {
+        synchronized (sendSocket) {
+            sendBuffer.clear();
+            MembershipListCodec.encode(ml, sendBuffer);
+            sendPacket.setData(sendBuffer.array(), 0, sendBuffer.position());
+            sendPacket.setAddress(ip);
+            sendPacket.setPort(port);
+            sendSocket.send(sendPacket);
+        }
+    }
+
     private void log(List<MembershipList.MemberStateChange> mscList) {
         if (!mscList.isEmpty()) {
             StringBuilder sb = new StringBuilder();
@@ -144,6 +164,9 @@ public class GossipGroupMembershipService extends Observable implements DaemonSe
     private final int selfPort;
     private MembershipList membershipList;
     private DatagramSocket sendSocket;
+    /** the buffer and packet of messages sent, guarded by sendSocket */
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(Catalog.MAX_UDP_PACKET_BYTES);
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
     private DatagramSocket recSocket;
     private ScheduledExecutorService scheduler;
     // java Logger is thread safe
@@ -188,9 +211,7 @@ public class GossipGroupMembershipService extends Observable implements DaemonSe
             for (int i = 0; i < Catalog.NUM_LEAVE_GOSSIP; i++) {
                 Identity id = membershipList.getRandomAliveMember();
                 if (id != null) {
-                    synchronized (sendSocket) {
-                        CommonUtils.sendObjectOverUDP(vlm, id.IPAddress, id.port, sendSocket);
-                    }
+                    send(vlm, id.IPAddress, id.port);
                 }
             }
         } catch (IOException e) {
@@ -110,6 +110,15 @@ public class MembershipList implements Serializable {
         this.selfId = null;
     }
 
+    /**
+     * Construct a membership list received from another member, whose members
+     * are sorted by identity.
+     */
+    MembershipList(List<Member> members) {
+        membershipList = members;
+        this.selfId = null;
+    }
+
     /**
      * @return self's id. This method does not need to be synchronized, because
      *         selfId is immutable.
@@ -297,6 +306,14 @@ public class MembershipList implements Serializable {
         return vlm;
     }
 
+    /**
+     * @return the members, sorted by identity. The list is never modified
+     *         once built, since every update replaces it with a new one.
+     */
+    synchronized List<Member> getMembers() {
+        return membershipList;
+    }
+
     /**
      * @return the number of members in the membership list.
      */
@@ -0,0 +1,187 @@
+package membershipservice;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import membershipservice.MembershipList.Member;
+import membershipservice.MembershipList.State;
+import system.Identity;
+
+/**
+ * MembershipListCodec encodes membership lists into the compact binary
+ * messages gossiped between members, and decodes them, without the class
+ * descriptors and per object headers of Java serialization. Both directions
+ * work on a ByteBuffer owned by the caller, so the buffers of a socket can be
+ * reused for every message.
+ * <p>
+ * A message is made of VERSION and the number of members, followed by every
+ * member in the order of the list:
+ * <ul>
+ * <li>a byte holding the state and whether the address is IPv6</li>
+ * <li>the 4 or 16 bytes of the address</li>
+ * <li>the host name of the address, as the number of leading characters it
+ * shares with the host name of the previous member, and the UTF-8 bytes of
+ * the rest</li>
+ * <li>the port</li>
+ * <li>the timestamp, as the difference from the timestamp of the previous
+ * member</li>
+ * <li>the heartbeat counter</li>
+ * </ul>
+ * Numbers are varints, 7 bits per byte with the high bit set on all but the
+ * last byte, and the timestamp difference is zigzag encoded as it may be
+ * negative. The host name is kept, even though it is not needed to reach the
+ * member, because Identity orders and hashes by its string form, which
+ * includes it.
+ */
+final class MembershipListCodec {
+    /** the version of the message format, the first byte of every message */
+    static final byte VERSION = 1;
+    private static final int IPV6_FLAG = 0x80;
+    private static final State[] STATES = State.values();
+
+    private MembershipListCodec() {
+    }
+
+    /**
+     * Encode a membership list at the position of buf, which is advanced past
+     * the message.
+     *
+     * @throws IOException
+     *             if the message does not fit in the remaining bytes of buf
+     */
+    static void encode(MembershipList list, ByteBuffer buf) throws IOException {
+        List<Member> members = list.getMembers();
+        try {
+            buf.put(VERSION);
+            putVarint(buf, members.size());
+            String previousHost = "";
+            long previousTimestamp = 0;
+            for (Member m : members) {
+                byte[] address = m.id.IPAddress.getAddress();
+                buf.put((byte) (m.state.ordinal() | (address.length == 16 ? IPV6_FLAG : 0)));
+                buf.put(address);
+
+                String host = hostNameOf(m.id.IPAddress);
+                int shared = 0;
+                int maxShared = Math.min(host.length(), previousHost.length());
+                while (shared < maxShared && host.charAt(shared) == previousHost.charAt(shared)) {
+                    shared++;
+                }
+                byte[] rest = host.substring(shared).getBytes(StandardCharsets.UTF_8);
+                putVarint(buf, shared);
+                putVarint(buf, rest.length);
+                buf.put(rest);
+                previousHost = host;
+
+                putVarint(buf, m.id.port);
+                long delta = m.id.timestamp - previousTimestamp;
+                putVarint(buf, (delta << 1) ^ (delta >> 63));
+                previousTimestamp = m.id.timestamp;
+                putVarint(buf, m.heartbeatCounter);
+            }
+        } catch (BufferOverflowException e) {
+            throw new IOException(String.format(
+                    "Membership list of %d members exceeds %d bytes", members.size(),
+                    buf.capacity()));
+        }
+    }
+
+    /**
+     * Decode a membership list from the remaining bytes of buf.
+     *
+     * @throws StreamCorruptedException
+     *             if the bytes are not a message of this version
+     */
+    static MembershipList decode(ByteBuffer buf) throws StreamCorruptedException {
+        try {
+            byte version = buf.get();
+            if (version != VERSION) {
+                throw new StreamCorruptedException("Unknown membership list version " + version);
+            }
+            int size = (int) getVarint(buf);
+            // every member takes at least 9 bytes
+            if (size < 0 || size > buf.remaining() / 9) {
+                throw new StreamCorruptedException("Invalid number of members " + size);
+            }
+            List<Member> members = new ArrayList<>(size);
+            String previousHost = "";
+            long previousTimestamp = 0;
+            for (int i = 0; i < size; i++) {
+                int flags = buf.get() & 0xff;
+                int ordinal = flags & ~IPV6_FLAG;
+                if (ordinal >= STATES.length) {
+                    throw new StreamCorruptedException("Invalid member state " + ordinal);
+                }
+                byte[] address = new byte[(flags & IPV6_FLAG) != 0 ? 16 : 4];
+                buf.get(address);
+
+                int shared = (int) getVarint(buf);
+                int restLength = (int) getVarint(buf);
+                if (shared < 0 || shared > previousHost.length() || restLength < 0
+                        || restLength > buf.remaining()) {
+                    throw new StreamCorruptedException("Invalid host name");
+                }
+                byte[] rest = new byte[restLength];
+                buf.get(rest);
+                String host = previousHost.substring(0, shared)
+                        + new String(rest, StandardCharsets.UTF_8);
+                previousHost = host;
+
+                int port = (int) getVarint(buf);
+                long zigzag = getVarint(buf);
+                long timestamp = previousTimestamp + ((zigzag >>> 1) ^ -(zigzag & 1));
+                previousTimestamp = timestamp;
+                int heartbeatCounter = (int) getVarint(buf);
+
+                Identity id = new Identity(
+                        InetAddress.getByAddress(host.isEmpty() ? null : host, address), port,
+                        timestamp);
+                // the receiver sets the time of the update when merging
+                members.add(new Member(id, heartbeatCounter, 0, STATES[ordinal]));
+            }
+            return new MembershipList(members);
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated membership list");
+        } catch (UnknownHostException e) {
+            // only thrown for addresses of illegal length
+            throw new StreamCorruptedException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the host name of the address, or an empty string if it has
+     *         none, without looking it up
+     */
+    private static String hostNameOf(InetAddress address) {
+        String s = address.toString();
+        return s.substring(0, s.indexOf('/'));
+    }
+
+    private static void putVarint(ByteBuffer buf, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buf.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer buf) throws StreamCorruptedException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Varint too long");
+    }
+}
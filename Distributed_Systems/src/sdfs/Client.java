@@ -9,6 +9,7 @@ import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -71,4 +72,14 @@ public abstract class Client {
         Namenode namenode = getNamenode();
         return namenode.getFileLocationIPs(file);
     }
+
+    /**
+     * @return the locations of every SDFS file whose name matches the glob,
+     *         the least loaded data node first
+     */
+    public Map<String, List<InetAddress>> getFileLocationsMatching(String glob)
+            throws RemoteException, NotBoundException {
+        Namenode namenode = getNamenode();
+        return namenode.getFileLocationIPsMatching(glob);
+    }
 }
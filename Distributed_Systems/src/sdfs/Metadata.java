@@ -1,6 +1,9 @@
 package sdfs;
 
 import java.net.InetAddress;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -84,6 +87,29 @@ public class Metadata {
         return new ArrayList<InetAddress>(locations);
     }
 
+    /**
+     * @return the locations of every file whose name matches the glob. The
+     *         locations of a file are sorted by the number of files on the
+     *         node, so the least loaded node comes first.
+     */
+    public synchronized Map<String, List<InetAddress>> getFileLocationIPsMatching(String glob) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        Map<String, List<InetAddress>> locations = new HashMap<>();
+        for (Map.Entry<String, Set<InetAddress>> entry : fileLocations.entrySet()) {
+            if (!entry.getValue().isEmpty() && matcher.matches(Paths.get(entry.getKey()))) {
+                List<InetAddress> IPs = new ArrayList<>(entry.getValue());
+                IPs.sort(new Comparator<InetAddress>() {
+                    @Override
+                    public int compare(InetAddress o1, InetAddress o2) {
+                        return filesOnNode.get(o1).size() - filesOnNode.get(o2).size();
+                    }
+                });
+                locations.put(entry.getKey(), IPs);
+            }
+        }
+        return locations;
+    }
+
     public synchronized void deleteNode(InetAddress IP) {
         IP2Datanode.remove(IP);
         filesOnNode.remove(IP);
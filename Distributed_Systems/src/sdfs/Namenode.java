@@ -5,12 +5,20 @@ import java.net.InetAddress;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.List;
+import java.util.Map;
 
 public interface Namenode extends Remote {
     List<Datanode> getFileLocations(String fileName) throws RemoteException;
 
     List<InetAddress> getFileLocationIPs(String fileName) throws RemoteException;
 
+    /**
+     * @return the locations of every file whose name matches the glob, the
+     *         least loaded data node first
+     */
+    Map<String, List<InetAddress>> getFileLocationIPsMatching(String glob)
+            throws RemoteException;
+
     List<Datanode> putRequest() throws RemoteException;
 
     void deleteFile(String fileName) throws RemoteException, IOException;
@@ -10,6 +10,7 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.concurrent.Executors;
@@ -49,6 +50,12 @@ public class NamenodeService implements DaemonService, Namenode, Observer {
         return metadata.getFileLocationIPs(fileName);
     }
 
+    @Override
+    public Map<String, List<InetAddress>> getFileLocationIPsMatching(String glob)
+            throws RemoteException {
+        return metadata.getFileLocationIPsMatching(glob);
+    }
+
     @Override
     public List<Datanode> putRequest() throws RemoteException {
         return metadata.getKidlestNodes(Catalog.REPLICATION_FACTOR);
@@ -32,8 +32,279 @@ public class Catalog {
 
     /** specify the port number on which log query service is running */
     public static final int LOG_QUERY_SERVICE_PORT = 60001;
+    /**
+     * if <code>true</code>, log query services form a gossip group, from which
+     * remote grep client finds the live services
+     */
+    public static final boolean LOG_QUERY_MEMBERSHIP_ENABLED = true;
+    /** specify the port number of the membership service of log queriers */
+    public static final int LOG_QUERY_MEMBERSHIP_PORT = 60000;
+    /** specify the address of the introducer of log queriers */
+    public static final String LOG_QUERY_INTRODUCER_ADDRESS = "fa15-cs425-g13-04.cs.illinois.edu";
+    /** specify the number of connections log query service serves at a time */
+    public static final int LOG_QUERY_WORKER_THREADS = 64;
+    /**
+     * specify the number of connections waiting for a worker thread, beyond
+     * which new connections are closed right away
+     */
+    public static final int LOG_QUERY_BACKLOG = 256;
+    /**
+     * the maximum time a query waits to be admitted, measured in milliseconds,
+     * after which it is rejected
+     */
+    public static final long LOG_QUERY_ADMISSION_TIMEOUT = 10000;
+    /**
+     * specify the number of queries waiting to be admitted on one disk,
+     * beyond which queries on the disk are rejected right away, so that a
+     * burst of queries on one disk cannot hold all worker threads
+     */
+    public static final int LOG_QUERY_ADMISSION_WAITERS = 16;
+    /**
+     * specify the number of --follow subscriptions log query service keeps
+     * open at a time, beyond which they are rejected, so that subscriptions
+     * cannot hold all worker threads
+     */
+    public static final int LOG_QUERY_MAX_FOLLOWS = 16;
+    /**
+     * the maximum time to wait for the query of a connection refused for lack
+     * of worker threads, to answer in its protocol, measured in milliseconds
+     */
+    public static final int LOG_QUERY_REJECT_TIMEOUT = 1000;
+    /**
+     * specify how often log query service checks the connections of running
+     * queries for the CANCEL line, measured in milliseconds
+     */
+    public static final long LOG_QUERY_CANCEL_POLL_PERIOD = 100;
+    /**
+     * if <code>true</code>, Grep scans files through memory mapping, otherwise
+     * through the Scanner based reader
+     */
+    public static final boolean GREP_USE_MEMORY_MAPPING = true;
+    /**
+     * if <code>true</code>, Grep finds newlines 8 bytes at a time, otherwise
+     * byte by byte
+     */
+    public static final boolean GREP_USE_SWAR = true;
+    /** specify the number of bytes Grep maps from a file at a time */
+    public static final int GREP_MAP_WINDOW_BYTES = 64 * 1024 * 1024;
+    /**
+     * specify the number of decompressed bytes Grep scans at a time from a
+     * gzip file
+     */
+    public static final int GREP_STREAM_WINDOW_BYTES = 1024 * 1024;
+    /**
+     * specify the number of bytes of lines in each member of a block gzip
+     * file, whose members are decompressed in parallel
+     */
+    public static final long GZIP_BLOCK_BYTES = 4 * 1024 * 1024;
+    /**
+     * specify the number of threads Grep uses to scan chunks of one large file
+     * in parallel. 1 disables parallel scanning.
+     */
+    public static final int GREP_CHUNK_THREADS = Runtime.getRuntime().availableProcessors();
+    /** files larger than this are split into chunks of about this size */
+    public static final long GREP_CHUNK_BYTES = 16 * 1024 * 1024;
+    /**
+     * specify the number of selected lines each chunk of a large file buffers
+     * until it is printed. Once a chunk selects more, the rest of the file is
+     * scanned sequentially.
+     */
+    public static final int GREP_CHUNK_BUFFER_LINES = 10000;
+    /**
+     * specify the number of DFA states each Grep thread caches for a regular
+     * pattern, before it starts over
+     */
+    public static final int GREP_DFA_MAX_STATES = 2048;
+    /** specify whether logs are stored on SSD rather than spinning disks */
+    public static final boolean LOG_DISK_IS_SSD = true;
+    /** specify the number of files Grep scans concurrently on SSD hosts */
+    public static final int GREP_FILE_THREADS_SSD = 8;
+    /**
+     * specify the number of files Grep scans concurrently on spinning disk
+     * hosts, where concurrent reads cost seeks
+     */
+    public static final int GREP_FILE_THREADS_HDD = 2;
+    /**
+     * specify the memory budget of log query service for caching results of
+     * queries, so repeated queries only scan appended bytes. 0 disables the
+     * cache.
+     */
+    public static final long GREP_RESULT_CACHE_BYTES = 64 * 1024 * 1024;
+    /**
+     * the maximum time between checks of followed files for appended lines,
+     * measured in milliseconds
+     */
+    public static final long GREP_FOLLOW_POLL_PERIOD = 1000;
+    /**
+     * specify the number of threads Grep uses to list the directories of a
+     * tree in parallel, for -r and patterns with `**'
+     */
+    public static final int GREP_WALK_THREADS = 8;
+    /**
+     * the time log query service keeps the files found for a pattern spanning
+     * several directories, measured in milliseconds, so concurrent queries over
+     * the same tree share one traversal
+     */
+    public static final long GREP_LISTING_CACHE_TTL = 2000;
+    /**
+     * specify the regular expression which finds the timestamp of a log line
+     * in its group 1, by default the timestamp written by CustomizedFormatter
+     */
+    public static final String LOG_TIMESTAMP_REGEX =
+            "^\\[(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}:\\d{3})\\]";
+    /** specify the SimpleDateFormat of timestamps found by LOG_TIMESTAMP_REGEX */
+    public static final String LOG_TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss:SSS";
+    /** specify the number of bytes between samples of a time index */
+    public static final int TIME_INDEX_SAMPLE_BYTES = 64 * 1024;
+    /**
+     * specify the number of time indexes kept in memory, beyond which the
+     * least recently used one is dropped
+     */
+    public static final int TIME_INDEX_CACHE_ENTRIES = 1024;
+    /** specify the number of queries scanning one SSD at a time */
+    public static final int GREP_MAX_SCANS_SSD = 4;
+    /** specify the number of queries scanning one spinning disk at a time */
+    public static final int GREP_MAX_SCANS_HDD = 1;
+    /**
+     * specify the number of selected lines buffered per file before the file
+     * waits for preceding files to be printed
+     */
+    public static final int GREP_FILE_BUFFER_LINES = 10000;
+    /** if <code>true</code>, log query service keeps trigram indexes of logs */
+    public static final boolean TRIGRAM_INDEX_ENABLED = false;
+    /** specify the log files to index, in the same glob form as grep files */
+    public static final String[] TRIGRAM_INDEXED_FILES = new String[] { "machine.*.log" };
+    /** specify the directory where trigram indexes are stored */
+    public static final String TRIGRAM_INDEX_DIR = "index/";
+    /** specify the approximate size of an indexed block */
+    public static final int TRIGRAM_INDEX_BLOCK_BYTES = 1024 * 1024;
+    /**
+     * specify the number of trigram indexes kept in memory, beyond which the
+     * least recently used one is dropped
+     */
+    public static final int TRIGRAM_INDEX_CACHE_ENTRIES = 64;
+    /** gap between successive index updates, measured in milliseconds */
+    public static final long TRIGRAM_INDEX_PERIOD = 60000;
+    /** specify the log for trigram indexer */
+    public static final String TRIGRAM_INDEXER_LOG = "index.log";
+    /**
+     * specify the regular expression which splits a log line written by
+     * CustomizedFormatter into its timestamp, level, logger and message, in
+     * groups 1 to 4
+     */
+    public static final String LOG_LINE_REGEX =
+            "^\\[(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}:\\d{3})\\] (\\S+) ([^\\s:]+): (.*)$";
+    /**
+     * if <code>true</code>, log query service converts rotated logs into
+     * columnar segment files
+     */
+    public static final boolean COLUMNAR_ENABLED = false;
+    /** specify the log files to convert, in the same glob form as grep files */
+    public static final String[] COLUMNAR_FILES = new String[] { "machine.*.log*" };
+    /** specify the directory where columnar segment files are stored */
+    public static final String COLUMNAR_DIR = "columns/";
+    /**
+     * a log is considered rotated, and is converted, once it has not been
+     * modified for this long, measured in milliseconds
+     */
+    public static final long COLUMNAR_ROTATED_AGE = 10 * 60 * 1000;
+    /** specify the number of lines in a segment */
+    public static final int COLUMNAR_SEGMENT_ROWS = 64 * 1024;
+    /** gap between successive conversions, measured in milliseconds */
+    public static final long COLUMNAR_PERIOD = 60000;
+    /** specify the log for columnar converter */
+    public static final String COLUMNAR_CONVERTER_LOG = "columns.log";
+
+    /**
+     * for top-K group-by queries, each log query service sends the counts of
+     * this many times K groups
+     */
+    public static final int AGGREGATE_TOP_K_FACTOR = 10;
+    /**
+     * specify the size of the blocks --approx samples from each file. Smaller
+     * blocks give narrower confidence intervals for the same bytes sampled,
+     * at the cost of more seeks.
+     */
+    public static final long GREP_APPROX_BLOCK_BYTES = 256 * 1024;
+    /**
+     * the minimum number of blocks --approx samples from each file, even past
+     * its time budget, so every file has an estimate with a variance
+     */
+    public static final int GREP_APPROX_MIN_BLOCKS = 2;
+    /**
+     * the half width of the confidence interval of --approx, in standard
+     * deviations. 1.96 gives 95% confidence.
+     */
+    public static final double GREP_APPROX_Z = 1.96;
+    /**
+     * for --distinct queries, distinct values are counted exactly up to this
+     * many values, and estimated by HyperLogLog beyond
+     */
+    public static final int AGGREGATE_DISTINCT_EXACT_VALUES = 4096;
+    /**
+     * specify the base 2 logarithm of the number of HyperLogLog registers of
+     * --distinct. 14 gives 16 KB sketches with a standard error of 0.8%.
+     */
+    public static final int AGGREGATE_DISTINCT_PRECISION = 14;
+    /**
+     * specify the number of bytes of output lines after which log query
+     * service sends a frame
+     */
+    public static final int GREP_FRAME_BYTES = 64 * 1024;
+    /**
+     * the maximum time an output line waits in a frame before being sent,
+     * measured in milliseconds
+     */
+    public static final long GREP_FRAME_DELAY = 200;
+    /** if <code>true</code>, frames are compressed by Deflate */
+    public static final boolean GREP_FRAME_COMPRESSION = true;
+    /**
+     * the time after which an empty frame is sent if no frame has been sent,
+     * so the client can tell a long scan from a dead host, measured in
+     * milliseconds
+     */
+    public static final long GREP_FRAME_HEARTBEAT = 5000;
 
     /** Settings for remote grep client */
+
+    /**
+     * if <code>true</code>, remote grep client asks for output lines in
+     * frames, otherwise line by line in the newline protocol
+     */
+    public static final boolean GREP_FRAMED_PROTOCOL = true;
+    /**
+     * specify the number of lines of each host remote grep client buffers
+     * when merging lines in time order, before it stops reading from the host
+     */
+    public static final int GREP_MERGE_BUFFER_LINES = 10000;
+    /** the maximum time to connect to a host, measured in milliseconds */
+    public static final int GREP_CONNECT_TIMEOUT = 1000;
+    /**
+     * the maximum time to wait for the next frame from a host, after which
+     * the host is given up, measured in milliseconds. It has to be longer
+     * than GREP_FRAME_HEARTBEAT.
+     */
+    public static final int GREP_READ_TIMEOUT = 30000;
+    /**
+     * the time after which a host which has not answered yet is hedged by a
+     * replica, until half of the hosts have answered and the 95th percentile
+     * of their latency is known, measured in milliseconds
+     */
+    public static final long GREP_HEDGE_DELAY = 1000;
+    /** the minimum time before a host is hedged, measured in milliseconds */
+    public static final long GREP_HEDGE_MIN_DELAY = 100;
+    /** gap between checks for hosts to hedge, measured in milliseconds */
+    public static final long GREP_HEDGE_CHECK_PERIOD = 50;
+    /**
+     * groups of hosts holding the same logs, so a query to a slow host can be
+     * hedged by sending it to another host of the group as well. Hosts in no
+     * group are never hedged.
+     */
+    public static final String[][] LOG_REPLICA_GROUPS = new String[][] {};
+    /**
+     * the hosts remote grep client asks for the live log query services, and
+     * queries if none of them answers
+     */
     public static final String[] HOST_LIST = new String[] { "fa15-cs425-g13-01.cs.illinois.edu",
             "fa15-cs425-g13-02.cs.illinois.edu", "fa15-cs425-g13-03.cs.illinois.edu",
             "fa15-cs425-g13-04.cs.illinois.edu", "fa15-cs425-g13-05.cs.illinois.edu",
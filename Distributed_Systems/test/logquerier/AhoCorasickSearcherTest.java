@@ -0,0 +1,117 @@
+package logquerier;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks AhoCorasickSearcher and HorspoolSearcher against a naive search for
+ * the leftmost occurrence of any literal.
+ */
+public class AhoCorasickSearcherTest {
+    /** a small alphabet, so that literals often occur and overlap */
+    private static final byte[] ALPHABET = "abAB-\u00e9".getBytes(StandardCharsets.UTF_8);
+
+    private static byte fold(byte b, boolean ignoreCase) {
+        return ignoreCase && b >= 'A' && b <= 'Z' ? (byte) (b + 'a' - 'A') : b;
+    }
+
+    private static int naiveIndexOf(List<byte[]> literals, boolean ignoreCase, byte[] bytes,
+            int from, int to) {
+        for (int i = from; i < to; i++) {
+            for (byte[] literal : literals) {
+                if (i + literal.length > to) {
+                    continue;
+                }
+                boolean found = true;
+                for (int j = 0; j < literal.length && found; j++) {
+                    found = fold(bytes[i + j], ignoreCase) == fold(literal[j], ignoreCase);
+                }
+                if (found) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+        return bytes;
+    }
+
+    private static void compare(long seed, boolean ignoreCase, boolean direct) {
+        Random random = new Random(seed);
+        for (int i = 0; i < 2000; i++) {
+            List<byte[]> literals = new ArrayList<>();
+            int count = 1 + random.nextInt(5);
+            for (int j = 0; j < count; j++) {
+                literals.add(randomBytes(random, 1 + random.nextInt(4)));
+            }
+            ByteSearcher aho = new AhoCorasickSearcher(literals, ignoreCase);
+            ByteSearcher any = HorspoolSearcher.anyOf(literals, ignoreCase);
+            for (int j = 0; j < 20; j++) {
+                byte[] bytes = randomBytes(random, random.nextInt(40));
+                ByteBuffer buf = direct ? ByteBuffer.allocateDirect(bytes.length)
+                        : ByteBuffer.allocate(bytes.length);
+                buf.put(bytes);
+                buf.clear();
+                int from = bytes.length == 0 ? 0 : random.nextInt(bytes.length);
+                int to = from + random.nextInt(bytes.length - from + 1);
+                int expected = naiveIndexOf(literals, ignoreCase, bytes, from, to);
+                String message = String.format("%s in %s[%d, %d)", toStrings(literals),
+                        new String(bytes, StandardCharsets.ISO_8859_1), from, to);
+                Assert.assertEquals(message, expected, aho.indexOf(buf, from, to));
+                Assert.assertEquals(message, expected, any.indexOf(buf, from, to));
+            }
+        }
+    }
+
+    private static List<String> toStrings(List<byte[]> literals) {
+        List<String> strings = new ArrayList<>();
+        for (byte[] literal : literals) {
+            strings.add(new String(literal, StandardCharsets.ISO_8859_1));
+        }
+        return strings;
+    }
+
+    @Test
+    public void leftmostOccurrence() {
+        compare(1, false, false);
+    }
+
+    @Test
+    public void leftmostOccurrenceIgnoringCase() {
+        compare(2, true, false);
+    }
+
+    @Test
+    public void leftmostOccurrenceInDirectBuffer() {
+        compare(3, false, true);
+    }
+
+    @Test
+    public void longerLiteralStartingFirstWins() {
+        List<byte[]> literals = Arrays.asList("abcd".getBytes(StandardCharsets.UTF_8),
+                "bc".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buf = ByteBuffer.wrap("xabcd".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(1, new AhoCorasickSearcher(literals, false).indexOf(buf, 0, 5));
+        // "abcd" is cut off by to, so only "bc" occurs
+        Assert.assertEquals(2, new AhoCorasickSearcher(literals, false).indexOf(buf, 0, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyLiteralIsRejected() {
+        new AhoCorasickSearcher(Arrays.asList("a".getBytes(StandardCharsets.UTF_8), new byte[0]),
+                false);
+    }
+}
@@ -0,0 +1,45 @@
+package logquerier;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that escaped file names only match the files of that name.
+ */
+public class FileWalkerTest {
+    private static final String[] NAMES = { "a*.log", "ab.log", "a\\b.log", "x[1].log",
+            "x1.log", "y{1,2}.log", "y1.log", "q?.log", "qq.log" };
+
+    @Test
+    public void escapedNameMatchesOnlyItself() throws IOException {
+        Path dir = Files.createTempDirectory("walker");
+        try {
+            for (String name : NAMES) {
+                Files.write(dir.resolve(name), Collections.singletonList(name),
+                        StandardCharsets.UTF_8);
+            }
+            for (String name : NAMES) {
+                String pattern = dir + "/" + FileWalker.escape(name);
+                for (boolean recursive : new boolean[] { false, true }) {
+                    Assert.assertEquals(pattern, Arrays.asList(dir + "/" + name),
+                            FileWalker.find(pattern, recursive));
+                }
+            }
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package logquerier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that --follow keeps following files while they are rotated.
+ */
+public class FollowTest {
+    private static final int ROUNDS = 40;
+    private static final int LINES = 500;
+
+    /**
+     * Run Grep with --follow in another thread.
+     *
+     * @return the thread, which ends once max count is reached
+     */
+    private static Thread follow(final ByteArrayOutputStream os, String... args)
+            throws Exception {
+        List<String> allArgs = new ArrayList<>();
+        allArgs.add("--follow");
+        for (String arg : args) {
+            allArgs.add(arg);
+        }
+        final Grep grep = new Grep(allArgs.toArray(new String[0]), os);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                grep.execute();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        // files existing when the query starts are followed from their end
+        Thread.sleep(500);
+        return thread;
+    }
+
+    /**
+     * Append lines to the log, and rotate it like logrotate without
+     * copytruncate: rename it, and create it again a little later.
+     */
+    private static void writeAndRotate(Path log) throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < LINES; i++) {
+                lines.add(String.format("round %d line %d XYZ", round, i));
+            }
+            Files.write(log, lines, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            Files.move(log, log.resolveSibling(log.getFileName() + "." + round));
+            Thread.sleep(10);
+            Files.createFile(log);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void allRotatedLinesAreFollowedThroughAPattern() throws Exception {
+        Path dir = Files.createTempDirectory("follow");
+        try {
+            Path log = dir.resolve("r.log");
+            Files.createFile(log);
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            Thread thread = follow(os, "-m", String.valueOf(ROUNDS * LINES), "XYZ",
+                    dir + "/r.log*");
+            writeAndRotate(log);
+            thread.join(60000);
+            Assert.assertFalse(thread.isAlive());
+
+            Set<String> lines = new HashSet<>();
+            for (String line : new String(os.toByteArray(), StandardCharsets.UTF_8)
+                    .split("\n")) {
+                Assert.assertTrue(lines.add(line.substring(line.indexOf(':') + 1)));
+            }
+            Assert.assertEquals(ROUNDS * LINES, lines.size());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void followingANameSurvivesRotation() throws Exception {
+        Path dir = Files.createTempDirectory("follow");
+        try {
+            Path log = dir.resolve("r.log");
+            Files.createFile(log);
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            Thread thread = follow(os, "-m", "1", "FINAL", log.toString());
+            writeAndRotate(log);
+            Files.write(log, "FINAL\n".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+            thread.join(60000);
+            Assert.assertFalse(thread.isAlive());
+            Assert.assertEquals(log + ":FINAL\n",
+                    new String(os.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            delete(dir);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package logquerier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that FrameReader reads back what FramedOutputStream writes.
+ */
+public class FramedOutputStreamTest {
+    private static final int FRAME_BYTES = 64;
+
+    /**
+     * @return the bytes of all DATA frames in a stream, which has to end with
+     *         a trailer
+     */
+    private static byte[] readAll(FrameReader reader) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int len;
+        while ((len = reader.next()) >= 0) {
+            data.write(reader.getData(), 0, len);
+        }
+        return data.toByteArray();
+    }
+
+    private static String randomLines(Random random, int count) {
+        String chars = "ab \u00e9\u65e5";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            // some lines are longer than a frame
+            int length = random.nextInt(4) == 0 ? random.nextInt(300) : random.nextInt(20);
+            for (int j = 0; j < length; j++) {
+                sb.append(chars.charAt(random.nextInt(chars.length())));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void roundTrip(boolean compress, long seed) throws IOException {
+        String text = randomLines(new Random(seed), 500);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FramedOutputStream fos = new FramedOutputStream(wire, FRAME_BYTES, 60000, compress);
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8),
+                true);
+        pw.print(text);
+        pw.flush();
+        fos.finish(null);
+        fos.close();
+
+        try (FrameReader reader = new FrameReader(new ByteArrayInputStream(wire.toByteArray()),
+                FRAME_BYTES)) {
+            Assert.assertEquals(text, new String(readAll(reader), StandardCharsets.UTF_8));
+            Assert.assertEquals(FramedOutputStream.STATUS_OK, reader.getTrailer().get("status"));
+            Assert.assertEquals((long) text.split("\n", -1).length - 1,
+                    reader.getTrailer().get("lines"));
+            Assert.assertEquals(-1, reader.next());
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        for (long seed = 0; seed < 10; seed++) {
+            roundTrip(false, seed);
+        }
+    }
+
+    @Test
+    public void roundTripCompressed() throws IOException {
+        for (long seed = 0; seed < 10; seed++) {
+            roundTrip(true, seed);
+        }
+    }
+
+    @Test
+    public void lastLineWithoutLineEnd() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (FramedOutputStream fos = new FramedOutputStream(wire, FRAME_BYTES, 60000, true)) {
+            fos.write("first\nlast".getBytes(StandardCharsets.UTF_8));
+            fos.finish(null);
+        }
+        try (FrameReader reader = new FrameReader(new ByteArrayInputStream(wire.toByteArray()),
+                FRAME_BYTES)) {
+            Assert.assertEquals("first\nlast",
+                    new String(readAll(reader), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void trailerStatus() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (FramedOutputStream fos = new FramedOutputStream(wire, FRAME_BYTES, 60000, false)) {
+            fos.finish("boom");
+        }
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(wire.toByteArray()));
+        readAll(reader);
+        Assert.assertEquals(FramedOutputStream.STATUS_ERROR, reader.getTrailer().get("status"));
+        Assert.assertEquals("boom", reader.getTrailer().get("message"));
+        reader.close();
+
+        wire.reset();
+        try (FramedOutputStream fos = new FramedOutputStream(wire, FRAME_BYTES, 60000, false)) {
+            fos.finishCancelled();
+        }
+        reader = new FrameReader(new ByteArrayInputStream(wire.toByteArray()));
+        readAll(reader);
+        Assert.assertEquals(FramedOutputStream.STATUS_CANCELLED,
+                reader.getTrailer().get("status"));
+        reader.close();
+
+        wire.reset();
+        try (FramedOutputStream fos = new FramedOutputStream(wire, FRAME_BYTES, 60000, false)) {
+            fos.reject("busy");
+        }
+        reader = new FrameReader(new ByteArrayInputStream(wire.toByteArray()));
+        readAll(reader);
+        Assert.assertEquals(FramedOutputStream.STATUS_REJECTED,
+                reader.getTrailer().get("status"));
+        reader.close();
+    }
+
+    @Test(expected = EOFException.class)
+    public void closedWithoutTrailer() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FramedOutputStream fos = new FramedOutputStream(wire, FRAME_BYTES, 60000, false);
+        fos.write("line\n".getBytes(StandardCharsets.UTF_8));
+        fos.close();
+        try (FrameReader reader = new FrameReader(new ByteArrayInputStream(wire.toByteArray()),
+                FRAME_BYTES)) {
+            readAll(reader);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedFrameIsRejected() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(wire);
+        out.writeByte(FramedOutputStream.DATA);
+        out.writeByte(FramedOutputStream.DEFLATED);
+        out.writeInt(16);
+        out.writeInt(Integer.MAX_VALUE);
+        out.write(new byte[16]);
+        try (FrameReader reader = new FrameReader(new ByteArrayInputStream(wire.toByteArray()),
+                FRAME_BYTES)) {
+            reader.next();
+        }
+    }
+
+    @Test
+    public void staleLinesAreSent() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (FramedOutputStream fos = new FramedOutputStream(wire, FRAME_BYTES, 10, false)) {
+            fos.write("line\n".getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < 500 && wire.size() == 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(wire.size() > 0);
+            fos.finish(null);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package logquerier;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that LazyDfa matches the same lines as java.util.regex, and leaves
+ * the syntax it does not support to it.
+ */
+public class LazyDfaTest {
+
+    private static Pattern compile(String regex, int flags) {
+        try {
+            return Pattern.compile(regex, flags);
+        } catch (PatternSyntaxException e) {
+            return null;
+        }
+    }
+
+    private static void assertSameLines(Pattern pattern, String... lines) {
+        LazyDfa dfa = LazyDfa.of(pattern);
+        if (dfa == null) {
+            return;
+        }
+        for (String line : lines) {
+            Assert.assertEquals(String.format("%s on \"%s\"", pattern, line),
+                    pattern.matcher(line).matches(), dfa.matches(line));
+        }
+    }
+
+    private static void compare(long seed, int flags) {
+        RegexFuzz fuzz = new RegexFuzz(seed);
+        String[] lines = new String[20];
+        for (int i = 0; i < 20000; i++) {
+            // Grep matches whole lines, with the pattern wrapped in .*
+            Pattern pattern = compile(".*(" + fuzz.regex() + ").*", flags);
+            if (pattern == null) {
+                continue;
+            }
+            for (int j = 0; j < lines.length; j++) {
+                lines[j] = fuzz.line();
+            }
+            assertSameLines(pattern, lines);
+        }
+    }
+
+    @Test
+    public void sameLinesAsPattern() {
+        compare(1, Pattern.UNIX_LINES);
+    }
+
+    @Test
+    public void sameLinesAsPatternIgnoringCase() {
+        compare(2, Pattern.UNIX_LINES | Pattern.CASE_INSENSITIVE);
+    }
+
+    @Test
+    public void sameLinesAsPatternAnchored() {
+        RegexFuzz fuzz = new RegexFuzz(3);
+        String[] lines = new String[20];
+        for (int i = 0; i < 20000; i++) {
+            Pattern pattern = compile("^(" + fuzz.regex() + ")$", 0);
+            if (pattern == null) {
+                continue;
+            }
+            for (int j = 0; j < lines.length; j++) {
+                lines[j] = fuzz.line();
+            }
+            assertSameLines(pattern, lines);
+        }
+    }
+
+    @Test
+    public void knownPatterns() {
+        assertSameLines(Pattern.compile("\\S?{1,3}{1,3}{1,3}"), "ka", "k", "");
+        assertSameLines(Pattern.compile("a{2}{3}"), "aa", "aaaaaa");
+        assertSameLines(Pattern.compile("\\Qab\\E*"), "", "a", "ab", "abab", "abb");
+        assertSameLines(Pattern.compile("(a|ab)(c|bcd)(d*)"), "abcd", "abcdd", "acd");
+        assertSameLines(Pattern.compile(".*\\bERROR\\b.*", Pattern.UNIX_LINES),
+                "an ERROR here", "ERRORS", "\u00e9ERROR", "x\rERROR");
+    }
+
+    @Test
+    public void stackedQuantifiersAreLeftToPattern() {
+        Assert.assertNull(LazyDfa.of(Pattern.compile("\\S?{1,3}{1,3}{1,3}")));
+        Assert.assertNull(LazyDfa.of(Pattern.compile("a{2}{3}")));
+        Assert.assertNull(LazyDfa.of(Pattern.compile("a?+")));
+        Assert.assertNull(LazyDfa.of(Pattern.compile("\\Qab\\E*")));
+        Assert.assertNotNull(LazyDfa.of(Pattern.compile("a??b*?c{1,2}?")));
+    }
+}
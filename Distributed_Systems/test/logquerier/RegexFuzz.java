@@ -0,0 +1,73 @@
+package logquerier;
+
+import java.util.Random;
+
+/**
+ * RegexFuzz generates random regular expressions and lines over a small
+ * alphabet, so that lines often match, and different ways of matching can be
+ * compared on many inputs. This class is only used for testing.
+ */
+class RegexFuzz {
+    private static final String[] ATOMS = { "a", "b", "c", "A", "B", " ", "-", "ab", "\\.", ".",
+            "[ab]", "[^a]", "[a-c]", "\\d", "\\w", "\\s", "\\S", "\\b", "^", "$" };
+    private static final String[] QUANTIFIERS = { "*", "+", "?", "{2}", "{0,2}", "{1,}", "*?",
+            "+?", "??" };
+    private static final String LINE_CHARS = "abcAB -.1";
+
+    private final Random random;
+
+    RegexFuzz(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return a random regular expression, which may not compile
+     */
+    String regex() {
+        return alternation(2);
+    }
+
+    /**
+     * @return a random line without line terminators
+     */
+    String line() {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+            sb.append(LINE_CHARS.charAt(random.nextInt(LINE_CHARS.length())));
+        }
+        return sb.toString();
+    }
+
+    private String alternation(int depth) {
+        StringBuilder sb = new StringBuilder(concatenation(depth));
+        while (random.nextInt(4) == 0) {
+            sb.append('|').append(concatenation(depth));
+        }
+        return sb.toString();
+    }
+
+    private String concatenation(int depth) {
+        StringBuilder sb = new StringBuilder();
+        int length = 1 + random.nextInt(3);
+        for (int i = 0; i < length; i++) {
+            sb.append(repetition(depth));
+        }
+        return sb.toString();
+    }
+
+    private String repetition(int depth) {
+        String atom = atom(depth);
+        if (random.nextInt(3) == 0) {
+            atom += QUANTIFIERS[random.nextInt(QUANTIFIERS.length)];
+        }
+        return atom;
+    }
+
+    private String atom(int depth) {
+        if (depth > 0 && random.nextInt(6) == 0) {
+            return (random.nextBoolean() ? "(" : "(?:") + alternation(depth - 1) + ")";
+        }
+        return ATOMS[random.nextInt(ATOMS.length)];
+    }
+}
@@ -0,0 +1,181 @@
+package logquerier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks the literals found by RequiredLiterals against java.util.regex, and
+ * Grep with its prefilters against the plain regular expression.
+ */
+public class RequiredLiteralsTest {
+
+    private static Pattern compile(String regex, int flags) {
+        try {
+            return Pattern.compile(regex, flags);
+        } catch (PatternSyntaxException e) {
+            return null;
+        }
+    }
+
+    private static boolean containsAny(String line, List<String> literals, boolean ignoreCase) {
+        for (String literal : literals) {
+            if (ignoreCase ? line.toLowerCase(Locale.ROOT)
+                    .contains(literal.toLowerCase(Locale.ROOT)) : line.contains(literal)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void everyMatchContainsARequiredLiteral() {
+        RegexFuzz fuzz = new RegexFuzz(1);
+        for (int i = 0; i < 20000; i++) {
+            String regex = fuzz.regex();
+            boolean ignoreCase = i % 2 == 0;
+            Pattern pattern = compile(regex, ignoreCase ? Pattern.CASE_INSENSITIVE : 0);
+            List<String> literals = RequiredLiterals.of(regex);
+            if (pattern == null || literals == null) {
+                continue;
+            }
+            Assert.assertFalse(regex, literals.isEmpty());
+            for (int j = 0; j < 20; j++) {
+                String line = fuzz.line();
+                if (pattern.matcher(line).find()) {
+                    Assert.assertTrue(String.format("%s matches %s without any of %s", regex,
+                            line, literals), containsAny(line, literals, ignoreCase));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void exactLiteralIsTheOnlyMatch() {
+        RegexFuzz fuzz = new RegexFuzz(2);
+        for (int i = 0; i < 20000; i++) {
+            String regex = fuzz.regex();
+            Pattern pattern = compile(regex, 0);
+            String exact = RequiredLiterals.exact(regex);
+            if (pattern == null || exact == null) {
+                continue;
+            }
+            Assert.assertTrue(regex, pattern.matcher(exact).matches());
+            for (int j = 0; j < 20; j++) {
+                String line = fuzz.line();
+                if (pattern.matcher(line).matches()) {
+                    Assert.assertEquals(regex, exact, line);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void knownLiterals() {
+        Assert.assertEquals(Arrays.asList("ERROR"), RequiredLiterals.of("ERROR"));
+        Assert.assertEquals(Arrays.asList(" timeout"),
+                RequiredLiterals.of("conn(ection)? timeout"));
+        Assert.assertEquals(Arrays.asList("WARN", "ERROR"), RequiredLiterals.of("WARN|ERROR"));
+        Assert.assertNull(RequiredLiterals.of("a*"));
+        Assert.assertNull(RequiredLiterals.of("(?i)error"));
+        Assert.assertEquals("a.b", RequiredLiterals.exact("a\\.b"));
+        Assert.assertNull(RequiredLiterals.exact("a.b"));
+    }
+
+    /**
+     * @return the lines selected by Grep from a file, without the file name
+     */
+    static List<String> grep(Path file, String... options) throws ParseException {
+        List<String> args = new ArrayList<>(Arrays.asList(options));
+        args.add(file.toString());
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Grep(args.toArray(new String[0]), os).execute();
+        List<String> lines = new ArrayList<>();
+        String prefix = file + ":";
+        for (String line : new String(os.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) {
+                Assert.assertTrue(line, line.startsWith(prefix));
+                lines.add(line.substring(prefix.length()));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return the lines selected by the regular expression Grep builds from
+     *         the patterns, matched by java.util.regex only
+     */
+    private static List<String> expected(List<String> lines, String[] patterns, String option) {
+        String regex = "(" + String.join("|", patterns) + ")";
+        int flags = 0;
+        if (option.equals("-w")) {
+            regex = "\\b" + regex + "\\b";
+        }
+        if (option.equals("-x")) {
+            regex = "^" + regex + "$";
+        } else {
+            regex = ".*" + regex + ".*";
+            flags |= Pattern.UNIX_LINES;
+        }
+        if (option.equals("-i")) {
+            flags |= Pattern.CASE_INSENSITIVE;
+        }
+        Pattern pattern = Pattern.compile(regex, flags);
+        List<String> selected = new ArrayList<>();
+        for (String line : lines) {
+            if (pattern.matcher(line).matches() ^ option.equals("-v")) {
+                selected.add(line);
+            }
+        }
+        return selected;
+    }
+
+    @Test
+    public void grepSelectsTheLinesOfThePlainRegex() throws IOException, ParseException {
+        RegexFuzz fuzz = new RegexFuzz(3);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            lines.add(fuzz.line());
+        }
+        Path file = Files.createTempFile("grep", ".log");
+        try {
+            Files.write(file, lines, StandardCharsets.UTF_8);
+            String[] options = { "", "-i", "-v", "-w", "-x" };
+            for (int i = 0; i < 400; i++) {
+                // several -e patterns go through Aho-Corasick
+                String[] patterns = new String[1 + (i % 3 == 0 ? 1 + i % 5 : 0)];
+                for (int j = 0; j < patterns.length; j++) {
+                    patterns[j] = fuzz.regex();
+                }
+                if (compile("(" + String.join("|", patterns) + ")", 0) == null) {
+                    continue;
+                }
+                String option = options[i % options.length];
+                List<String> args = new ArrayList<>();
+                if (!option.isEmpty()) {
+                    args.add(option);
+                }
+                for (String pattern : patterns) {
+                    // patterns may start with '-'
+                    args.add("--regexp=" + pattern);
+                }
+                Assert.assertEquals(args.toString(), expected(lines, patterns, option),
+                        grep(file, args.toArray(new String[0])));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
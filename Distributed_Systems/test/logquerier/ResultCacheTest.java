@@ -0,0 +1,195 @@
+package logquerier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks how ResultCache entries are extended, invalidated and evicted, and
+ * that Grep through the cache prints what it prints without it.
+ */
+public class ResultCacheTest {
+
+    private static List<String> linesOf(ResultCache.Entry entry) {
+        List<String> lines = new ArrayList<>();
+        for (ResultCache.Segment segment : entry.segments()) {
+            lines.addAll(segment.selectedLines);
+        }
+        return lines;
+    }
+
+    private static ResultCache.Entry entryOf(Path file, String... lines) throws IOException {
+        long size = Files.size(file);
+        List<Long> lineNumbers = new ArrayList<>();
+        for (int i = 0; i < lines.length; i++) {
+            lineNumbers.add((long) i + 1);
+        }
+        return new ResultCache.Entry(TrigramIndex.fileKey(file),
+                TrigramIndex.headHash(file, size), size, lines.length, lines.length,
+                lineNumbers, Arrays.asList(lines), false);
+    }
+
+    @Test
+    public void extendAppendsWithoutChangingTheEntry() {
+        ResultCache.Entry first = new ResultCache.Entry("key", 0, 10, 2, 2,
+                Arrays.asList(1L, 2L), Arrays.asList("a", "bb"), false);
+        ResultCache.Entry second = first.extend(0, 20, 3, 1, Arrays.asList(3L),
+                Arrays.asList("ccc"), false);
+        ResultCache.Entry third = second.extend(0, 30, 4, 0, Collections.<Long>emptyList(),
+                Collections.<String>emptyList(), false);
+        ResultCache.Entry fourth = third.extend(0, 40, 6, 2, Arrays.asList(5L, 6L),
+                Arrays.asList("d", "e"), true);
+
+        Assert.assertEquals(Arrays.asList("a", "bb"), linesOf(first));
+        Assert.assertEquals(Arrays.asList("a", "bb", "ccc"), linesOf(second));
+        Assert.assertEquals(Arrays.asList("a", "bb", "ccc"), linesOf(third));
+        Assert.assertEquals(Arrays.asList("a", "bb", "ccc", "d", "e"), linesOf(fourth));
+        Assert.assertEquals(5, fourth.countMatches);
+        Assert.assertEquals(40, fourth.scannedBytes);
+        Assert.assertTrue(fourth.complete);
+        Assert.assertEquals(first.estimatedBytes + ResultCache.estimatedBytes("ccc"),
+                second.estimatedBytes);
+        Assert.assertEquals(second.estimatedBytes, third.estimatedBytes);
+        Assert.assertEquals(third.estimatedBytes + ResultCache.estimatedBytes("d")
+                + ResultCache.estimatedBytes("e"), fourth.estimatedBytes);
+    }
+
+    @Test
+    public void entryIsKeptWhileTheFileGrows() throws IOException {
+        Path file = Files.createTempFile("cache", ".log");
+        try {
+            Files.write(file, Arrays.asList("one", "two"), StandardCharsets.UTF_8);
+            ResultCache cache = new ResultCache(1024 * 1024);
+            ResultCache.Entry entry = entryOf(file, "one", "two");
+            cache.put("query", file, entry);
+            Assert.assertSame(entry, cache.get("query", file));
+            Assert.assertNull(cache.get("other", file));
+
+            Files.write(file, Arrays.asList("three"), StandardCharsets.UTF_8,
+                    StandardOpenOption.APPEND);
+            Assert.assertSame(entry, cache.get("query", file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void entryIsDroppedOnTruncation() throws IOException {
+        Path file = Files.createTempFile("cache", ".log");
+        try {
+            Files.write(file, Arrays.asList("one", "two"), StandardCharsets.UTF_8);
+            ResultCache cache = new ResultCache(1024 * 1024);
+            cache.put("query", file, entryOf(file, "one", "two"));
+            Files.write(file, Arrays.asList("one"), StandardCharsets.UTF_8);
+            Assert.assertNull(cache.get("query", file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void entryIsDroppedOnRotation() throws IOException {
+        Path file = Files.createTempFile("cache", ".log");
+        Path rotated = Files.createTempFile("cache", ".log");
+        try {
+            Files.write(file, Arrays.asList("one", "two"), StandardCharsets.UTF_8);
+            ResultCache cache = new ResultCache(1024 * 1024);
+            cache.put("query", file, entryOf(file, "one", "two"));
+            // overwritten in place with as many bytes
+            Files.write(file, Arrays.asList("six", "ten"), StandardCharsets.UTF_8);
+            Assert.assertNull(cache.get("query", file));
+
+            cache.put("query", file, entryOf(file, "six", "ten"));
+            // replaced by another file with the same content
+            Files.write(rotated, Arrays.asList("six", "ten"), StandardCharsets.UTF_8);
+            Files.move(rotated, file, StandardCopyOption.REPLACE_EXISTING);
+            Assert.assertNull(cache.get("query", file));
+        } finally {
+            Files.deleteIfExists(rotated);
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws IOException {
+        Path file = Files.createTempFile("cache", ".log");
+        try {
+            Files.write(file, Arrays.asList("line"), StandardCharsets.UTF_8);
+            ResultCache.Entry entry = entryOf(file, "line");
+            ResultCache cache = new ResultCache(3 * entry.estimatedBytes * 8);
+            for (int i = 0; i < 24; i++) {
+                cache.put("query" + i, file, entry);
+            }
+            cache.get("query0", file);
+            cache.put("query24", file, entry);
+            Assert.assertNotNull(cache.get("query0", file));
+            Assert.assertNull(cache.get("query1", file));
+            Assert.assertNotNull(cache.get("query24", file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void entriesLargerThanTheirShareAreNotStored() throws IOException {
+        Path file = Files.createTempFile("cache", ".log");
+        try {
+            Files.write(file, Arrays.asList("line"), StandardCharsets.UTF_8);
+            ResultCache.Entry entry = entryOf(file, "line");
+            ResultCache cache = new ResultCache(entry.estimatedBytes * 8 - 1);
+            cache.put("query", file, entry);
+            Assert.assertNull(cache.get("query", file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static String grep(ResultCache cache, Path file, String... options)
+            throws ParseException {
+        List<String> args = new ArrayList<>(Arrays.asList(options));
+        args.add(file.toString());
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Grep grep = new Grep(args.toArray(new String[0]), os);
+        grep.setResultCache(cache);
+        grep.execute();
+        return new String(os.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void grepThroughTheCachePrintsTheSameLines() throws IOException, ParseException {
+        Path file = Files.createTempFile("cache", ".log");
+        try {
+            // the cache holds the ERROR lines of the first rounds, but never
+            // the result of -v
+            ResultCache cache = new ResultCache(64 * 1024);
+            List<String> lines = new ArrayList<>();
+            for (int round = 0; round < 5; round++) {
+                lines.clear();
+                for (int i = 0; i < 100; i++) {
+                    lines.add(String.format("round %d line %d %s", round, i,
+                            i % 7 == 0 ? "ERROR" : "INFO"));
+                }
+                Files.write(file, lines, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+                for (String[] options : new String[][] { { "-n", "ERROR" }, { "-c", "ERROR" },
+                        { "-v", "ERROR" }, { "-m", "20", "ERROR" } }) {
+                    Assert.assertEquals(Arrays.toString(options), grep(null, file, options),
+                            grep(cache, file, options));
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package logquerier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that --since and --until select the same lines, with the same line
+ * numbers, in a plain file and in its gzip copy.
+ */
+public class TimeRangeTest {
+    private static final String LOG = "\n\n[2020-01-01 00:00:00:000] ERROR a\ncontinued ERROR\n\n"
+            + "[2020-01-02 00:00:00:000] ERROR b\nmore ERROR\r\n"
+            + "[2020-01-03 00:00:00:000] ERROR c\nlast ERROR\n";
+
+    private static String grep(Path file, String... options) throws ParseException {
+        List<String> args = new ArrayList<>(Arrays.asList(options));
+        args.add(file.toString());
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Grep(args.toArray(new String[0]), os).execute();
+        return new String(os.toByteArray(), StandardCharsets.UTF_8)
+                .replace(file.toString() + ":", "");
+    }
+
+    @Test
+    public void compressedFileSelectsTheSameLines() throws IOException, ParseException {
+        Path dir = Files.createTempDirectory("time");
+        Path plain = dir.resolve("t.log");
+        Path compressed = dir.resolve("t.log.gz");
+        try {
+            byte[] bytes = LOG.getBytes(StandardCharsets.UTF_8);
+            Files.write(plain, bytes);
+            try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+                os.write(bytes);
+            }
+            String[][] queries = { { "--since", "2020-01-01" }, { "--until", "2020-01-02" },
+                    { "--since", "2020-01-02", "--until", "2020-01-03" },
+                    { "-v", "--until", "2020-01-03" }, { "-c", "--since", "2020-01-02" },
+                    { "-i", "--since", "2020-01-02" } };
+            for (String[] query : queries) {
+                List<String> options = new ArrayList<>(Arrays.asList(query));
+                options.add(0, "-n");
+                options.add("error");
+                String[] args = options.toArray(new String[0]);
+                Assert.assertEquals(options.toString(), grep(plain, args),
+                        grep(compressed, args));
+            }
+            Assert.assertEquals("6:[2020-01-02 00:00:00:000] ERROR b\n7:more ERROR\n",
+                    grep(compressed, "-n", "--since", "2020-01-02", "--until", "2020-01-03",
+                            "ERROR"));
+        } finally {
+            Files.deleteIfExists(compressed);
+            Files.deleteIfExists(plain);
+            Files.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package membershipservice;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import membershipservice.MembershipList.Member;
+import membershipservice.MembershipList.State;
+import system.Identity;
+
+/**
+ * Checks that MembershipListCodec decodes what it encodes, and rejects
+ * truncated and corrupted messages.
+ */
+public class MembershipListCodecTest {
+
+    private static Identity identity(String host, byte[] address, int port, long timestamp)
+            throws IOException {
+        return new Identity(InetAddress.getByAddress(host, address), port, timestamp);
+    }
+
+    private static MembershipList randomList(Random random, int size) throws IOException {
+        String[] hosts = { null, "", "fa16-cs425-g01-01.cs.illinois.edu",
+                "fa16-cs425-g01-02.cs.illinois.edu", "localhost", "h\u00f4te" };
+        List<Member> members = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            byte[] address = new byte[random.nextBoolean() ? 4 : 16];
+            random.nextBytes(address);
+            // timestamps may decrease from one member to the next
+            Identity id = identity(hosts[random.nextInt(hosts.length)], address,
+                    random.nextInt(65536), random.nextLong() >>> random.nextInt(64));
+            State state = State.values()[random.nextInt(State.values().length)];
+            members.add(new Member(id, random.nextInt(Integer.MAX_VALUE), 0, state));
+        }
+        Collections.sort(members, Member.compareByIdentity);
+        return new MembershipList(members);
+    }
+
+    private static ByteBuffer encode(MembershipList list) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        MembershipListCodec.encode(list, buf);
+        buf.flip();
+        return buf;
+    }
+
+    private static void assertSameMembers(MembershipList expected, MembershipList actual) {
+        Assert.assertEquals(expected.getMembers().size(), actual.getMembers().size());
+        for (int i = 0; i < expected.getMembers().size(); i++) {
+            Member e = expected.getMembers().get(i);
+            Member a = actual.getMembers().get(i);
+            Assert.assertEquals(e.id, a.id);
+            // Identity compares addresses only, but orders by host names too
+            Assert.assertEquals(e.id.toString(), a.id.toString());
+            Assert.assertEquals(e.heartbeatCounter, a.heartbeatCounter);
+            Assert.assertEquals(e.state, a.state);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            MembershipList list = randomList(random, random.nextInt(20));
+            ByteBuffer buf = encode(list);
+            assertSameMembers(list, MembershipListCodec.decode(buf));
+            Assert.assertFalse(buf.hasRemaining());
+        }
+    }
+
+    @Test
+    public void ipv6AndEmptyHostNames() throws IOException {
+        byte[] ipv6 = InetAddress.getByName("::1").getAddress();
+        byte[] ipv4 = { 10, 0, 0, 1 };
+        MembershipList list = new MembershipList(Arrays.asList(
+                new Member(identity(null, ipv6, 2000, 5L), 3, 0, State.ALIVE),
+                new Member(identity("", ipv4, 2001, 4L), 0, 0, State.LEAVE),
+                new Member(identity("node", ipv6, 2002, Long.MAX_VALUE), 1, 0, State.FAIL),
+                new Member(identity("node-2", ipv4, 0, Long.MIN_VALUE), 7, 0, State.CLEANUP)));
+        MembershipList decoded = MembershipListCodec.decode(encode(list));
+        assertSameMembers(list, decoded);
+        Assert.assertEquals(16, decoded.getMembers().get(0).id.IPAddress.getAddress().length);
+        Assert.assertEquals("/10.0.0.1", decoded.getMembers().get(1).id.IPAddress.toString());
+    }
+
+    @Test
+    public void truncatedMessagesAreRejected() throws IOException {
+        MembershipList list = randomList(new Random(2), 10);
+        ByteBuffer buf = encode(list);
+        int length = buf.remaining();
+        for (int i = 0; i < length; i++) {
+            ByteBuffer truncated = buf.duplicate();
+            truncated.limit(i);
+            try {
+                MembershipListCodec.decode(truncated);
+                Assert.fail("decoded " + i + " of " + length + " bytes");
+            } catch (StreamCorruptedException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void corruptedMessagesAreRejectedOrDecoded() throws IOException {
+        ByteBuffer buf = encode(randomList(new Random(3), 10));
+        Random random = new Random(4);
+        for (int i = 0; i < 2000; i++) {
+            ByteBuffer corrupted = ByteBuffer.allocate(buf.remaining());
+            corrupted.put(buf.duplicate());
+            corrupted.flip();
+            corrupted.put(random.nextInt(corrupted.limit()), (byte) random.nextInt());
+            try {
+                MembershipListCodec.decode(corrupted);
+            } catch (StreamCorruptedException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void unknownVersionIsRejected() throws IOException {
+        ByteBuffer buf = encode(randomList(new Random(5), 3));
+        buf.put(0, (byte) (MembershipListCodec.VERSION + 1));
+        MembershipListCodec.decode(buf);
+    }
+
+    @Test(expected = IOException.class)
+    public void listLargerThanTheBufferIsRejected() throws IOException {
+        MembershipListCodec.encode(randomList(new Random(6), 100), ByteBuffer.allocate(64));
+    }
+}